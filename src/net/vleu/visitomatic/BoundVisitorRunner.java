@@ -0,0 +1,118 @@
+/*
+ * Copyright 2009 Brice Arnould
+ *
+ * This file is part of VisitOMatic.
+ *
+ * VisitOMatic is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * VisitOMatic is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with VisitOMatic.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.vleu.visitomatic;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.FutureTask;
+import net.vleu.visitomatic.VisitorRunner.VisitorRunnerException;
+
+/**
+ * <p>A {@link VisitorRunner} bound to a single {@link Visitor}, for runners
+ * that are always used with the same long-lived visitor. For example :</p>
+ * <pre>
+ * private final static BoundVisitorRunner&lt;Integer&gt; SUM =
+ *     VisitorRunner.getInstance(SumVisitor.class, "sum").bind(new SumVisitor());
+ * ...
+ * int sum = SUM.applyAsInt(tree);
+ * </pre>
+ *
+ * <p>It is a convenience : applying it is the same as calling
+ * {@link VisitorRunner#visit(Visitor, Visitable)} with its visitor, the
+ * result being typed. To make the hot classes faster, bind a runner
+ * returned by {@link VisitorRunner#getTieredInstance}.</p>
+ *
+ * <p>A BoundVisitorRunner is thread-safe if its visitor is.</p>
+ * @param <R> The return type of the visit
+ * @see VisitorRunner#bind
+ */
+public final class BoundVisitorRunner<R> {
+
+    /** Runs the visits */
+    private final VisitorRunner runner;
+    /** The visitor given to the runner */
+    private final Visitor visitor;
+
+    /**
+     * Call {@link VisitorRunner#bind} to get an instance.
+     */
+    BoundVisitorRunner(VisitorRunner runner, Visitor visitor) {
+        if (visitor == null)
+            throw new NullPointerException();
+        this.runner = runner;
+        this.visitor = visitor;
+    }
+
+    /**
+     * Visits a {@code Visitable} with the bound visitor.
+     * @param visitable The visitable to visit
+     * @return The return value from the suitable method of the visitor
+     * @throws VisitorRunnerException An error occurs during the running of the visitor
+     * @see VisitorRunner#visit(Visitor, Visitable)
+     */
+    public R apply(Visitable visitable) throws VisitorRunnerException {
+        return runner.<R>visit(visitor, visitable);
+    }
+
+    /**
+     * Does the same as {@link #apply}, for visits returning integers.
+     * @param visitable The visitable to visit
+     * @return The return value from the suitable method of the visitor
+     * @throws VisitorRunnerException An error occurs during the running of the visitor
+     * @throws ClassCastException The visit didn't return a {@link Number}
+     */
+    public int applyAsInt(Visitable visitable) throws VisitorRunnerException, ClassCastException {
+        return ((Number) apply(visitable)).intValue();
+    }
+
+    /**
+     * Does the same as {@link #apply}, for visits returning long integers.
+     * @param visitable The visitable to visit
+     * @return The return value from the suitable method of the visitor
+     * @throws VisitorRunnerException An error occurs during the running of the visitor
+     * @throws ClassCastException The visit didn't return a {@link Number}
+     */
+    public long applyAsLong(Visitable visitable) throws VisitorRunnerException, ClassCastException {
+        return ((Number) apply(visitable)).longValue();
+    }
+
+    /**
+     * Return a {@link FutureTask} that visits a {@code Visitable} with the
+     * bound visitor.
+     * @param visitable The visitable to visit
+     * @return A task returning the return value from the suitable method of
+     *         the visitor
+     * @see VisitorRunner#futureVisit
+     */
+    public FutureTask<R> futureApply(final Visitable visitable) {
+        return new FutureTask<R>(new Callable<R>() {
+
+            /** {@inheritDoc} */
+            @Override
+            public R call() throws VisitorRunnerException {
+                return apply(visitable);
+            }
+        });
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public String toString() {
+        return "<" + runner + " bound to " + visitor + '>';
+    }
+}
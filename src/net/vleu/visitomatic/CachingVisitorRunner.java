@@ -0,0 +1,342 @@
+/*
+ * Copyright 2009 Brice Arnould
+ *
+ * This file is part of VisitOMatic.
+ *
+ * VisitOMatic is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * VisitOMatic is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with VisitOMatic.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.vleu.visitomatic;
+
+import java.io.IOException;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>This {@link VisitorRunner} remembers the results of the visits of
+ * immutable {@link Visitable}s across calls : visiting again a
+ * {@code Visitable} with the same visitor returns the remembered result.</p>
+ *
+ * <p>At most {@code maximumSize} results are remembered ; beyond that, the
+ * least recently used ones are forgotten. The {@code Visitable}s and the
+ * visitors are only weakly referenced, so their results are forgotten once
+ * they are garbage collected. A result that references its
+ * {@code Visitable} keeps it alive until it is evicted.</p>
+ *
+ * <p>Results are only remembered through visits that go through this runner,
+ * so {@code VisitingMethod}s must use it to visit the members of their
+ * {@code Visitable}s for the shared subgraphs to be remembered. Unlike
+ * {@link IncrementalVisitorRunner}, it does not track which visits used
+ * which {@code Visitable} : it must not be used on {@code Visitable}s that
+ * are modified.</p>
+ *
+ * <p>A CachingVisitorRunner is thread-safe. The results are spread over
+ * several independently locked stripes, each evicting on its own, so
+ * concurrent visits rarely contend.</p>
+ * @see VisitorRunner#getCachingInstance
+ */
+public final class CachingVisitorRunner extends VisitorRunner {
+
+    /** The number of stripes, a power of two */
+    private final static int STRIPES = 16;
+    /** The runner that computes the results */
+    private final VisitorRunner delegate;
+    /** The remembered results, by stripe. Each is guarded by itself. */
+    private final Stripe[] stripes;
+    /** Receives the keys whose {@code Visitable} was garbage collected */
+    private final ReferenceQueue<Visitable> collected;
+    /** The number of visits that returned a remembered result */
+    private final AtomicLong hits = new AtomicLong();
+    /** The number of visits that computed their result */
+    private final AtomicLong misses = new AtomicLong();
+    /** The number of results forgotten to make room for others */
+    private final AtomicLong evictions = new AtomicLong();
+
+    /**
+     * Call {@link VisitorRunner#getCachingInstance} to get an instance.
+     */
+    CachingVisitorRunner(VisitorRunner delegate, int maximumSize) {
+        if (maximumSize < 1)
+            throw new IllegalArgumentException("maximumSize must be positive");
+        this.delegate = delegate;
+        this.collected = new ReferenceQueue<Visitable>();
+        this.stripes = new Stripe[STRIPES];
+        final int stripeSize = (maximumSize + STRIPES - 1) / STRIPES;
+        for (int n = 0; n < STRIPES; n++)
+            stripes[n] = new Stripe(stripeSize);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public String toString() {
+        return "<Caching " + delegate + '>';
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>This version returns the remembered result if there is one.</p>
+     */
+    @Override
+    public <R> R visit(Visitor visitor, Visitable visitable) throws VisitorRunnerException {
+        final int hash = System.identityHashCode(visitable);
+        final Stripe stripe = stripes[stripeOf(hash)];
+        synchronized (stripe) {
+            final CachedResult entry = stripe.get(new LookupKey(visitable, hash));
+            if (entry != null && entry.visitor.get() == visitor) {
+                hits.incrementAndGet();
+                @SuppressWarnings("unchecked")
+                R result = (R) entry.result;
+                return result;
+            }
+        }
+        misses.incrementAndGet();
+        /* Compute it without holding the lock, as it visits the members */
+        final R result = delegate.<R>visit(visitor, visitable);
+        expungeCollected();
+        synchronized (stripe) {
+            stripe.put(new WeakKey(visitable, hash, collected),
+                       new CachedResult(visitor, result));
+        }
+        return result;
+    }
+
+    /** @return The index of the stripe of a key */
+    private static int stripeOf(int hash) {
+        /* The low bits of identity hashes are fine, but spread them anyway */
+        return (hash ^ (hash >>> 16)) & (STRIPES - 1);
+    }
+
+    /** Forgets the results of the garbage collected {@code Visitable}s */
+    private void expungeCollected() {
+        Reference<? extends Visitable> reference;
+        while ((reference = collected.poll()) != null) {
+            final WeakKey key = (WeakKey) reference;
+            final Stripe stripe = stripes[stripeOf(key.hash)];
+            synchronized (stripe) {
+                stripe.remove(key);
+            }
+        }
+    }
+
+    /**
+     * Forgets the result of the visit of a {@code Visitable}.
+     * @param visitable The {@code Visitable} to forget
+     */
+    public void invalidate(Visitable visitable) {
+        final int hash = System.identityHashCode(visitable);
+        final Stripe stripe = stripes[stripeOf(hash)];
+        synchronized (stripe) {
+            stripe.remove(new LookupKey(visitable, hash));
+        }
+    }
+
+    /** Forgets all the remembered results. */
+    public void clear() {
+        for (Stripe stripe : stripes)
+            synchronized (stripe) {
+                stripe.clear();
+            }
+        expungeCollected();
+    }
+
+    /**
+     * @return The number of remembered results, including the ones of
+     *         {@code Visitable}s that were just garbage collected
+     */
+    public int size() {
+        int result = 0;
+        for (Stripe stripe : stripes)
+            synchronized (stripe) {
+                result += stripe.size();
+            }
+        return result;
+    }
+
+    /** @return The number of visits that returned a remembered result */
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    /** @return The number of visits that computed their result */
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    /** @return The number of results forgotten to make room for others */
+    public long getEvictionCount() {
+        return evictions.get();
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public <R extends Visitable> R rewrite(Visitor visitor, Visitable visitable) throws VisitorRunnerException {
+        return delegate.<R>rewrite(visitor, visitable);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public <R> R visit(Visitor visitor, VisitableStreamDecoder decoder) throws VisitorRunnerException, IOException {
+        return delegate.<R>visit(visitor, decoder);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    <R> R dispatchPair(Visitor visitor, Visitable left, Visitable right) throws VisitorRunnerException {
+        return delegate.<R>dispatchPair(visitor, left, right);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    boolean handles(Class<? extends Visitable> visitableClass) {
+        return delegate.handles(visitableClass);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    FoldingHandler newFoldingHandler(Visitor visitor) {
+        return delegate.newFoldingHandler(visitor);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public <R> FutureTask<R> futureVisit(final Visitor visitor, final Visitable visitable) {
+        final Callable<R> callable = new Callable<R>() {
+
+            /** {@inheritDoc} */
+            @Override
+            public R call() throws VisitorRunnerException {
+                return CachingVisitorRunner.this.<R>visit(visitor, visitable);
+            }
+        };
+        return new FutureTask<R>(callable);
+    }
+
+    /** A remembered result */
+    private static final class CachedResult {
+
+        /** The visitor that computed {@link #result} */
+        final WeakReference<Visitor> visitor;
+        /** The result of the visit */
+        final Object result;
+
+        CachedResult(Visitor visitor, Object result) {
+            this.visitor = new WeakReference<Visitor>(visitor);
+            this.result = result;
+        }
+    }
+
+    /**
+     * The results of some {@code Visitable}s, in the order they were last
+     * used.
+     */
+    private final class Stripe extends LinkedHashMap<Key, CachedResult> {
+
+        private static final long serialVersionUID = 1L;
+        /** The maximum number of results of this stripe */
+        private final int maximumSize;
+
+        Stripe(int maximumSize) {
+            super(16, 0.75f, true);
+            this.maximumSize = maximumSize;
+        }
+
+        /** {@inheritDoc} */
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Key, CachedResult> eldest) {
+            if (size() <= maximumSize)
+                return false;
+            evictions.incrementAndGet();
+            return true;
+        }
+    }
+
+    /**
+     * Identifies a {@code Visitable} by identity, whether it is referenced
+     * strongly or weakly.
+     */
+    private interface Key {
+
+        /** @return The {@code Visitable}, or null if it was collected */
+        Visitable getVisitable();
+    }
+
+    /** The key of a remembered result */
+    private static final class WeakKey extends WeakReference<Visitable> implements Key {
+
+        final int hash;
+
+        WeakKey(Visitable visitable, int hash, ReferenceQueue<Visitable> queue) {
+            super(visitable, queue);
+            this.hash = hash;
+        }
+
+        @Override
+        public Visitable getVisitable() {
+            return get();
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        /**
+         * {@inheritDoc}
+         * Keys are equal if they have the same {@code Visitable}. A key whose
+         * {@code Visitable} was collected is only equal to itself.
+         */
+        @Override
+        public boolean equals(Object other) {
+            if (this == other)
+                return true;
+            else if (!(other instanceof Key))
+                return false;
+            final Visitable visitable = get();
+            return visitable != null && visitable == ((Key) other).getVisitable();
+        }
+    }
+
+    /** The key used to look up a result, without allocating a reference */
+    private static final class LookupKey implements Key {
+
+        final Visitable visitable;
+        final int hash;
+
+        LookupKey(Visitable visitable, int hash) {
+            this.visitable = visitable;
+            this.hash = hash;
+        }
+
+        @Override
+        public Visitable getVisitable() {
+            return visitable;
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            return other instanceof Key &&
+                   visitable == ((Key) other).getVisitable();
+        }
+    }
+}
@@ -0,0 +1,146 @@
+/*
+ * Copyright 2009 Brice Arnould
+ *
+ * This file is part of VisitOMatic.
+ *
+ * VisitOMatic is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * VisitOMatic is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with VisitOMatic.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.vleu.visitomatic;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.SoftReference;
+import java.lang.ref.WeakReference;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Associates values to classes without keeping the classes, nor their class
+ * loaders, loaded : the classes are weakly referenced and the values softly,
+ * as values usually reference their class. A value thus stays while
+ * something else uses it, or until memory runs short, and is then built
+ * again if needed. Lookups don't lock.
+ * @param <V> The type of the values
+ * @see VisitorModel
+ * @see VisitableModel
+ */
+final class ClassCache<V> {
+
+    /** Associate to the classes their value */
+    private final ConcurrentHashMap<Key, Reference<V>> values =
+            new ConcurrentHashMap<Key, Reference<V>>();
+    /** Receives the keys whose class was collected */
+    private final ReferenceQueue<Class<?>> collected = new ReferenceQueue<Class<?>>();
+
+    /** @return The value of this class, or null if there is none */
+    V get(Class<?> type) {
+        final Reference<V> reference = values.get(new LookupKey(type));
+        return reference == null ? null : reference.get();
+    }
+
+    /**
+     * Associates a value to a class, unless it already has one.
+     * @return The value now associated to the class
+     */
+    V putIfAbsent(Class<?> type, V value) {
+        expungeCollected();
+        final Key key = new WeakKey(type, collected);
+        final Reference<V> reference = new SoftReference<V>(value);
+        while (true) {
+            final Reference<V> previous = values.putIfAbsent(key, reference);
+            if (previous == null)
+                return value;
+            final V known = previous.get();
+            if (known != null)
+                return known;
+            /* Its value was collected : replace it */
+            if (values.replace(key, previous, reference))
+                return value;
+        }
+    }
+
+    /** Forgets the values of the collected classes */
+    private void expungeCollected() {
+        Reference<? extends Class<?>> reference;
+        while ((reference = collected.poll()) != null)
+            values.remove(reference);
+    }
+
+    /** Identifies a class, whether it is referenced strongly or weakly */
+    private interface Key {
+
+        /** @return The class, or null if it was collected */
+        Class<?> getType();
+    }
+
+    /** The key of a value */
+    private static final class WeakKey extends WeakReference<Class<?>> implements Key {
+
+        final int hash;
+
+        WeakKey(Class<?> type, ReferenceQueue<Class<?>> queue) {
+            super(type, queue);
+            this.hash = System.identityHashCode(type);
+        }
+
+        @Override
+        public Class<?> getType() {
+            return get();
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        /**
+         * {@inheritDoc}
+         * Keys are equal if they have the same class. A key whose class was
+         * collected is only equal to itself.
+         */
+        @Override
+        public boolean equals(Object other) {
+            if (this == other)
+                return true;
+            else if (!(other instanceof Key))
+                return false;
+            final Class<?> type = get();
+            return type != null && type == ((Key) other).getType();
+        }
+    }
+
+    /** The key used to look up a value, without allocating a reference */
+    private static final class LookupKey implements Key {
+
+        final Class<?> type;
+
+        LookupKey(Class<?> type) {
+            this.type = type;
+        }
+
+        @Override
+        public Class<?> getType() {
+            return type;
+        }
+
+        @Override
+        public int hashCode() {
+            return System.identityHashCode(type);
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            return other instanceof Key && type == ((Key) other).getType();
+        }
+    }
+}
@@ -0,0 +1,38 @@
+/*
+ * Copyright 2009 Brice Arnould
+ *
+ * This file is part of VisitOMatic.
+ *
+ * VisitOMatic is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * VisitOMatic is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with VisitOMatic.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.vleu.visitomatic;
+
+/**
+ * A {@link Visitor} that can visit graphs with cycles, using
+ * {@link VisitorRunner#visitGraph}.
+ */
+public interface CyclicVisitor extends Visitor {
+
+    /**
+     * Called instead of visiting a {@code Visitable} whose visit is in
+     * progress, that is when following an edge that closes a cycle. The
+     * returned value is given to the visiting method as the result of the
+     * visit. It can be a neutral value, or a placeholder that the visitor
+     * fills once the visit of {@code visitable} is over, to build a
+     * fixpoint.
+     * @param visitable The {@code Visitable} whose visit is in progress
+     * @return The value standing for the result of its visit
+     */
+    Object backEdge(Visitable visitable);
+}
@@ -0,0 +1,41 @@
+/*
+ * Copyright 2009 Brice Arnould
+ *
+ * This file is part of VisitOMatic.
+ *
+ * VisitOMatic is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * VisitOMatic is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with VisitOMatic.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.vleu.visitomatic;
+
+/**
+ * A {@link Visitor} that can give a result when its visit is aborted by a
+ * {@link VisitDeadline}, for example the partial result it computed so far
+ * or a default value.
+ * @see VisitorRunner#visit(Visitor, Visitable, VisitDeadline)
+ */
+public interface FallbackVisitor extends Visitor {
+
+    /**
+     * Called when a visit of this visitor run with
+     * {@link VisitorRunner#visit(Visitor, Visitable, VisitDeadline)} expired
+     * or was cancelled.
+     * @param visitable The root of the aborted visit
+     * @param cause A {@link java.util.concurrent.TimeoutException} if the
+     *        deadline expired, or a
+     *        {@link java.util.concurrent.CancellationException} if it was
+     *        cancelled
+     * @return The value to return instead of the result of the visit
+     */
+    Object fallback(Visitable visitable, Throwable cause);
+}
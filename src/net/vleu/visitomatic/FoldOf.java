@@ -0,0 +1,50 @@
+/*
+ * Copyright 2009 Brice Arnould
+ *
+ * This file is part of VisitOMatic.
+ *
+ * VisitOMatic is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * VisitOMatic is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with VisitOMatic.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.vleu.visitomatic;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Marks a {@link VisitingMethod} as folding a {@link Visitable} whose members
+ * have already been visited, as happens when visiting a graph reported by a
+ * {@link VisitableStreamDecoder}.<br />
+ * Such a method takes as arguments the members of the {@code Visitable}, in
+ * the order specified by {@link ToVisit}, where members that are
+ * {@code Visitable}s are replaced by the result of their own visit.<br />
+ * For example, if {@code Plus} has two {@code ToVisit} members :
+ * <pre>
+ * &#64;VisitingMethod(visitName="sum")
+ * &#64;FoldOf(Plus.class)
+ * private Integer sum(Integer a, Integer b)
+ * </pre>
+ * @see VisitorRunner#visit(Visitor, VisitableStreamDecoder)
+ * @see VisitingMethod
+ */
+@Documented
+@Retention(RetentionPolicy.RUNTIME)
+@Target({ElementType.METHOD})// This annotation can only be applied to methods.
+public @interface FoldOf {
+
+    /** The class of the {@code Visitable}s folded by this method. */
+    Class<? extends Visitable> value();
+}
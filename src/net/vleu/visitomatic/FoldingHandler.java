@@ -0,0 +1,183 @@
+/*
+ * Copyright 2009 Brice Arnould
+ *
+ * This file is part of VisitOMatic.
+ *
+ * VisitOMatic is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * VisitOMatic is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with VisitOMatic.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.vleu.visitomatic;
+
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import net.vleu.visitomatic.VisitorRunner.VisitorRunnerException;
+
+/**
+ * A {@link VisitableEventHandler} that calls the methods annotated by
+ * {@link FoldOf} of a {@link Visitor} when nodes are left, and gives their
+ * result to the enclosing node.<br />
+ * It keeps one frame per open node, and the results of the shared nodes.
+ * @see FoldOf
+ */
+final class FoldingHandler implements VisitableEventHandler {
+
+    /** The runner on behalf of which we are folding */
+    private final VisitorRunner runner;
+    /** The visitor whose methods we call */
+    private final Visitor visitor;
+    /** Associate to classes of {@code Visitable} the methods folding them */
+    private final Map<Class<? extends Visitable>, Method> foldsToMethods;
+    /** The nodes entered but not left yet, the innermost last */
+    private final ArrayList<Frame> frames = new ArrayList<Frame>();
+    /** Associate to the offsets of shared nodes their results */
+    private final Map<Long, Object> sharedResults = new HashMap<Long, Object>();
+    /** The result of the outermost node, once it is left */
+    private Object result;
+
+    FoldingHandler(VisitorRunner runner, Visitor visitor,
+                   Map<Class<? extends Visitable>, Method> foldsToMethods) {
+        this.runner = runner;
+        this.visitor = visitor;
+        this.foldsToMethods = foldsToMethods;
+    }
+
+    /** A node entered but not left yet */
+    private static final class Frame {
+
+        /** The class of the node */
+        final Class<? extends Visitable> visitableClass;
+        /** The method that will fold this node */
+        final Method method;
+        /** Its arguments, filled as members are reported */
+        final Object[] arguments;
+        /** The index of the next argument to fill */
+        int next;
+        /** Where to store the result in {@link #sharedResults}, or null */
+        final Long sharedOffset;
+
+        Frame(Class<? extends Visitable> visitableClass, Method method, Long sharedOffset) {
+            this.visitableClass = visitableClass;
+            this.method = method;
+            this.arguments = new Object[method.getParameterTypes().length];
+            this.sharedOffset = sharedOffset;
+        }
+    }
+
+    /** @return The result of the outermost node, once it is left */
+    Object getResult() {
+        return result;
+    }
+
+    /**
+     * @return The arguments given so far to the nodes entered but not left
+     *         yet, the innermost last
+     */
+    List<Object[]> getPendingArguments() {
+        final List<Object[]> result = new ArrayList<Object[]>(frames.size());
+        for (Frame frame : frames)
+            result.add(Arrays.copyOf(frame.arguments, frame.next));
+        return result;
+    }
+
+    /**
+     * @return The result of the shared node whose record starts at
+     *         {@code offset}, once it is left
+     */
+    Object getSharedResult(long offset) {
+        return sharedResults.get(offset);
+    }
+
+    /**
+     * Remembers the result of a shared node left by a previous fold, so that
+     * references to it can be resolved.
+     */
+    void putSharedResult(long offset, Object result) {
+        sharedResults.put(offset, result);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void enter(Class<? extends Visitable> visitableClass, long offset, boolean shared) throws IOException {
+        final Method method = foldsToMethods.get(visitableClass);
+        if (method == null)
+            throw new FoldingException(runner.new VisitorRunnerException(
+                    "Failed to find a method folding " + visitableClass +
+                    " for " + runner));
+        frames.add(new Frame(visitableClass, method, shared ? offset : null));
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void value(Object value) throws IOException {
+        final Frame frame = frames.get(frames.size() - 1);
+        if (frame.next == frame.arguments.length)
+            throw new FoldingException(runner.new VisitorRunnerException(
+                    frame.method + " takes too few arguments"));
+        frame.arguments[frame.next++] = value;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void reference(long offset) throws IOException {
+        if (!sharedResults.containsKey(offset))
+            throw new FoldingException(runner.new VisitorRunnerException(
+                    "Cannot fold a node which contains itself"));
+        value(sharedResults.get(offset));
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void leave() throws IOException {
+        final Frame frame = frames.remove(frames.size() - 1);
+        if (frame.next != frame.arguments.length)
+            throw new FoldingException(runner.new VisitorRunnerException(
+                    "The record of " + frame.visitableClass + " has " + frame.next +
+                    " of its " + frame.arguments.length + " members"));
+        final Object folded;
+        try {
+            folded = frame.method.invoke(visitor, frame.arguments);
+        }
+        catch (Exception ex) {
+            throw new FoldingException(runner.new VisitorRunnerException(ex));
+        }
+        if (frame.sharedOffset != null)
+            sharedResults.put(frame.sharedOffset, folded);
+        if (frames.isEmpty())
+            result = folded;
+        else
+            value(folded);
+    }
+
+    /**
+     * Carries a {@link VisitorRunnerException} through
+     * {@link VisitableStreamDecoder#decode}.
+     */
+    static final class FoldingException extends IOException {
+
+        private static final long serialVersionUID = 1L;
+
+        FoldingException(VisitorRunnerException cause) {
+            super(cause.getMessage(), cause);
+        }
+
+        @Override
+        public VisitorRunnerException getCause() {
+            return (VisitorRunnerException) super.getCause();
+        }
+    }
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright 2009 Brice Arnould
+ *
+ * This file is part of VisitOMatic.
+ *
+ * VisitOMatic is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * VisitOMatic is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with VisitOMatic.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.vleu.visitomatic;
+
+import java.io.IOException;
+import net.vleu.visitomatic.VisitorRunner.VisitorRunnerException;
+
+/**
+ * <p>Runs several visits over the same graph of {@link Visitable}s in a single
+ * pass : the members of each node are read once and given to the methods
+ * annotated by {@link FoldOf} of every visit.</p>
+ *
+ * <p>For example, to both measure a list and convert it to an array :</p>
+ * <pre>
+ * FusedVisitorRunner both = VisitorRunner.fuse(LENGTH_RUNNER, TO_ARRAY_RUNNER);
+ * Object[] results = both.visit(list, visitor, visitor);
+ * </pre>
+ *
+ * <p>A FusedVisitorRunner is thread-safe.</p>
+ * @see VisitorRunner#fuse(VisitorRunner[])
+ * @see FoldOf
+ */
+public final class FusedVisitorRunner {
+
+    /** The runners of each visit */
+    private final VisitorRunner[] runners;
+    /** Reads the graph */
+    private final VisitableWalker walker;
+
+    /**
+     * Call {@link VisitorRunner#fuse} to get an instance.
+     */
+    FusedVisitorRunner(VisitorRunner[] runners) {
+        if (runners.length == 0)
+            throw new IllegalArgumentException("Nothing to fuse");
+        this.runners = runners.clone();
+        this.walker = new VisitableWalker();
+    }
+
+    /**
+     * Runs all the visits over the graph starting at {@code visitable}.
+     * @param visitable The root of the graph to visit
+     * @param visitors The visitor to run with each runner, in the order the
+     *        runners were given to {@link VisitorRunner#fuse}
+     * @return The results of each visit, in the order the runners were given
+     *         to {@link VisitorRunner#fuse}
+     * @throws VisitorRunnerException An error occurs during the running of one of the visitors
+     */
+    public Object[] visit(Visitable visitable, Visitor... visitors) throws VisitorRunnerException {
+        if (visitors.length != runners.length)
+            throw new IllegalArgumentException("Expected " + runners.length +
+                                               " visitors, got " +
+                                               visitors.length);
+        final FoldingHandler[] handlers = new FoldingHandler[runners.length];
+        for (int n = 0; n < runners.length; n++)
+            handlers[n] = runners[n].newFoldingHandler(visitors[n]);
+        try {
+            walker.walk(visitable, handlers);
+        }
+        catch (FoldingHandler.FoldingException ex) {
+            throw ex.getCause();
+        }
+        catch (IOException ex) {
+            throw runners[0].new VisitorRunnerException(ex);
+        }
+        final Object[] results = new Object[runners.length];
+        for (int n = 0; n < runners.length; n++)
+            results[n] = handlers[n].getResult();
+        return results;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public String toString() {
+        final StringBuilder result = new StringBuilder("<Fusion of");
+        for (VisitorRunner runner : runners)
+            result.append(' ').append(runner);
+        return result.append('>').toString();
+    }
+}
@@ -0,0 +1,115 @@
+/*
+ * Copyright 2009 Brice Arnould
+ *
+ * This file is part of VisitOMatic.
+ *
+ * VisitOMatic is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * VisitOMatic is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with VisitOMatic.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.vleu.visitomatic;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import net.vleu.visitomatic.VisitorRunner.VisitorRunnerException;
+
+/**
+ * The state of a call to {@link VisitorRunner#visitGraph} : the result of
+ * each {@code Visitable} visited so far, or a mark for those whose visit is
+ * in progress. Like {@link VisitDeadline}, it is found through the current
+ * thread, and only looked up while such a visit is in progress somewhere.
+ */
+final class GraphVisit {
+
+    /** Marks the {@code Visitable}s whose visit is in progress */
+    private final static Object IN_PROGRESS = new Object();
+    /** Stands for a {@code null} result */
+    private final static Object NULL = new Object();
+    /** The number of graph visits in progress in all the threads */
+    private final static AtomicInteger SCOPES = new AtomicInteger();
+    /** The graph visit of the current thread, the innermost one */
+    private final static ThreadLocal<GraphVisit> CURRENT = new ThreadLocal<GraphVisit>();
+    /** The visitor whose visits are tracked */
+    private final Visitor visitor;
+    /** The graph visit this one is nested in, if any */
+    private final GraphVisit parent;
+    /** Associate to {@code Visitable}s their result or {@link #IN_PROGRESS} */
+    private final IdentityTable results;
+
+    private GraphVisit(Visitor visitor, GraphVisit parent) {
+        this.visitor = visitor;
+        this.parent = parent;
+        this.results = new IdentityTable();
+    }
+
+    /**
+     * Tracks the visits of {@code visitor} in the current thread, until the
+     * matching call to {@link #leave}.
+     */
+    static void enter(Visitor visitor) {
+        CURRENT.set(new GraphVisit(visitor, CURRENT.get()));
+        SCOPES.incrementAndGet();
+    }
+
+    /** Ends the last call to {@link #enter} of the current thread. */
+    static void leave() {
+        SCOPES.decrementAndGet();
+        final GraphVisit parent = CURRENT.get().parent;
+        if (parent == null)
+            CURRENT.remove();
+        else
+            CURRENT.set(parent);
+    }
+
+    /**
+     * @return true if a graph visit is in progress in a thread ; it is cheap
+     *         enough to call before each visiting method
+     */
+    static boolean inProgress() {
+        return SCOPES.get() != 0;
+    }
+
+    /**
+     * @return The graph visit of the current thread tracking the visits of
+     *         {@code visitor}, or {@code null} if there is none
+     */
+    static GraphVisit of(Visitor visitor) {
+        for (GraphVisit it = CURRENT.get(); it != null; it = it.parent)
+            if (it.visitor == visitor)
+                return it;
+        return null;
+    }
+
+    /**
+     * Visits a {@code Visitable} unless it was already : returns its result
+     * if its visit is over, or the value of {@link CyclicVisitor#backEdge}
+     * if it is in progress.
+     * @param runner Runs the visit
+     * @param visitable The {@code Visitable} to visit
+     */
+    Object visit(VisitorRunner runner, Visitable visitable) throws VisitorRunnerException {
+        final Object known = results.get(visitable);
+        if (known == IN_PROGRESS) {
+            if (visitor instanceof CyclicVisitor)
+                return ((CyclicVisitor) visitor).backEdge(visitable);
+            else
+                throw runner.new VisitorRunnerException(
+                        "Cycle through " + visitable + " : " + visitor +
+                        " must implement CyclicVisitor to visit it");
+        }
+        else if (known != null)
+            return known == NULL ? null : known;
+        results.put(visitable, IN_PROGRESS);
+        final Object result = runner.dispatch(visitor, visitable);
+        results.put(visitable, result == null ? NULL : result);
+        return result;
+    }
+}
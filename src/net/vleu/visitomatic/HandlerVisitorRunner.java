@@ -0,0 +1,222 @@
+/*
+ * Copyright 2009 Brice Arnould
+ *
+ * This file is part of VisitOMatic.
+ *
+ * VisitOMatic is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * VisitOMatic is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with VisitOMatic.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.vleu.visitomatic;
+
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.FutureTask;
+
+/**
+ * This {@link VisitorRunner} calls the {@link VisitingHandler}s registered
+ * with a {@link VisitorRunnerBuilder}. The reader and the handler of each
+ * class are resolved when it is built, so a visit costs a single lookup on
+ * the class of the {@code Visitable}, and no {@link Method} is involved.
+ */
+final class HandlerVisitorRunner extends VisitorRunner {
+
+    /** Associate to classes of {@code Visitable} how to visit them. It is
+     * never modified. */
+    private final Map<Class<? extends Visitable>, Entry> entries;
+
+    /**
+     * Call {@link VisitorRunnerBuilder#build} to get an instance.
+     */
+    HandlerVisitorRunner(Map<Class<? extends Visitable>, VisitingHandler<?>> handlers) {
+        entries = new HashMap<Class<? extends Visitable>, Entry>();
+        for (Map.Entry<Class<? extends Visitable>, VisitingHandler<?>> it : handlers.entrySet())
+            entries.put(it.getKey(), new Entry(VisitableModel.readerOf(it.getKey()),
+                                               it.getValue()));
+    }
+
+    /** How to visit a class of {@code Visitable} */
+    private static final class Entry {
+
+        /** Reads the members */
+        final VisitableReader reader;
+        /** Visits them */
+        final VisitingHandler<?> handler;
+
+        Entry(VisitableReader reader, VisitingHandler<?> handler) {
+            this.reader = reader;
+            this.handler = handler;
+        }
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public String toString() {
+        return "<VisitorRunner for handlers of " + entries.keySet() + '>';
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public <R> R visit(Visitor visitor, Visitable visitable) throws VisitorRunnerException {
+        if (VisitDeadline.inProgress())
+            VisitDeadline.check(this);
+        if (GraphVisit.inProgress()) {
+            final GraphVisit graph = GraphVisit.of(visitor);
+            if (graph != null) {
+                @SuppressWarnings("unchecked")
+                final R result = (R) graph.visit(this, visitable);
+                return result;
+            }
+        }
+        return this.<R>dispatch(visitor, visitable);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    <R> R dispatch(Visitor visitor, Visitable visitable) throws VisitorRunnerException {
+        final Entry entry;
+        final Object[] values;
+        try {
+            if (visitable instanceof MappedVisitable) {
+                /* Give the handler of the viewed class the view and its members */
+                final MappedVisitable view = (MappedVisitable) visitable;
+                entry = getEntry(view.getVisitableClass());
+                values = view.readValues();
+            }
+            else {
+                entry = getEntry(visitable.getClass());
+                values = entry.reader.readValues(visitable);
+            }
+        }
+        catch (VisitorRunnerException ex) {
+            throw ex;
+        }
+        catch (Exception ex) {
+            throw new VisitorRunnerException(ex);
+        }
+        @SuppressWarnings("unchecked")
+        final R result = (R) entry.handler.visit(this, visitor, values);
+        return result;
+    }
+
+    /** @return How to visit the {@code Visitable}s of this class */
+    private Entry getEntry(Class<? extends Visitable> visitableClass) throws VisitorRunnerException {
+        final Entry result = entries.get(visitableClass);
+        if (result == null)
+            throw new VisitorRunnerException("No handler registered for " +
+                                             visitableClass);
+        return result;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public <R extends Visitable> R rewrite(Visitor visitor, Visitable visitable) throws VisitorRunnerException {
+        @SuppressWarnings("unchecked")
+        final R result = (R) rewrite(visitor, visitable, new Rewrite(), 0);
+        return result;
+    }
+
+    /**
+     * Rewrites the members of a {@code Visitable}, rebuilds it if they
+     * changed, then gives it to its handler if there is one.
+     * @param rewrite Remembers the replaced {@code Visitable}s and holds the
+     *        buffers the members are read in
+     * @param depth The number of ancestors of {@code visitable}
+     */
+    private Visitable rewrite(Visitor visitor, Visitable visitable, Rewrite rewrite,
+                              int depth) throws VisitorRunnerException {
+        final Visitable replacement = rewrite.getReplacement(visitable);
+        if (replacement != null)
+            return replacement;
+        if (VisitDeadline.inProgress())
+            VisitDeadline.check(this);
+        if (visitable instanceof MappedVisitable)
+            throw new VisitorRunnerException("Cannot rewrite " + visitable);
+        final Entry entry = entries.get(visitable.getClass());
+        final VisitableModel model = VisitableModel.of(visitable.getClass());
+        final Visitable result;
+        try {
+            final VisitableReader reader = model.getReader();
+            Object[] values = rewrite.readReferences(reader, visitable, depth);
+            boolean changed = false;
+            for (int n = 1; n < values.length; n++)
+                if (values[n] instanceof Visitable) {
+                    final Visitable member = (Visitable) values[n];
+                    values[n] = rewrite(visitor, member, rewrite, depth + 1);
+                    changed |= values[n] != member;
+                }
+            /* The handler may keep the values, so it gets its own copy */
+            if (changed || entry != null) {
+                values = values.clone();
+                Rewrite.readPrimitives(reader, values);
+            }
+            if (changed)
+                values[0] = model.getCopier().copy(visitable, values);
+            result = entry == null ? (Visitable) values[0]
+                     : (Visitable) entry.handler.visit(this, visitor, values);
+        }
+        catch (VisitorRunnerException ex) {
+            throw ex;
+        }
+        catch (Exception ex) {
+            throw new VisitorRunnerException(ex);
+        }
+        rewrite.setReplacement(visitable, result);
+        return result;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    boolean handles(Class<? extends Visitable> visitableClass) {
+        return entries.containsKey(visitableClass);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    FoldingHandler newFoldingHandler(Visitor visitor) {
+        return new FoldingHandler(this, visitor,
+                                  Collections.<Class<? extends Visitable>, Method>emptyMap());
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public <R> R visit(Visitor visitor, VisitableStreamDecoder decoder) throws VisitorRunnerException, IOException {
+        final FoldingHandler handler = newFoldingHandler(visitor);
+        try {
+            decoder.decode(handler);
+        }
+        catch (FoldingHandler.FoldingException ex) {
+            throw ex.getCause();
+        }
+        @SuppressWarnings("unchecked")
+        R result = (R) handler.getResult();
+        return result;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public <R> FutureTask<R> futureVisit(final Visitor visitor, final Visitable visitable) {
+        final Callable<R> callable = new Callable<R>() {
+
+            /** {@inheritDoc} */
+            @Override
+            public R call() throws VisitorRunnerException {
+                return HandlerVisitorRunner.this.<R>visit(visitor, visitable);
+            }
+        };
+        return new FutureTask<R>(callable);
+    }
+}
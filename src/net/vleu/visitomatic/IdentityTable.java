@@ -0,0 +1,96 @@
+/*
+ * Copyright 2009 Brice Arnould
+ *
+ * This file is part of VisitOMatic.
+ *
+ * VisitOMatic is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * VisitOMatic is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with VisitOMatic.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.vleu.visitomatic;
+
+/**
+ * A map whose keys are compared by identity, stored in a single array with
+ * open addressing : unlike {@link java.util.IdentityHashMap}, it allocates
+ * nothing but its array and doesn't track modifications, which matters for
+ * graphs of tens of millions of nodes. Keys and values can't be
+ * {@code null}.<br />
+ * Instances are not thread-safe.
+ */
+final class IdentityTable {
+
+    /** The keys at even indexes, followed by their values */
+    private Object[] table;
+    /** The number of keys */
+    private int size;
+
+    /** Builds an empty table */
+    IdentityTable() {
+        table = new Object[64];
+    }
+
+    /** @return The index in {@link #table} of the key, or of the slot where to put it */
+    private static int indexOf(Object[] table, Object key) {
+        final int mask = table.length - 2;
+        final int hash = System.identityHashCode(key);
+        /* Multiply by a negative even number to spread the bits, as
+         * IdentityHashMap does */
+        int index = ((hash << 1) - (hash << 8)) & mask;
+        Object it;
+        while ((it = table[index]) != null && it != key)
+            index = (index + 2) & mask;
+        return index;
+    }
+
+    /**
+     * @return The value associated to {@code key}, or {@code null} if there
+     *         is none
+     */
+    Object get(Object key) {
+        return table[indexOf(table, key) + 1];
+    }
+
+    /**
+     * Associates a value to a key, replacing the previous one if any.
+     */
+    void put(Object key, Object value) {
+        int index = indexOf(table, key);
+        if (table[index] == null) {
+            /* Keep the table at most two thirds full */
+            if (3 * ++size > table.length) {
+                resize();
+                index = indexOf(table, key);
+            }
+            table[index] = key;
+        }
+        table[index + 1] = value;
+    }
+
+    /** Doubles the capacity */
+    private void resize() {
+        final Object[] old = table;
+        if (old.length >= 1 << 30)
+            throw new IllegalStateException("Too many keys");
+        table = new Object[old.length * 2];
+        for (int n = 0; n < old.length; n += 2)
+            if (old[n] != null) {
+                final int index = indexOf(table, old[n]);
+                table[index] = old[n];
+                table[index + 1] = old[n + 1];
+            }
+    }
+
+    /** @return The number of keys */
+    int size() {
+        return size;
+    }
+}
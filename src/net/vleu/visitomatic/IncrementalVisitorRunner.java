@@ -0,0 +1,272 @@
+/*
+ * Copyright 2009 Brice Arnould
+ *
+ * This file is part of VisitOMatic.
+ *
+ * VisitOMatic is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * VisitOMatic is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with VisitOMatic.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.vleu.visitomatic;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.FutureTask;
+
+/**
+ * <p>This {@link VisitorRunner} remembers the result of the visit of each
+ * {@link Visitable}, and which visits used it. Visiting a {@code Visitable}
+ * again returns the remembered result, until {@link #invalidate} is called
+ * for it or for one of its descendants.</p>
+ *
+ * <p>Results are only remembered through visits that go through this runner,
+ * so {@code VisitingMethod}s must use it to visit the members of their
+ * {@code Visitable}s. A remembered result is only reused for the visitor
+ * that computed it.</p>
+ *
+ * <p>Visitables are remembered until {@link #invalidate} or {@link #clear}
+ * are called. A visit that overlaps with the invalidation of one of the
+ * {@code Visitable}s it used doesn't remember its result, nor do the
+ * visits that used it.</p>
+ *
+ * <p>An IncrementalVisitorRunner is thread-safe. The results are spread
+ * over several independently locked stripes, so concurrent visits rarely
+ * contend.</p>
+ * @see VisitorRunner#getIncrementalInstance
+ */
+public final class IncrementalVisitorRunner extends VisitorRunner {
+
+    /** The number of stripes, a power of two */
+    private final static int STRIPES = 16;
+    /** The runner that computes the results */
+    private final VisitorRunner delegate;
+    /** Associate to the {@code Visitable}s visited so far what we know about
+     * them, by stripe. Each is guarded by itself. */
+    private final Stripe[] stripes;
+    /** The visits in progress in the current thread, the innermost last.
+     * Only set while the thread is visiting. */
+    private final ThreadLocal<ArrayList<Visit>> visiting;
+
+    /**
+     * Call {@link VisitorRunner#getIncrementalInstance} to get an instance.
+     */
+    IncrementalVisitorRunner(VisitorRunner delegate) {
+        this.delegate = delegate;
+        stripes = new Stripe[STRIPES];
+        for (int n = 0; n < STRIPES; n++)
+            stripes[n] = new Stripe();
+        visiting = new ThreadLocal<ArrayList<Visit>>() {
+
+            @Override
+            protected ArrayList<Visit> initialValue() {
+                return new ArrayList<Visit>();
+            }
+        };
+    }
+
+    /**
+     * What we know about a visited {@code Visitable}. Guarded by the stripe
+     * of the {@code Visitable}.
+     */
+    private static final class Entry {
+
+        /** The visitor that computed {@link #result} */
+        Visitor visitor;
+        /** The result of the last visit */
+        Object result;
+        /** Is {@link #result} up to date ? */
+        boolean valid;
+        /** Incremented each time the {@code Visitable} is invalidated, so
+         * that the visits that overlap with it don't store their result */
+        long version;
+        /** The {@code Visitable}s whose visit used this one */
+        final Set<Visitable> parents =
+                Collections.newSetFromMap(new IdentityHashMap<Visitable, Boolean>());
+    }
+
+    /** What we know about some {@code Visitable}s */
+    private static final class Stripe extends IdentityHashMap<Visitable, Entry> {
+
+        private static final long serialVersionUID = 1L;
+    }
+
+    /** A visit in progress */
+    private static final class Visit {
+
+        /** The visited {@code Visitable} */
+        final Visitable visitable;
+        /** Its entry */
+        final Entry entry;
+        /** The version of {@link #entry} when the visit started */
+        final long version;
+
+        Visit(Visitable visitable, Entry entry, long version) {
+            this.visitable = visitable;
+            this.entry = entry;
+            this.version = version;
+        }
+    }
+
+    /** @return The stripe of a {@code Visitable} */
+    private Stripe stripeOf(Visitable visitable) {
+        final int hash = System.identityHashCode(visitable);
+        /* The low bits of identity hashes are fine, but spread them anyway */
+        return stripes[(hash ^ (hash >>> 16)) & (STRIPES - 1)];
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public String toString() {
+        return "<Incremental " + delegate + '>';
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>This version returns the remembered result if it is still valid.</p>
+     */
+    @Override
+    public <R> R visit(Visitor visitor, Visitable visitable) throws VisitorRunnerException {
+        final ArrayList<Visit> stack = visiting.get();
+        final Visit parent = stack.isEmpty() ? null : stack.get(stack.size() - 1);
+        final Stripe stripe = stripeOf(visitable);
+        final Visit current;
+        synchronized (stripe) {
+            Entry entry = stripe.get(visitable);
+            if (entry != null && entry.valid && entry.visitor == visitor) {
+                if (parent != null)
+                    entry.parents.add(parent.visitable);
+                @SuppressWarnings("unchecked")
+                R result = (R) entry.result;
+                return result;
+            }
+            if (entry == null) {
+                entry = new Entry();
+                stripe.put(visitable, entry);
+            }
+            current = new Visit(visitable, entry, entry.version);
+        }
+        /* Compute it, recording the visitables it uses */
+        final R result;
+        stack.add(current);
+        try {
+            result = delegate.<R>visit(visitor, visitable);
+        }
+        finally {
+            stack.remove(stack.size() - 1);
+            /* Don't keep a stack for threads that are done visiting */
+            if (stack.isEmpty())
+                visiting.remove();
+        }
+        final boolean stale;
+        synchronized (stripe) {
+            final Entry entry = current.entry;
+            stale = entry.version != current.version;
+            if (!stale) {
+                entry.visitor = visitor;
+                entry.result = result;
+                entry.valid = true;
+                if (parent != null)
+                    entry.parents.add(parent.visitable);
+            }
+        }
+        /* The result of the parent is built from a stale one */
+        if (stale && parent != null)
+            synchronized (stripeOf(parent.visitable)) {
+                parent.entry.version++;
+            }
+        return result;
+    }
+
+    /**
+     * Forgets the result of the visit of a {@code Visitable} and of all the
+     * {@code Visitable}s whose visit used it. This must be called after
+     * modifying a {@code Visitable}, before visiting it again. The visits in
+     * progress that use it will not remember their result.
+     * @param visitable The modified {@code Visitable}
+     */
+    public void invalidate(Visitable visitable) {
+        final ArrayList<Visitable> toInvalidate = new ArrayList<Visitable>();
+        toInvalidate.add(visitable);
+        while (!toInvalidate.isEmpty()) {
+            final Visitable it = toInvalidate.remove(toInvalidate.size() - 1);
+            final Stripe stripe = stripeOf(it);
+            synchronized (stripe) {
+                final Entry entry = stripe.remove(it);
+                if (entry != null) {
+                    entry.version++;
+                    entry.valid = false;
+                    toInvalidate.addAll(entry.parents);
+                }
+            }
+        }
+    }
+
+    /** Forgets all the remembered results. */
+    public void clear() {
+        for (Stripe stripe : stripes)
+            synchronized (stripe) {
+                for (Entry entry : stripe.values()) {
+                    entry.version++;
+                    entry.valid = false;
+                }
+                stripe.clear();
+            }
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public <R extends Visitable> R rewrite(Visitor visitor, Visitable visitable) throws VisitorRunnerException {
+        return delegate.<R>rewrite(visitor, visitable);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public <R> R visit(Visitor visitor, VisitableStreamDecoder decoder) throws VisitorRunnerException, IOException {
+        return delegate.<R>visit(visitor, decoder);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    <R> R dispatchPair(Visitor visitor, Visitable left, Visitable right) throws VisitorRunnerException {
+        return delegate.<R>dispatchPair(visitor, left, right);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    boolean handles(Class<? extends Visitable> visitableClass) {
+        return delegate.handles(visitableClass);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    FoldingHandler newFoldingHandler(Visitor visitor) {
+        return delegate.newFoldingHandler(visitor);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public <R> FutureTask<R> futureVisit(final Visitor visitor, final Visitable visitable) {
+        final Callable<R> callable = new Callable<R>() {
+
+            /** {@inheritDoc} */
+            @Override
+            public R call() throws VisitorRunnerException {
+                return IncrementalVisitorRunner.this.<R>visit(visitor, visitable);
+            }
+        };
+        return new FutureTask<R>(callable);
+    }
+}
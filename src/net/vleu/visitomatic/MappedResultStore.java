@@ -0,0 +1,291 @@
+/*
+ * Copyright 2009 Brice Arnould
+ *
+ * This file is part of VisitOMatic.
+ *
+ * VisitOMatic is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * VisitOMatic is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with VisitOMatic.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.vleu.visitomatic;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * <p>A persistent map from {@link MerkleHash}es to byte arrays, stored in a
+ * memory mapped file of fixed size.</p>
+ *
+ * <p>The file is a header followed by a log of records. The header holds a
+ * magic number, a version and the offset of the end of the log. Each record
+ * holds a key, the length and the CRC32 of its data, then the data. Records
+ * are appended ; the end of the log is written after the record, so a
+ * record torn by a crash is ignored when the file is opened again. A
+ * record with an invalid checksum ends the log as well.</p>
+ *
+ * <p>When a record does not fit, the store is compacted : the most recently
+ * used records are kept, up to half of the capacity, and the others are
+ * evicted. Usage is only tracked in memory, so after the file is opened
+ * again the records are ranked by their position in the log.</p>
+ *
+ * <p>All methods are synchronized.</p>
+ * @see PersistentVisitorRunner
+ */
+final class MappedResultStore implements Closeable {
+
+    /** Identifies the files of result stores */
+    private static final int MAGIC = 0x564F4D52;
+    /** The version of the layout */
+    private static final byte VERSION = 1;
+    /** Where the offset of the end of the log is stored */
+    private static final int END_OFFSET = 8;
+    /** The size of the header, where the log starts */
+    private static final int HEADER = 16;
+    /** The size of a record, its data excluded */
+    private static final int RECORD_HEADER = 16 + 4 + 4;
+
+    /** The file we map */
+    private final RandomAccessFile file;
+    /** The mapping of {@link #file} */
+    private final MappedByteBuffer buffer;
+    /** Associate to keys their record */
+    private final Map<MerkleHash, Entry> entries = new HashMap<MerkleHash, Entry>();
+    /** Where the next record will be written */
+    private int end;
+    /** Increases at each use of an entry */
+    private long clock;
+    /** The number of records evicted so far */
+    private long evictions;
+
+    /** Where a record is, and when it was last used */
+    private static final class Entry {
+
+        /** Where its record starts */
+        int offset;
+        /** The length of its data */
+        final int length;
+        /** The value of {@link MappedResultStore#clock} at its last use */
+        long lastUse;
+
+        Entry(int offset, int length, long lastUse) {
+            this.offset = offset;
+            this.length = length;
+            this.lastUse = lastUse;
+        }
+    }
+
+    private MappedResultStore(RandomAccessFile file, MappedByteBuffer buffer) {
+        this.file = file;
+        this.buffer = buffer;
+    }
+
+    /**
+     * Opens a store, creating it if needed. A file which is not a store, or
+     * whose capacity differs, is reset.
+     * @param location The file to map
+     * @param capacity The size of the file, in bytes
+     * @return The store
+     * @throws IOException If the file cannot be mapped
+     */
+    static MappedResultStore open(File location, int capacity) throws IOException {
+        if (capacity < HEADER + RECORD_HEADER)
+            throw new IllegalArgumentException("A store needs at least " +
+                                               (HEADER + RECORD_HEADER) + " bytes");
+        final RandomAccessFile file = new RandomAccessFile(location, "rw");
+        final MappedResultStore result;
+        try {
+            final boolean reset = file.length() != capacity;
+            file.setLength(capacity);
+            result = new MappedResultStore(file, file.getChannel().map(
+                    FileChannel.MapMode.READ_WRITE, 0, capacity));
+            result.load(reset);
+        }
+        catch (IOException ex) {
+            file.close();
+            throw ex;
+        }
+        return result;
+    }
+
+    /** Reads the header and indexes the valid records */
+    private void load(boolean reset) {
+        end = HEADER;
+        if (reset || buffer.getInt(0) != MAGIC || buffer.get(4) != VERSION) {
+            buffer.putInt(0, MAGIC);
+            buffer.put(4, VERSION);
+            writeEnd();
+            return;
+        }
+        final int logEnd = buffer.getInt(END_OFFSET);
+        int offset = HEADER;
+        while (offset + RECORD_HEADER <= logEnd) {
+            final int length = buffer.getInt(offset + 16);
+            if (length < 0 || offset + RECORD_HEADER + length > logEnd ||
+                checksum(offset + RECORD_HEADER, length) != buffer.getInt(offset + 20))
+                break;
+            entries.put(new MerkleHash(buffer, offset),
+                        new Entry(offset, length, clock++));
+            offset += RECORD_HEADER + length;
+        }
+        end = offset;
+        /* Drop what follows the last valid record */
+        writeEnd();
+    }
+
+    /**
+     * @param key The key of the record
+     * @return A copy of its data, or {@code null} if there is none
+     */
+    synchronized byte[] get(MerkleHash key) {
+        final Entry entry = entries.get(key);
+        if (entry == null)
+            return null;
+        entry.lastUse = clock++;
+        final byte[] result = new byte[entry.length];
+        final ByteBuffer view = buffer.duplicate();
+        view.position(entry.offset + RECORD_HEADER);
+        view.get(result);
+        return result;
+    }
+
+    /**
+     * Stores data, unless it is larger than half of the capacity, compacting
+     * the store if needed.
+     * @param key The key of the record
+     * @param data The data to store
+     */
+    synchronized void put(MerkleHash key, byte[] data) {
+        final int size = RECORD_HEADER + data.length;
+        if (size > (buffer.capacity() - HEADER) / 2)
+            return;
+        final Entry known = entries.get(key);
+        if (known != null) {
+            known.lastUse = clock++;
+            return;
+        }
+        if (end + size > buffer.capacity())
+            compact();
+        key.write(buffer, end);
+        buffer.putInt(end + 16, data.length);
+        final ByteBuffer view = buffer.duplicate();
+        view.position(end + RECORD_HEADER);
+        view.put(data);
+        buffer.putInt(end + 20, checksum(end + RECORD_HEADER, data.length));
+        entries.put(key, new Entry(end, data.length, clock++));
+        end += size;
+        writeEnd();
+    }
+
+    /**
+     * Keeps the most recently used records, up to half of the capacity, and
+     * moves them to the start of the log.
+     */
+    private void compact() {
+        final List<Map.Entry<MerkleHash, Entry>> byUse =
+                new ArrayList<Map.Entry<MerkleHash, Entry>>(entries.entrySet());
+        Collections.sort(byUse, new Comparator<Map.Entry<MerkleHash, Entry>>() {
+
+            @Override
+            public int compare(Map.Entry<MerkleHash, Entry> o1, Map.Entry<MerkleHash, Entry> o2) {
+                final long u1 = o1.getValue().lastUse, u2 = o2.getValue().lastUse;
+                return u1 > u2 ? -1 : (u1 == u2 ? 0 : 1);
+            }
+        });
+        final int budget = (buffer.capacity() - HEADER) / 2;
+        final List<Entry> kept = new ArrayList<Entry>();
+        int used = 0;
+        for (Map.Entry<MerkleHash, Entry> entry : byUse) {
+            final int size = RECORD_HEADER + entry.getValue().length;
+            if (used + size <= budget) {
+                used += size;
+                kept.add(entry.getValue());
+            }
+            else {
+                entries.remove(entry.getKey());
+                evictions++;
+            }
+        }
+        /* The log is invalid while records move */
+        end = HEADER;
+        writeEnd();
+        Collections.sort(kept, new Comparator<Entry>() {
+
+            @Override
+            public int compare(Entry o1, Entry o2) {
+                return o1.offset < o2.offset ? -1 : (o1.offset == o2.offset ? 0 : 1);
+            }
+        });
+        for (Entry entry : kept) {
+            final int size = RECORD_HEADER + entry.length;
+            if (entry.offset != end) {
+                /* Copy through the heap, as the source and target may overlap */
+                final byte[] record = new byte[size];
+                final ByteBuffer view = buffer.duplicate();
+                view.position(entry.offset);
+                view.get(record);
+                view.position(end);
+                view.put(record);
+                entry.offset = end;
+            }
+            end += size;
+        }
+        writeEnd();
+    }
+
+    /** @return The CRC32 of these bytes of the mapping */
+    private int checksum(int offset, int length) {
+        final ByteBuffer view = buffer.duplicate();
+        view.position(offset).limit(offset + length);
+        final byte[] bytes = new byte[length];
+        view.get(bytes);
+        final CRC32 crc = new CRC32();
+        crc.update(bytes);
+        return (int) crc.getValue();
+    }
+
+    /** Writes {@link #end} in the header */
+    private void writeEnd() {
+        buffer.putInt(END_OFFSET, end);
+    }
+
+    /** @return The number of records stored */
+    synchronized int size() {
+        return entries.size();
+    }
+
+    /** @return The number of records evicted since the store was opened */
+    synchronized long getEvictionCount() {
+        return evictions;
+    }
+
+    /**
+     * Writes the mapping back to the file and closes it.
+     * @throws IOException If closing fails
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        buffer.force();
+        file.close();
+    }
+}
@@ -0,0 +1,106 @@
+/*
+ * Copyright 2009 Brice Arnould
+ *
+ * This file is part of VisitOMatic.
+ *
+ * VisitOMatic is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * VisitOMatic is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with VisitOMatic.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.vleu.visitomatic;
+
+import java.io.IOException;
+
+/**
+ * A flyweight view of a node of {@link MappedVisitables}. It only holds the
+ * position of the node and decodes its members on demand.<br />
+ * When given a MappedVisitable, a {@link VisitorRunner} calls the method
+ * annotated by {@link ViewOf} the class of the node it views.
+ * @see MappedVisitables
+ * @see ViewOf
+ */
+public final class MappedVisitable implements Visitable {
+
+    /** The graph this node is part of */
+    private final MappedVisitables graph;
+    /** Where the record of this node starts in {@link #graph} */
+    private final int offset;
+
+    MappedVisitable(MappedVisitables graph, int offset) {
+        this.graph = graph;
+        this.offset = offset;
+    }
+
+    /** @return The class of the {@code Visitable} viewed by this object */
+    public Class<? extends Visitable> getVisitableClass() {
+        return graph.getVisitableClass(offset);
+    }
+
+    /**
+     * @return the size of the return value of {@link #readValues()}, that is
+     * the number of members of the viewed {@code Visitable} plus one.
+     */
+    public int getNumberOfValues() {
+        return graph.getNumberOfMembers(offset) + 1;
+    }
+
+    /**
+     * Decodes the member of the viewed {@code Visitable} at a given position.
+     * @param position The {@link ToVisit#position()} of the member
+     * @return The member, which is a {@code MappedVisitable} if the member was
+     *         a {@code Visitable}
+     * @throws IOException If the graph is corrupted
+     */
+    public Object getValue(int position) throws IOException {
+        return graph.readValue(offset, position);
+    }
+
+    /**
+     * Decodes all the members of the viewed {@code Visitable}.
+     * @return An array containing this object and the members of the viewed
+     *         {@code Visitable}, in the order specified by {@code ToVisit}
+     * @throws IOException If the graph is corrupted
+     * @see VisitableReader#readValues(Visitable)
+     */
+    public Object[] readValues() throws IOException {
+        final Object[] result = new Object[getNumberOfValues()];
+        result[0] = this;
+        graph.readValues(offset, result);
+        return result;
+    }
+
+    /**
+     * {@inheritDoc}
+     * Two views are equal if they view the same node of the same graph.
+     */
+    @Override
+    public boolean equals(Object other) {
+        if (other instanceof MappedVisitable) {
+            final MappedVisitable otherView = (MappedVisitable) other;
+            return otherView.graph == graph && otherView.offset == offset;
+        }
+        else
+            return false;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public int hashCode() {
+        return 41 * System.identityHashCode(graph) + offset;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public String toString() {
+        return "<View of " + getVisitableClass().getName() + '@' + offset + '>';
+    }
+}
@@ -0,0 +1,240 @@
+/*
+ * Copyright 2009 Brice Arnould
+ *
+ * This file is part of VisitOMatic.
+ *
+ * VisitOMatic is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * VisitOMatic is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with VisitOMatic.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.vleu.visitomatic;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+
+/**
+ * <p>A graph of {@link Visitable}s written by {@link VisitableWriter} and read
+ * in place, without deserializing it.</p>
+ *
+ * <p>Nodes are exposed as {@link MappedVisitable} flyweights, which a
+ * {@link VisitorRunner} dispatches to methods annotated by {@link ViewOf}.
+ * Opening a graph only reads its class table, so the time it takes and the
+ * memory it uses do not depend on the size of the graph. The content of the
+ * file is left to the operating system, which pages it in when it is
+ * visited.</p>
+ *
+ * <p>Instances are immutable and can be visited from many threads.
+ * A mapped file is limited to 2GB.</p>
+ * @see VisitableWriter
+ * @see ViewOf
+ */
+public final class MappedVisitables {
+
+    /** The encoded graph, only accessed through absolute reads */
+    private final ByteBuffer buffer;
+    /** Associate to class identifiers the corresponding classes */
+    private final Class<? extends Visitable>[] classes;
+    /** Associate to class identifiers the number of members of the class */
+    private final int[] numbersOfMembers;
+    /** Where the root node record starts */
+    private final int rootOffset;
+
+    /**
+     * Maps a file written by {@link VisitableWriter} in memory.
+     * @param file The file to map
+     * @return The mapped graph
+     * @throws IOException If the file cannot be mapped or isn't a valid graph
+     */
+    public static MappedVisitables map(File file) throws IOException {
+        final RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+        try {
+            final FileChannel channel = randomAccessFile.getChannel();
+            if (channel.size() > Integer.MAX_VALUE)
+                throw new IOException(file + " is too big to be mapped");
+            /* The mapping stays valid after the channel is closed */
+            return new MappedVisitables(channel.map(
+                    FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        }
+        finally {
+            randomAccessFile.close();
+        }
+    }
+
+    /**
+     * Reads a graph written by {@link VisitableWriter} from a buffer. The
+     * buffer is shared, not copied, and must not be modified.
+     * @param buffer The buffer containing the graph
+     * @return The graph
+     * @throws IOException If the buffer doesn't contain a valid graph
+     */
+    public static MappedVisitables wrap(ByteBuffer buffer) throws IOException {
+        return new MappedVisitables(buffer.duplicate());
+    }
+
+    /** Reads the class table from the header */
+    @SuppressWarnings("unchecked")
+    private MappedVisitables(ByteBuffer buffer) throws IOException {
+        this.buffer = buffer;
+        if (buffer.limit() < 5 || buffer.getInt(0) != VisitableFormat.MAGIC ||
+            buffer.get(4) != VisitableFormat.VERSION)
+            throw new IOException("Not a graph of Visitables, or of an unsupported version");
+        int offset = 5;
+        final long numberOfClasses = VisitableFormat.readVarLong(buffer, offset);
+        offset += VisitableFormat.sizeOfVarLong(numberOfClasses);
+        classes = (Class<? extends Visitable>[]) new Class<?>[(int) numberOfClasses];
+        numbersOfMembers = new int[classes.length];
+        for (int n = 0; n < classes.length; n++) {
+            final String name =
+                    (String) VisitableFormat.readLeaf(buffer, offset,
+                                                      VisitableFormat.TAG_STRING);
+            offset += VisitableFormat.sizeOfLeaf(buffer, offset,
+                                                 VisitableFormat.TAG_STRING);
+            final long numberOfMembers = VisitableFormat.readVarLong(buffer,
+                                                                     offset);
+            offset += VisitableFormat.sizeOfVarLong(numberOfMembers);
+            classes[n] = VisitableFormat.loadClass(name, (int) numberOfMembers);
+            numbersOfMembers[n] = (int) numberOfMembers;
+        }
+        rootOffset = offset;
+    }
+
+    /** @return A view of the root of the graph */
+    public MappedVisitable getRoot() {
+        return new MappedVisitable(this, rootOffset);
+    }
+
+    /** @return Where the record of the root node starts */
+    int getRootOffset() {
+        return rootOffset;
+    }
+
+    /** @return The size of the encoded graph, in bytes */
+    int size() {
+        return buffer.limit();
+    }
+
+    /** Gives the encoded graph to a digest */
+    void digest(MessageDigest digest) {
+        final ByteBuffer bytes = buffer.duplicate();
+        bytes.position(0);
+        digest.update(bytes);
+    }
+
+    /** @return The tag of the value that starts at {@code p} */
+    byte getTag(int p) {
+        return buffer.get(p);
+    }
+
+    /** @return Where the node referred to by the reference at {@code p} starts */
+    int getReferencedOffset(int p) {
+        return (int) buffer.getLong(p + 1);
+    }
+
+    /** @return The class of the node whose record starts there */
+    Class<? extends Visitable> getVisitableClass(int offset) {
+        return classes[(int) VisitableFormat.readVarLong(buffer, offset)];
+    }
+
+    /** @return The number of members of the node whose record starts there */
+    int getNumberOfMembers(int offset) {
+        return numbersOfMembers[(int) VisitableFormat.readVarLong(buffer, offset)];
+    }
+
+    /**
+     * Decodes the members of the node whose record starts at {@code offset}
+     * and stores them in {@code result}, starting at index 1.
+     * @param offset Where the node record starts
+     * @param result An array big enough to contain the members after its first element
+     */
+    void readValues(int offset, Object[] result) throws IOException {
+        final int end = getEndOffset(offset);
+        int n = 1;
+        for (int p = getPayloadOffset(offset); p < end; n++) {
+            result[n] = readValue(p);
+            p = skipValue(p);
+        }
+    }
+
+    /**
+     * Decodes a single member of the node whose record starts at {@code offset}.
+     * @param offset Where the node record starts
+     * @param position The {@link ToVisit#position()} of the member
+     */
+    Object readValue(int offset, int position) throws IOException {
+        final int end = getEndOffset(offset);
+        int p = getPayloadOffset(offset);
+        for (int n = 0; n < position && p < end; n++)
+            p = skipValue(p);
+        if (p >= end)
+            throw new IndexOutOfBoundsException("No member at position " +
+                                                position);
+        return readValue(p);
+    }
+
+    /** Decodes the tagged value that starts at {@code p} */
+    Object readValue(int p) throws IOException {
+        final byte tag = buffer.get(p);
+        switch (tag) {
+            case VisitableFormat.TAG_NULL:
+                return null;
+            case VisitableFormat.TAG_NODE:
+            case VisitableFormat.TAG_SHARED_NODE:
+                return new MappedVisitable(this, p + 1);
+            case VisitableFormat.TAG_REFERENCE:
+                return new MappedVisitable(this, (int) buffer.getLong(p + 1));
+            default:
+                return VisitableFormat.readLeaf(buffer, p + 1, tag);
+        }
+    }
+
+    /** @return Where the tagged value that starts at {@code p} ends */
+    int skipValue(int p) {
+        final byte tag = buffer.get(p);
+        switch (tag) {
+            case VisitableFormat.TAG_NULL:
+                return p + 1;
+            case VisitableFormat.TAG_NODE:
+            case VisitableFormat.TAG_SHARED_NODE:
+                return getEndOffset(p + 1);
+            case VisitableFormat.TAG_REFERENCE:
+                return p + 9;
+            default:
+                try {
+                    return p + 1 + VisitableFormat.sizeOfLeaf(buffer, p + 1, tag);
+                }
+                catch (IOException ex) {
+                    throw new IllegalStateException("Corrupted graph", ex);
+                }
+        }
+    }
+
+    /** @return Where the members of the node whose record starts there begin */
+    int getPayloadOffset(int offset) {
+        offset += VisitableFormat.sizeOfVarLong(
+                VisitableFormat.readVarLong(buffer, offset));
+        return offset + VisitableFormat.sizeOfVarLong(
+                VisitableFormat.readVarLong(buffer, offset));
+    }
+
+    /** @return Where the node record starting there ends */
+    int getEndOffset(int offset) {
+        offset += VisitableFormat.sizeOfVarLong(
+                VisitableFormat.readVarLong(buffer, offset));
+        final long payloadLength = VisitableFormat.readVarLong(buffer, offset);
+        return offset + VisitableFormat.sizeOfVarLong(payloadLength) +
+               (int) payloadLength;
+    }
+}
@@ -0,0 +1,53 @@
+/*
+ * Copyright 2009 Brice Arnould
+ *
+ * This file is part of VisitOMatic.
+ *
+ * VisitOMatic is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * VisitOMatic is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with VisitOMatic.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.vleu.visitomatic;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Restricts a parameter of a {@link VisitingMethod} to members of a given
+ * class, allowing to match patterns over the members of a
+ * {@link Visitable} and not only over its class.<br />
+ * Several methods, necessarily with different names, may then take the
+ * same types of arguments : the {@link VisitorRunner} calls the most
+ * specific one whose patterns match.
+ * For example, to handle additions of an integer apart :
+ * <pre>
+ * &#64;VisitingMethod(visitName="sum")
+ * private Integer sumInteger(Plus it, &#64;Matching(JustInteger.class) PlusOrJustInteger a,
+ *                            PlusOrJustInteger b)
+ *
+ * &#64;VisitingMethod(visitName="sum")
+ * private Integer sum(Plus it, PlusOrJustInteger a, PlusOrJustInteger b)
+ * </pre>
+ * A {@code null} member never matches.
+ * @see VisitingMethod
+ */
+@Documented
+@Retention(RetentionPolicy.RUNTIME)
+@Target({ElementType.PARAMETER})// This annotation can only be applied to parameters.
+public @interface Matching {
+
+    /** The class the member must be an instance of. */
+    Class<?> value();
+}
@@ -0,0 +1,223 @@
+/*
+ * Copyright 2009 Brice Arnould
+ *
+ * This file is part of VisitOMatic.
+ *
+ * VisitOMatic is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * VisitOMatic is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with VisitOMatic.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.vleu.visitomatic;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/**
+ * <p>A 128 bits structural hash of a graph of {@link Visitable}s, in the way
+ * of a Merkle tree : the hash of a node is computed from its class, its
+ * leaf members and the hashes of its {@code Visitable} members, as read by
+ * a {@link VisitableReader}. Two graphs with the same structure and the
+ * same values have the same hash, whatever their identities, and a change
+ * anywhere in a graph changes the hash of all the nodes above it.</p>
+ *
+ * <p>The hashes are truncated SHA-256 digests. Members must either be
+ * {@code null}, {@code Visitable}s, boxed primitives or {@code String}s,
+ * like for {@link VisitableWriter}, and the graph must not have cycles.
+ * Instances are immutable.</p>
+ * @see PersistentVisitorRunner
+ */
+public final class MerkleHash {
+
+    /** Stands for a {@code Visitable} member in the hashed bytes */
+    private static final byte TAG_HASH = -1;
+
+    /** The first 64 bits */
+    private final long high;
+    /** The last 64 bits */
+    private final long low;
+
+    private MerkleHash(byte[] digest) {
+        final ByteBuffer bytes = ByteBuffer.wrap(digest);
+        high = bytes.getLong();
+        low = bytes.getLong();
+    }
+
+    /**
+     * Hashes a graph. Its shared subgraphs are only hashed once.
+     * @param visitable The root of the graph
+     * @return Its hash
+     * @throws IllegalArgumentException A member can't be read or hashed
+     */
+    public static MerkleHash of(Visitable visitable) throws IllegalArgumentException {
+        return new Hasher().hash(visitable);
+    }
+
+    /**
+     * Hashes graphs, remembering the hashes of the {@code Visitable}s it
+     * met. The digest and the buffer the nodes are written in are reused
+     * from one node to the next. Instances are not thread-safe.
+     */
+    static final class Hasher {
+
+        /** Associate to {@code Visitable}s their hash */
+        private final Map<Visitable, MerkleHash> hashes = new IdentityHashMap<Visitable, MerkleHash>();
+        /** Computes the hashes */
+        private final MessageDigest digest;
+        /** Receives the bytes to hash */
+        private final Buffer buffer = new Buffer();
+        /** Writes in {@link #buffer} */
+        private final DataOutputStream out = new DataOutputStream(buffer);
+        /** Receives the digests */
+        private final byte[] result;
+
+        Hasher() {
+            try {
+                digest = MessageDigest.getInstance("SHA-256");
+            }
+            catch (NoSuchAlgorithmException ex) {
+                throw new IllegalStateException("SHA-256 is not supported", ex);
+            }
+            result = new byte[digest.getDigestLength()];
+        }
+
+        /**
+         * Does the same as {@link MerkleHash#of(Visitable)}, reusing the
+         * hashes of the {@code Visitable}s that were already hashed.
+         */
+        MerkleHash hash(Visitable visitable) throws IllegalArgumentException {
+            final MerkleHash known = hashes.get(visitable);
+            if (known != null)
+                return known;
+            final Object[] values;
+            try {
+                values = VisitableModel.readerOf(visitable.getClass()).readValues(visitable);
+            }
+            catch (Exception ex) {
+                throw new IllegalArgumentException("Failed to read " + visitable, ex);
+            }
+            /* Hash the members first, as it uses the buffer */
+            for (int n = 1; n < values.length; n++)
+                if (values[n] instanceof Visitable)
+                    values[n] = hash((Visitable) values[n]);
+            buffer.reset();
+            try {
+                out.writeUTF(visitable.getClass().getName());
+                for (int n = 1; n < values.length; n++)
+                    if (values[n] == null)
+                        out.writeByte(VisitableFormat.TAG_NULL);
+                    else if (values[n] instanceof MerkleHash) {
+                        final MerkleHash member = (MerkleHash) values[n];
+                        out.writeByte(TAG_HASH);
+                        out.writeLong(member.high);
+                        out.writeLong(member.low);
+                    }
+                    else {
+                        final byte tag = VisitableFormat.tagOf(values[n]);
+                        out.writeByte(tag);
+                        VisitableFormat.writeLeaf(out, tag, values[n]);
+                    }
+            }
+            catch (IOException ex) {
+                throw new IllegalStateException("Failed to write in memory", ex);
+            }
+            final MerkleHash hash = digest();
+            hashes.put(visitable, hash);
+            return hash;
+        }
+
+        /**
+         * @param namespace Identifies a use of the hashes, for example a visit
+         * @return The hash of this hash in this namespace
+         */
+        MerkleHash within(MerkleHash hash, String namespace) {
+            buffer.reset();
+            try {
+                out.writeUTF(namespace);
+                out.writeLong(hash.high);
+                out.writeLong(hash.low);
+            }
+            catch (IOException ex) {
+                throw new IllegalStateException("Failed to write in memory", ex);
+            }
+            return digest();
+        }
+
+        /** @return The hash of the bytes in the buffer */
+        private MerkleHash digest() {
+            buffer.update(digest);
+            try {
+                digest.digest(result, 0, result.length);
+            }
+            catch (DigestException ex) {
+                throw new IllegalStateException("Failed to compute a digest", ex);
+            }
+            return new MerkleHash(result);
+        }
+    }
+
+    /** A ByteArrayOutputStream whose bytes can be hashed without copying them */
+    private static final class Buffer extends ByteArrayOutputStream {
+
+        /** Gives the bytes written so far to a digest */
+        void update(MessageDigest digest) {
+            digest.update(buf, 0, count);
+        }
+    }
+
+    /**
+     * Reads a hash written by {@link #write}.
+     * @param buffer The buffer to read
+     * @param offset Where the hash starts
+     */
+    MerkleHash(ByteBuffer buffer, int offset) {
+        high = buffer.getLong(offset);
+        low = buffer.getLong(offset + 8);
+    }
+
+    /**
+     * Writes this hash in 16 bytes.
+     * @param buffer The buffer to write
+     * @param offset Where to write it
+     */
+    void write(ByteBuffer buffer, int offset) {
+        buffer.putLong(offset, high);
+        buffer.putLong(offset + 8, low);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public boolean equals(Object other) {
+        if (!(other instanceof MerkleHash))
+            return false;
+        final MerkleHash hash = (MerkleHash) other;
+        return hash.high == high && hash.low == low;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public int hashCode() {
+        return (int) high;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public String toString() {
+        return String.format("%016x%016x", high, low);
+    }
+}
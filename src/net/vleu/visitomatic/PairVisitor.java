@@ -0,0 +1,46 @@
+/*
+ * Copyright 2009 Brice Arnould
+ *
+ * This file is part of VisitOMatic.
+ *
+ * VisitOMatic is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * VisitOMatic is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with VisitOMatic.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.vleu.visitomatic;
+
+/**
+ * A {@link Visitor} of pairs of {@link Visitable}s, through
+ * {@link VisitorRunner#visitPair}, that resolves the pairs no method is
+ * needed for.
+ */
+public interface PairVisitor extends Visitor {
+
+    /**
+     * Called instead of visiting a pair made of the same {@code Visitable}
+     * twice. As the whole subgraph is shared, it is usually known without
+     * looking at it : it is equal to itself, has no difference with itself,
+     * unifies with itself...
+     * @param visitable The {@code Visitable}
+     * @return The result of the visit of the pair
+     */
+    Object same(Visitable visitable);
+
+    /**
+     * Called instead of visiting a pair that no method accepts, for example
+     * two {@code Visitable}s of different classes.
+     * @param left The first {@code Visitable} of the pair
+     * @param right The second {@code Visitable} of the pair
+     * @return The result of the visit of the pair
+     */
+    Object mismatch(Visitable left, Visitable right);
+}
@@ -0,0 +1,134 @@
+/*
+ * Copyright 2009 Brice Arnould
+ *
+ * This file is part of VisitOMatic.
+ *
+ * VisitOMatic is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * VisitOMatic is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with VisitOMatic.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.vleu.visitomatic;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.lang.reflect.Constructor;
+
+/**
+ * <p>The main class of the processes started by a {@link PartitionedVisit}.
+ * It isn't meant to be run by hand.</p>
+ *
+ * <p>It reads from its standard input the name of a {@link Visitor} class
+ * and of a visit, then subtrees written by {@link VisitableWriter}, each
+ * preceded by its length. It folds each of them with the methods annotated
+ * by {@link FoldOf}, and writes the serialized result on its standard
+ * output, preceded by {@link #RESULT} and its length, or a message preceded
+ * by {@link #FAILURE}. A negative length ends it.</p>
+ */
+public final class PartitionWorker {
+
+    /** Precedes a serialized result */
+    static final byte RESULT = 1;
+    /** Precedes the message of a failure */
+    static final byte FAILURE = 0;
+
+    private PartitionWorker() {
+    }
+
+    /**
+     * Serves a {@link PartitionedVisit} until its standard input is closed.
+     * @param args Ignored
+     */
+    public static void main(String[] args) throws IOException {
+        final DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new FileInputStream(FileDescriptor.in)));
+        final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(FileDescriptor.out)));
+        /* The standard output carries the results : visitors must not write on it */
+        System.setOut(System.err);
+        final String visitorClassName = in.readUTF();
+        final String visitName = in.readUTF();
+        VisitorRunner runner = null;
+        Visitor visitor = null;
+        String initialisationFailure = null;
+        try {
+            final Class<? extends Visitor> visitorClass =
+                    Class.forName(visitorClassName).asSubclass(Visitor.class);
+            final Constructor<? extends Visitor> constructor =
+                    visitorClass.getDeclaredConstructor();
+            constructor.setAccessible(true);
+            visitor = constructor.newInstance();
+            runner = VisitorRunner.getInstance(visitorClass, visitName);
+        }
+        catch (Exception ex) {
+            initialisationFailure = "Failed to build a " + visitorClassName +
+                                    " : " + ex;
+        }
+        while (true) {
+            final int length;
+            try {
+                length = in.readInt();
+            }
+            catch (EOFException ex) {
+                break;
+            }
+            if (length < 0)
+                break;
+            final byte[] subtree = new byte[length];
+            in.readFully(subtree);
+            if (initialisationFailure != null)
+                reply(out, FAILURE, initialisationFailure);
+            else if (length == 0)
+                reply(out, FAILURE, "The subtree couldn't be written");
+            else
+                fold(runner, visitor, subtree, out);
+            out.flush();
+        }
+    }
+
+    /** Folds a subtree and writes its result */
+    private static void fold(VisitorRunner runner, Visitor visitor, byte[] subtree,
+                             DataOutputStream out) throws IOException {
+        final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        try {
+            final Object result = runner.visit(
+                    visitor, new VisitableStreamDecoder(new ByteArrayInputStream(subtree)));
+            final ObjectOutputStream serializer = new ObjectOutputStream(buffer);
+            serializer.writeObject(result);
+            serializer.close();
+        }
+        catch (Exception ex) {
+            reply(out, FAILURE, ex.toString());
+            return;
+        }
+        out.writeByte(RESULT);
+        out.writeInt(buffer.size());
+        buffer.writeTo(out);
+    }
+
+    /** Writes a message */
+    private static void reply(DataOutputStream out, byte status, String message) throws IOException {
+        final byte[] bytes = message.getBytes(VisitableFormat.CHARSET);
+        out.writeByte(status);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+}
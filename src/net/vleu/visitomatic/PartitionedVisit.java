@@ -0,0 +1,456 @@
+/*
+ * Copyright 2009 Brice Arnould
+ *
+ * This file is part of VisitOMatic.
+ *
+ * VisitOMatic is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * VisitOMatic is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with VisitOMatic.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.vleu.visitomatic;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import net.vleu.visitomatic.FoldingHandler.FoldingException;
+import net.vleu.visitomatic.VisitorRunner.VisitorRunnerException;
+
+/**
+ * <p>Folds a tree of {@link Visitable}s using several worker processes,
+ * for trees whose visit doesn't fit in a single JVM.</p>
+ *
+ * <p>The tree is cut at the members chosen by a {@link Cut}. Each subtree
+ * below a cut is written by a {@link VisitableWriter} and sent to one of the
+ * workers through a pipe, which folds it with the methods annotated by
+ * {@link FoldOf} of its own instance of the {@code Visitor}, and sends the
+ * serialized result back. The nodes above the cuts are then folded locally,
+ * using the results of the workers in place of the subtrees. For example :</p>
+ * <pre>
+ * PartitionedVisit&lt;Integer&gt; sum = new PartitionedVisit&lt;Integer&gt;(
+ *     new FoldingSumVisitor(), "sum", 4, PartitionedVisit.atDepth(3));
+ * try {
+ *     total = sum.visit(tree);
+ * }
+ * finally {
+ *     sum.close();
+ * }
+ * </pre>
+ *
+ * <p>The workers are JVMs started with the class path of this one, running
+ * {@link PartitionWorker}. They build their {@code Visitor} with its
+ * constructor without arguments, so it must have one, and the results of
+ * the subtrees must be {@link java.io.Serializable}. Subtrees reachable
+ * from several cuts are only sent once.</p>
+ *
+ * <p>A PartitionedVisit runs one visit at a time, and must be closed to
+ * stop its workers. If the replies of a worker can't be read anymore, the
+ * workers are stopped and the PartitionedVisit can't be used again.</p>
+ * @param <R> The return type of the visit
+ * @see FoldOf
+ */
+public final class PartitionedVisit<R> implements Closeable {
+
+    /**
+     * Chooses the members of a tree at which it is cut.
+     */
+    public interface Cut {
+
+        /**
+         * @param parent The {@code Visitable} holding {@code member}
+         * @param index The position of {@code member} among the members of
+         *        {@code parent}, in the order specified by {@link ToVisit},
+         *        starting from 0
+         * @param member The {@code Visitable} member
+         * @param depth The depth of {@code member}, the root being at 0
+         * @return true if {@code member} and its descendants should be
+         *         folded by a worker
+         */
+        boolean isCut(Visitable parent, int index, Visitable member, int depth);
+    }
+
+    /**
+     * @param depth The depth of the subtrees to send to the workers, the
+     *        root being at 0
+     * @return A {@code Cut} at the members at this depth
+     */
+    public static Cut atDepth(final int depth) {
+        if (depth < 1)
+            throw new IllegalArgumentException("The root can't be cut");
+        return new Cut() {
+
+            @Override
+            public boolean isCut(Visitable parent, int index, Visitable member, int memberDepth) {
+                return memberDepth == depth;
+            }
+        };
+    }
+
+    /** The runner of the local fold */
+    private final VisitorRunner runner;
+    /** The visitor of the local fold */
+    private final Visitor visitor;
+    /** Where the tree is cut */
+    private final Cut cut;
+    /** The worker processes */
+    private final Worker[] workers;
+    /** Writes the subtrees ; it is shared by the threads feeding the workers */
+    private final VisitableWriter writer = new VisitableWriter();
+    /** Set once the pipes to the workers are out of step. Guarded by this. */
+    private boolean broken;
+
+    /**
+     * Starts the workers.
+     * @param visitor The visitor folding the nodes above the cuts. The
+     *        workers use other instances of its class.
+     * @param visitName The name of the visit, as given to
+     *        {@link VisitingMethod}s in the {@code Visitor}
+     * @param workers The number of worker processes
+     * @param cut Where the trees are cut
+     * @throws IOException A worker failed to start
+     */
+    public PartitionedVisit(Visitor visitor, String visitName, int workers, Cut cut) throws IOException {
+        if (workers < 1)
+            throw new IllegalArgumentException("At least one worker is needed");
+        this.runner = VisitorRunner.getInstance(visitor.getClass(), visitName);
+        this.visitor = visitor;
+        this.cut = cut;
+        this.workers = new Worker[workers];
+        try {
+            for (int n = 0; n < workers; n++)
+                this.workers[n] = new Worker(visitor.getClass().getName(), visitName);
+        }
+        catch (IOException ex) {
+            close();
+            throw ex;
+        }
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public String toString() {
+        return "<PartitionedVisit of " + runner + " over " + workers.length +
+               " workers>";
+    }
+
+    /**
+     * Folds a tree.
+     * @param root The root of the tree
+     * @return The result of the fold of the root
+     * @throws VisitorRunnerException A method folding a node failed, here
+     *         or in a worker
+     * @throws IOException A subtree couldn't be sent to a worker, or its
+     *         result couldn't be read
+     */
+    public synchronized R visit(Visitable root) throws VisitorRunnerException, IOException {
+        if (broken)
+            throw new IOException("The workers of " + this + " were stopped after a failure");
+        /* Find the subtrees to send */
+        final List<Visitable> subtrees = new ArrayList<Visitable>();
+        final Map<Visitable, Object> results = new IdentityHashMap<Visitable, Object>();
+        findCuts(root, 0, new IdentityHashMap<Visitable, Boolean>(), subtrees, results);
+        /* Send them, each worker being fed by its own thread */
+        final List<FutureTask<Void>> senders = new ArrayList<FutureTask<Void>>();
+        for (int n = 0; n < workers.length && n < subtrees.size(); n++) {
+            final FutureTask<Void> sender =
+                    workers[n].send(writer, subtrees, n, workers.length);
+            final Thread thread = new Thread(sender, "PartitionedVisit sender");
+            thread.setDaemon(true);
+            thread.start();
+            senders.add(sender);
+        }
+        /* Each worker replies in the order it was fed. Every reply is read,
+         * even after a failure, so that the next visit doesn't get them. */
+        String failure = null;
+        IOException unreadable = null;
+        IOException lost = null;
+        for (int n = 0; n < subtrees.size(); n++) {
+            final Worker worker = workers[n % workers.length];
+            final byte[] reply;
+            try {
+                reply = worker.receive();
+            }
+            catch (WorkerFailure ex) {
+                if (failure == null)
+                    failure = ex.getMessage();
+                continue;
+            }
+            catch (IOException ex) {
+                /* The replies can't be told apart anymore */
+                lost = ex;
+                break;
+            }
+            try {
+                results.put(subtrees.get(n), deserialize(reply));
+            }
+            catch (IOException ex) {
+                if (unreadable == null)
+                    unreadable = ex;
+            }
+        }
+        if (lost != null) {
+            /* Stopping the workers makes the senders fail, if they still run */
+            broken = true;
+            for (Worker worker : workers)
+                worker.destroy();
+        }
+        for (FutureTask<Void> sender : senders)
+            try {
+                sender.get();
+            }
+            catch (InterruptedException ex) {
+                throw new IOException("Interrupted while sending the subtrees", ex);
+            }
+            catch (ExecutionException ex) {
+                if (lost == null)
+                    throw new IOException("Failed to send a subtree", ex.getCause());
+            }
+        if (lost != null)
+            throw new IOException("Failed to read the reply of a worker", lost);
+        if (unreadable != null)
+            throw unreadable;
+        if (failure != null)
+            throw runner.new VisitorRunnerException("A worker failed : " + failure);
+        /* Fold the nodes above the cuts */
+        final FoldingHandler handler = runner.newFoldingHandler(visitor);
+        try {
+            fold(root, handler, results, new IdentityHashMap<Visitable, Long>());
+        }
+        catch (FoldingException ex) {
+            throw ex.getCause();
+        }
+        @SuppressWarnings("unchecked")
+        final R result = (R) handler.getResult();
+        return result;
+    }
+
+    /**
+     * Walks the nodes above the cuts, collecting the subtrees below them.
+     * @param walked The nodes already walked
+     * @param subtrees Where to add the subtrees
+     * @param cuts Where to register the subtrees, as keys
+     */
+    private void findCuts(Visitable visitable, int depth, Map<Visitable, Boolean> walked,
+                          List<Visitable> subtrees, Map<Visitable, Object> cuts) throws VisitorRunnerException {
+        if (walked.put(visitable, Boolean.TRUE) != null)
+            return;
+        final Object[] values = read(visitable);
+        for (int n = 1; n < values.length; n++)
+            if (values[n] instanceof Visitable) {
+                final Visitable member = (Visitable) values[n];
+                if (cuts.containsKey(member))
+                    continue;
+                if (cut.isCut(visitable, n - 1, member, depth + 1)) {
+                    cuts.put(member, null);
+                    subtrees.add(member);
+                }
+                else
+                    findCuts(member, depth + 1, walked, subtrees, cuts);
+            }
+    }
+
+    /**
+     * Reports the nodes above the cuts to a {@link FoldingHandler}, and the
+     * results of the subtrees as values.
+     * @param results Associate to the subtrees their results
+     * @param offsets Associate to the nodes already reported an identifier
+     */
+    private void fold(Visitable visitable, FoldingHandler handler, Map<Visitable, Object> results,
+                      Map<Visitable, Long> offsets) throws VisitorRunnerException, IOException {
+        final Long known = offsets.get(visitable);
+        if (known != null) {
+            handler.reference(known);
+            return;
+        }
+        final long offset = offsets.size();
+        offsets.put(visitable, offset);
+        handler.enter(visitable.getClass(), offset, true);
+        final Object[] values = read(visitable);
+        for (int n = 1; n < values.length; n++)
+            if (!(values[n] instanceof Visitable))
+                handler.value(values[n]);
+            else if (results.containsKey(values[n]))
+                handler.value(results.get(values[n]));
+            else
+                fold((Visitable) values[n], handler, results, offsets);
+        handler.leave();
+    }
+
+    /** @return The result serialized by a worker */
+    private static Object deserialize(byte[] bytes) throws IOException {
+        final ObjectInputStream deserializer =
+                new ObjectInputStream(new ByteArrayInputStream(bytes));
+        try {
+            return deserializer.readObject();
+        }
+        catch (ClassNotFoundException ex) {
+            throw new IOException("Failed to read the result of a worker", ex);
+        }
+    }
+
+    /** Reads the members of a {@code Visitable} */
+    private Object[] read(Visitable visitable) throws VisitorRunnerException {
+        try {
+            return VisitableModel.readerOf(visitable.getClass()).readValues(visitable);
+        }
+        catch (Exception ex) {
+            throw runner.new VisitorRunnerException(ex);
+        }
+    }
+
+    /**
+     * Stops the workers.
+     */
+    @Override
+    public void close() {
+        for (Worker worker : workers)
+            if (worker != null)
+                worker.close();
+    }
+
+    /** Reports the failure of a worker to fold a subtree */
+    private static final class WorkerFailure extends Exception {
+
+        private static final long serialVersionUID = 1L;
+
+        WorkerFailure(String message) {
+            super(message);
+        }
+    }
+
+    /** A worker process, and the pipes to it */
+    private static final class Worker {
+
+        /** The process */
+        private final Process process;
+        /** Its standard input */
+        private final DataOutputStream in;
+        /** Its standard output */
+        private final DataInputStream out;
+
+        /** Starts the worker and tells it what to visit */
+        Worker(String visitorClassName, String visitName) throws IOException {
+            final String java = System.getProperty("java.home") + File.separator +
+                                "bin" + File.separator + "java";
+            process = new ProcessBuilder(
+                    java, "-cp", System.getProperty("java.class.path"),
+                    PartitionWorker.class.getName()).start();
+            in = new DataOutputStream(new BufferedOutputStream(process.getOutputStream()));
+            out = new DataInputStream(new BufferedInputStream(process.getInputStream()));
+            forward(process.getErrorStream());
+            in.writeUTF(visitorClassName);
+            in.writeUTF(visitName);
+            in.flush();
+        }
+
+        /**
+         * @return A task writing with {@code writer} every {@code step}th
+         *         subtree to the worker, starting from {@code first}
+         */
+        FutureTask<Void> send(final VisitableWriter writer, final List<Visitable> subtrees,
+                              final int first, final int step) {
+            return new FutureTask<Void>(new Callable<Void>() {
+
+                /** {@inheritDoc} */
+                @Override
+                public Void call() throws IOException {
+                    final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+                    IOException failure = null;
+                    for (int n = first; n < subtrees.size(); n += step) {
+                        buffer.reset();
+                        try {
+                            writer.write(subtrees.get(n), buffer);
+                        }
+                        catch (IOException ex) {
+                            /* An empty subtree makes the worker report a failure */
+                            if (failure == null)
+                                failure = ex;
+                            buffer.reset();
+                        }
+                        in.writeInt(buffer.size());
+                        buffer.writeTo(in);
+                        in.flush();
+                    }
+                    if (failure != null)
+                        throw failure;
+                    return null;
+                }
+            });
+        }
+
+        /**
+         * @return The serialized result of the next subtree sent
+         * @throws WorkerFailure The worker failed to fold it
+         * @throws IOException The reply couldn't be read ; the following
+         *         ones can't be either
+         */
+        byte[] receive() throws IOException, WorkerFailure {
+            final byte status = out.readByte();
+            final byte[] bytes = new byte[out.readInt()];
+            out.readFully(bytes);
+            if (status != PartitionWorker.RESULT)
+                throw new WorkerFailure(new String(bytes, VisitableFormat.CHARSET));
+            return bytes;
+        }
+
+        /** Stops the worker without waiting for it */
+        void destroy() {
+            process.destroy();
+        }
+
+        /** Asks the worker to stop */
+        void close() {
+            try {
+                in.writeInt(-1);
+                in.close();
+                process.waitFor();
+            }
+            catch (Exception ex) {
+                process.destroy();
+            }
+        }
+    }
+
+    /** Copies what a worker writes on its standard error to ours */
+    private static void forward(final InputStream err) {
+        final Thread thread = new Thread("PartitionedVisit worker errors") {
+
+            @Override
+            public void run() {
+                final byte[] buffer = new byte[4096];
+                try {
+                    for (int read; (read = err.read(buffer)) >= 0;)
+                        System.err.write(buffer, 0, read);
+                }
+                catch (IOException ex) {
+                    /* The worker is gone */
+                }
+            }
+        };
+        thread.setDaemon(true);
+        thread.start();
+    }
+}
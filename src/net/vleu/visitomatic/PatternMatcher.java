@@ -0,0 +1,311 @@
+/*
+ * Copyright 2009 Brice Arnould
+ *
+ * This file is part of VisitOMatic.
+ *
+ * VisitOMatic is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * VisitOMatic is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with VisitOMatic.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.vleu.visitomatic;
+
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * <p>Selects, among {@link VisitingMethod}s taking the same types of
+ * arguments, the one whose {@link Matching} patterns match some values.</p>
+ *
+ * <p>All the patterns are compiled into a single decision tree, in the way
+ * Caml compiles {@code match} : each node of the tree tests the class of one
+ * member and leads to a subtree that only considers the methods whose
+ * patterns accept it. Each member is thus tested at most once, whatever the
+ * number of methods. The tree is built lazily, a branch being added the
+ * first time a class is met at a given node.</p>
+ *
+ * <p>Instances are thread-safe.</p>
+ */
+final class PatternMatcher {
+
+    /** Stands for the class of {@code null} in the branches of the tree */
+    private static final Class<?> NULL_CLASS = Void.class;
+    /** The candidate methods */
+    private final Method[] methods;
+    /** {@code patterns[m][p]} is the class required for the argument
+     * {@code p} of {@code methods[m]}, or {@code null} if there are none */
+    private final Class<?>[][] patterns;
+    /** The root of the decision tree */
+    private final Node root;
+    /** Whether a pattern applies to a primitive parameter */
+    private final boolean testsPrimitives;
+
+    /**
+     * Builds a matcher for methods taking the same types of arguments.
+     * @param candidates The methods
+     * @throws IllegalArgumentException Two methods have the same patterns,
+     *         or match the same values without one being more specific than
+     *         the other nor a third one more specific than both
+     */
+    PatternMatcher(List<Method> candidates) throws IllegalArgumentException {
+        methods = candidates.toArray(new Method[candidates.size()]);
+        patterns = new Class<?>[methods.length][];
+        final boolean[] testedPositions =
+                new boolean[methods[0].getParameterTypes().length];
+        for (int m = 0; m < methods.length; m++) {
+            patterns[m] = readPatterns(methods[m]);
+            for (int p = 0; p < testedPositions.length; p++)
+                testedPositions[p] |= patterns[m][p] != null;
+            for (int other = 0; other < m; other++)
+                if (Arrays.equals(patterns[m], patterns[other]))
+                    throw new IllegalArgumentException(methods[m] + " and " +
+                                                       methods[other] +
+                                                       " match the same arguments");
+        }
+        checkAmbiguities();
+        final Class<?>[] parameterTypes = methods[0].getParameterTypes();
+        boolean primitives = false;
+        for (int p = 0; p < testedPositions.length; p++)
+            primitives |= testedPositions[p] && parameterTypes[p].isPrimitive();
+        testsPrimitives = primitives;
+        final int[] allMethods = new int[methods.length];
+        for (int m = 0; m < allMethods.length; m++)
+            allMethods[m] = m;
+        root = compile(allMethods, testedPositions);
+    }
+
+    /**
+     * Checks that when two methods match the same values, one of them or a
+     * third one is at least as specific as both. The overlaps of interfaces
+     * can't be told from the patterns alone : they are reported by
+     * {@link #select}.
+     * @throws IllegalArgumentException Some values are matched ambiguously
+     */
+    private void checkAmbiguities() throws IllegalArgumentException {
+        for (int m = 0; m < methods.length; m++)
+            for (int other = 0; other < m; other++) {
+                if (isAsSpecific(patterns[m], patterns[other]) ||
+                    isAsSpecific(patterns[other], patterns[m]))
+                    continue;
+                final Class<?>[] both = intersection(patterns[m], patterns[other]);
+                if (both == null)
+                    continue;
+                boolean resolved = false;
+                for (int r = 0; r < methods.length && !resolved; r++)
+                    resolved = isAsSpecific(both, patterns[r]) &&
+                               isAsSpecific(patterns[r], patterns[m]) &&
+                               isAsSpecific(patterns[r], patterns[other]);
+                if (!resolved)
+                    throw new IllegalArgumentException(methods[m] + " and " +
+                                                       methods[other] +
+                                                       " both match " + Arrays.toString(both) +
+                                                       " and neither is more specific");
+            }
+    }
+
+    /**
+     * @return The patterns matching the values matched by both {@code a}
+     *         and {@code b}, or {@code null} if there are none or if they
+     *         can't be told because of interfaces
+     */
+    private static Class<?>[] intersection(Class<?>[] a, Class<?>[] b) {
+        final Class<?>[] result = new Class<?>[a.length];
+        for (int p = 0; p < a.length; p++)
+            if (a[p] == null || b[p] != null && a[p].isAssignableFrom(b[p]))
+                result[p] = b[p];
+            else if (b[p] == null || b[p].isAssignableFrom(a[p]))
+                result[p] = a[p];
+            else
+                return null;
+        return result;
+    }
+
+    /** @return the classes required by {@link Matching} for each parameter */
+    private static Class<?>[] readPatterns(Method method) {
+        final Annotation[][] annotations = method.getParameterAnnotations();
+        final Class<?>[] result = new Class<?>[annotations.length];
+        for (int p = 0; p < annotations.length; p++)
+            for (Annotation annotation : annotations[p])
+                if (annotation instanceof Matching)
+                    result[p] = ((Matching) annotation).value();
+        return result;
+    }
+
+    /**
+     * Selects the method to call.
+     * @param values The arguments, as read by {@link VisitableReader}
+     * @return The most specific method whose patterns match the values, or
+     *         {@code null} if there are none
+     * @throws IllegalStateException Several methods match the values through
+     *         interfaces, and none is more specific than the others
+     */
+    Method select(Object[] values) {
+        return root.select(values);
+    }
+
+    /**
+     * @return Whether {@link #select} needs the values of the primitive
+     *         members, or can be given {@code null} in their place
+     */
+    boolean testsPrimitives() {
+        return testsPrimitives;
+    }
+
+    /**
+     * @return The method selected whatever the values, or {@code null} if
+     *         it depends on them or if there are none
+     */
+    Method getUnconditionalMethod() {
+        return root instanceof Leaf ? ((Leaf) root).method : null;
+    }
+
+    /**
+     * Builds the decision tree that selects among some methods.
+     * @param candidates The indexes in {@link #methods} of the methods
+     * @param positionsToTest The positions no ancestor node has tested and
+     *        that some method has a pattern for
+     */
+    private Node compile(int[] candidates, boolean[] positionsToTest) {
+        for (int p = 0; p < positionsToTest.length; p++) {
+            if (!positionsToTest[p])
+                continue;
+            for (int m : candidates)
+                if (patterns[m][p] != null)
+                    return new Test(candidates, positionsToTest, p);
+        }
+        final Method method = mostSpecific(candidates);
+        if (method == null && candidates.length > 0) {
+            final List<Method> ambiguous = new ArrayList<Method>();
+            for (int m : candidates)
+                ambiguous.add(methods[m]);
+            return new Ambiguity(ambiguous);
+        }
+        return new Leaf(method);
+    }
+
+    /**
+     * @return The method among the candidates whose patterns are all at
+     *         least as specific as the ones of the others, or {@code null}
+     *         if there are none
+     */
+    private Method mostSpecific(int[] candidates) {
+        for (int m : candidates) {
+            boolean isMostSpecific = true;
+            for (int other : candidates)
+                isMostSpecific &= isAsSpecific(patterns[m], patterns[other]);
+            if (isMostSpecific)
+                return methods[m];
+        }
+        return null;
+    }
+
+    /** @return whether all the patterns of {@code a} are at least as specific as {@code b}'s */
+    private static boolean isAsSpecific(Class<?>[] a, Class<?>[] b) {
+        for (int p = 0; p < a.length; p++)
+            if (b[p] != null && (a[p] == null || !b[p].isAssignableFrom(a[p])))
+                return false;
+        return true;
+    }
+
+    /** A node of the decision tree */
+    private static abstract class Node {
+
+        /** @see PatternMatcher#select */
+        abstract Method select(Object[] values);
+    }
+
+    /** A node that has nothing left to test */
+    private static final class Leaf extends Node {
+
+        private final Method method;
+
+        Leaf(Method method) {
+            this.method = method;
+        }
+
+        @Override
+        Method select(Object[] values) {
+            return method;
+        }
+    }
+
+    /** A node where several methods match and none is more specific */
+    private static final class Ambiguity extends Node {
+
+        private final List<Method> methods;
+
+        Ambiguity(List<Method> methods) {
+            this.methods = methods;
+        }
+
+        @Override
+        Method select(Object[] values) {
+            throw new IllegalStateException(methods + " all match " +
+                                            Arrays.toString(values) +
+                                            " and none is more specific");
+        }
+    }
+
+    /** A node that tests the class of a member */
+    private final class Test extends Node {
+
+        /** The methods still considered */
+        private final int[] candidates;
+        /** The positions left to test, {@link #position} included */
+        private final boolean[] positionsToTest;
+        /** The position of the member to test */
+        private final int position;
+        /** Associate to the classes met so far the subtree to use */
+        private final Map<Class<?>, Node> branches =
+                new ConcurrentHashMap<Class<?>, Node>();
+
+        Test(int[] candidates, boolean[] positionsToTest, int position) {
+            this.candidates = candidates;
+            this.positionsToTest = positionsToTest;
+            this.position = position;
+        }
+
+        @Override
+        Method select(Object[] values) {
+            final Object value = values[position];
+            final Class<?> valueClass =
+                    value == null ? NULL_CLASS : value.getClass();
+            Node branch = branches.get(valueClass);
+            if (branch == null) {
+                branch = branch(value == null ? null : valueClass);
+                branches.put(valueClass, branch);
+            }
+            return branch.select(values);
+        }
+
+        /** Builds the subtree used when the member is of this class */
+        private Node branch(Class<?> valueClass) {
+            final List<Integer> matching = new ArrayList<Integer>();
+            for (int m : candidates) {
+                final Class<?> pattern = patterns[m][position];
+                if (pattern == null ||
+                    valueClass != null && pattern.isAssignableFrom(valueClass))
+                    matching.add(m);
+            }
+            final int[] subCandidates = new int[matching.size()];
+            for (int n = 0; n < subCandidates.length; n++)
+                subCandidates[n] = matching.get(n);
+            final boolean[] subPositions = positionsToTest.clone();
+            subPositions[position] = false;
+            return compile(subCandidates, subPositions);
+        }
+    }
+}
@@ -0,0 +1,263 @@
+/*
+ * Copyright 2009 Brice Arnould
+ *
+ * This file is part of VisitOMatic.
+ *
+ * VisitOMatic is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * VisitOMatic is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with VisitOMatic.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.vleu.visitomatic;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.NotSerializableException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.concurrent.Callable;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>This {@link VisitorRunner} remembers the results of its visits in a
+ * file, across calls and across processes. Results are keyed by the
+ * {@link MerkleHash} of the visited subgraph, in the namespace of the
+ * visitor class and the visit name : visiting a {@code Visitable} equal in
+ * structure and values to one visited before returns the stored result,
+ * without descending into it, even if it was built by another process.</p>
+ *
+ * <p>As results are keyed by the class of the visitor, they must only
+ * depend on the visited subgraph, not on the state of the visitor. Only
+ * {@link java.io.Serializable} results are stored, and only for
+ * {@code Visitable}s whose members can be hashed ; the others are computed
+ * each time. The {@code Visitable}s must not be modified while they are
+ * being visited, but they may be between visits.</p>
+ *
+ * <p>Results are only stored through visits that go through this runner,
+ * so {@code VisitingMethod}s must use it to visit the members of their
+ * {@code Visitable}s for the unchanged subgraphs of an edited graph to be
+ * reused. The hashes are computed once per visit through this runner.</p>
+ *
+ * <p>The file has a fixed size. When it is full, the least recently used
+ * results are evicted, see {@link MappedResultStore}. A
+ * PersistentVisitorRunner is thread-safe. It must be closed once done
+ * with, so that the file is written back.</p>
+ * @see VisitorRunner#getPersistentInstance
+ */
+public final class PersistentVisitorRunner extends VisitorRunner implements Closeable {
+
+    /** The runner that computes the results */
+    private final VisitorRunner delegate;
+    /** Where results are stored */
+    private final MappedResultStore store;
+    /** Identifies the visitor class and the visit in the hashes */
+    private final String namespace;
+    /** The hashes computed during the current visit of each thread. Only
+     * set while the thread is visiting. */
+    private final ThreadLocal<Scope> scopes = new ThreadLocal<Scope>();
+    /** The number of visits that returned a stored result */
+    private final AtomicLong hits = new AtomicLong();
+    /** The number of visits that computed their result */
+    private final AtomicLong misses = new AtomicLong();
+
+    /** The state of a thread while it is visiting */
+    private static final class Scope {
+
+        /** Hashes the {@code Visitable}s, remembering their hash */
+        final MerkleHash.Hasher hasher = new MerkleHash.Hasher();
+        /** The number of nested visits */
+        int depth;
+    }
+
+    /**
+     * Call {@link VisitorRunner#getPersistentInstance} to get an instance.
+     */
+    PersistentVisitorRunner(VisitorRunner delegate, MappedResultStore store,
+                            String namespace) {
+        this.delegate = delegate;
+        this.store = store;
+        this.namespace = namespace;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public String toString() {
+        return "<Persistent " + delegate + '>';
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>This version returns the stored result if there is one.</p>
+     */
+    @Override
+    public <R> R visit(Visitor visitor, Visitable visitable) throws VisitorRunnerException {
+        Scope scope = scopes.get();
+        if (scope == null) {
+            scope = new Scope();
+            scopes.set(scope);
+        }
+        scope.depth++;
+        try {
+            MerkleHash key;
+            try {
+                key = scope.hasher.within(scope.hasher.hash(visitable), namespace);
+            }
+            catch (IllegalArgumentException ex) {
+                /* This subgraph can't be hashed, so it can't be stored */
+                key = null;
+            }
+            if (key != null) {
+                final byte[] stored = store.get(key);
+                if (stored != null) {
+                    final Object result = deserialize(stored);
+                    if (result != null) {
+                        hits.incrementAndGet();
+                        @SuppressWarnings("unchecked")
+                        R cast = (R) result;
+                        return cast;
+                    }
+                }
+            }
+            misses.incrementAndGet();
+            final R result = delegate.<R>visit(visitor, visitable);
+            if (key != null) {
+                final byte[] serialized = serialize(result);
+                if (serialized != null)
+                    store.put(key, serialized);
+            }
+            return result;
+        }
+        finally {
+            /* Don't keep the hashes of threads that are done visiting */
+            if (--scope.depth == 0)
+                scopes.remove();
+        }
+    }
+
+    /** @return The serialized form of a result, or null if it can't be serialized */
+    private static byte[] serialize(Object result) {
+        if (result == null)
+            return null;
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try {
+            final ObjectOutputStream out = new ObjectOutputStream(bytes);
+            out.writeObject(result);
+            out.close();
+        }
+        catch (NotSerializableException ex) {
+            return null;
+        }
+        catch (IOException ex) {
+            throw new IllegalStateException("Failed to write in memory", ex);
+        }
+        return bytes.toByteArray();
+    }
+
+    /** @return A stored result, or null if it can't be deserialized anymore */
+    private static Object deserialize(byte[] stored) {
+        try {
+            final ObjectInputStream in =
+                    new ObjectInputStream(new ByteArrayInputStream(stored));
+            try {
+                return in.readObject();
+            }
+            finally {
+                in.close();
+            }
+        }
+        catch (IOException ex) {
+            return null;
+        }
+        catch (ClassNotFoundException ex) {
+            return null;
+        }
+    }
+
+    /** @return The number of visits that returned a stored result */
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    /** @return The number of visits that computed their result */
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    /**
+     * @return The number of results evicted to make room for others since
+     *         the file was opened
+     */
+    public long getEvictionCount() {
+        return store.getEvictionCount();
+    }
+
+    /** @return The number of results stored in the file */
+    public int size() {
+        return store.size();
+    }
+
+    /**
+     * Writes the stored results back to the file and closes it. This runner
+     * must not be used afterwards.
+     * @throws IOException If closing the file fails
+     */
+    @Override
+    public void close() throws IOException {
+        store.close();
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public <R extends Visitable> R rewrite(Visitor visitor, Visitable visitable) throws VisitorRunnerException {
+        return delegate.<R>rewrite(visitor, visitable);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public <R> R visit(Visitor visitor, VisitableStreamDecoder decoder) throws VisitorRunnerException, IOException {
+        return delegate.<R>visit(visitor, decoder);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    <R> R dispatchPair(Visitor visitor, Visitable left, Visitable right) throws VisitorRunnerException {
+        return delegate.<R>dispatchPair(visitor, left, right);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    boolean handles(Class<? extends Visitable> visitableClass) {
+        return delegate.handles(visitableClass);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    FoldingHandler newFoldingHandler(Visitor visitor) {
+        return delegate.newFoldingHandler(visitor);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public <R> FutureTask<R> futureVisit(final Visitor visitor, final Visitable visitable) {
+        final Callable<R> callable = new Callable<R>() {
+
+            /** {@inheritDoc} */
+            @Override
+            public R call() throws VisitorRunnerException {
+                return PersistentVisitorRunner.this.<R>visit(visitor, visitable);
+            }
+        };
+        return new FutureTask<R>(callable);
+    }
+}
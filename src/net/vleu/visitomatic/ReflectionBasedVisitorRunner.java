@@ -18,14 +18,15 @@
  */
 package net.vleu.visitomatic;
 
-import java.lang.reflect.InvocationTargetException;
+import java.io.IOException;
+import java.lang.reflect.Field;
 import java.lang.reflect.Method;
 import java.util.Arrays;
-import java.util.HashMap;
 import java.util.Map;
 import java.util.concurrent.Callable;
-import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.FutureTask;
+import net.vleu.visitomatic.VisitorModel.Dispatch;
+import net.vleu.visitomatic.VisitorModel.PairDispatch;
 
 /**
  * This {@link VisitorRunner} is implemented by reflection. It doesn't have
@@ -37,46 +38,32 @@ final class ReflectionBasedVisitorRunner extends VisitorRunner {
     private final Class visitorClass;
     /** The name of the visit, we will ignore methods that are not annotated with it */
     private final String visitName;
-    /** Associate to arrays of types methods that accept them as arguments */
-    private final Map<ParametersList, Method> parametersToMethods;
-    /** Associate to classes of {@code Visitable} the {@link VisitableReader}
-     * that can parse them */
-    private final Map<Class<? extends Visitable>, VisitableReader> visitableToReaders;
+    /** The methods of the visit, shared by all its runners */
+    private final VisitorModel.Visit visit;
+    /** Associate to classes of {@code Visitable} the methods that accept
+     * {@link MappedVisitable} views of them, see {@link ViewOf} */
+    private final Map<Class<? extends Visitable>, Method> viewsToMethods;
+    /** Associate to classes of {@code Visitable} the methods that fold
+     * them, see {@link FoldOf} */
+    private final Map<Class<? extends Visitable>, Method> foldsToMethods;
 
-    /**
-     * Inspect the {@link #visitorClass} and register all its VisitingMethods
-     * in the {@link #parametersToMethods} map.
-     */
-    private void registerMethods() throws VisitorRunnerInitialisationException {
+    /** Retrieves a method annotated by {@code @VisitingMethod} that takes the types read by the dispatch
+     * as arguments and whose {@link Matching} patterns match the provided values */
+    private Method getMethod(Dispatch dispatch, Object[] values) throws VisitorRunnerException {
+        final Method result;
         try {
-            for (final Method m : visitorClass.getDeclaredMethods()) {
-                /* Look for the right annotation */
-                final VisitingMethod annotation =
-                        m.getAnnotation(VisitingMethod.class);
-                if (annotation != null && visitName.equals(
-                        annotation.visitName())) {
-                    /* Found it ! Let's register this method */
-                    ParametersList parameters = new ParametersList(m.
-                            getParameterTypes());
-                    m.setAccessible(true);
-                    parametersToMethods.put(parameters, m);
-                }
-            }
+            result = dispatch.matcher == null ? null : dispatch.matcher.select(values);
         }
-        catch (Exception ex) {
-            throw new VisitorRunnerInitialisationException(ex);
+        catch (IllegalStateException ex) {
+            throw new VisitorRunnerException(ex.getMessage());
         }
-    }
-
-    /** Retrieves a method annotated by {@code @VisitingMethod} that takes the provided types as arguments*/
-    private Method getMethod(Class[] parameterTypes) throws VisitorRunnerException {
-        final Method result = parametersToMethods.get(new ParametersList(
-                parameterTypes));
         if (result == null)
             throw new VisitorRunnerException(
                     "Failed to find a method for visit '" +
                     visitName + "' taking as arguments :" +
-                    Arrays.toString(parameterTypes));
+                    Arrays.toString(dispatch.reader.readTypes()) +
+                    (dispatch.matcher == null ? "" : " and matching " +
+                                                     Arrays.toString(values)));
         else
             return result;
     }
@@ -93,10 +80,19 @@ final class ReflectionBasedVisitorRunner extends VisitorRunner {
     protected ReflectionBasedVisitorRunner(Class<? extends Visitor> visitorClass, String visitName) throws VisitorRunnerInitialisationException {
         this.visitName = visitName;
         this.visitorClass = visitorClass;
-        parametersToMethods = new HashMap<ParametersList, Method>();
-        visitableToReaders =
-                new ConcurrentHashMap<Class<? extends Visitable>, VisitableReader>();
-        registerMethods();
+        try {
+            visit = VisitorModel.of(visitorClass).getVisit(visitName);
+        }
+        catch (Exception ex) {
+            throw new VisitorRunnerInitialisationException(ex);
+        }
+        viewsToMethods = visit.viewsToMethods;
+        foldsToMethods = visit.foldsToMethods;
+    }
+
+    /** @return The Dispatch of this class, shared by the runners of the visit */
+    private Dispatch getDispatch(Class<? extends Visitable> visitableClass) {
+        return visit.getDispatch(visitableClass);
     }
 
     /** {@inheritDoc} */
@@ -109,19 +105,42 @@ final class ReflectionBasedVisitorRunner extends VisitorRunner {
     /** {@inheritDoc} */
     @Override
     public <R> R visit(Visitor visitor, Visitable visitable) throws VisitorRunnerException {
-        final Class<? extends Visitable> visitableClass = visitable.getClass();
-        /* Get the VisitableReader from the cache, or put it in the cache */
-        VisitableReader reader = visitableToReaders.get(visitable.getClass());
-        if (reader == null) {
-            reader = new TLSVisitableReader(visitableClass);
-            visitableToReaders.put(visitableClass, reader);
+        if (VisitDeadline.inProgress())
+            VisitDeadline.check(this);
+        if (GraphVisit.inProgress()) {
+            final GraphVisit graph = GraphVisit.of(visitor);
+            if (graph != null) {
+                @SuppressWarnings("unchecked")
+                final R result = (R) graph.visit(this, visitable);
+                return result;
+            }
+        }
+        return this.<R>dispatch(visitor, visitable);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    <R> R dispatch(Visitor visitor, Visitable visitable) throws VisitorRunnerException {
+        if (visitable instanceof MappedVisitable)
+            return this.<R>visitView(visitor, (MappedVisitable) visitable);
+        final Dispatch dispatch = getDispatch(visitable.getClass());
+        /* Read the values from the Visitable. They are read in a new array
+         * for each visit : it doesn't outlive the call so allocating it is
+         * cheap, and unlike a thread-local one it doesn't cost memory for
+         * each thread that ever visited. */
+        final Object[] values;
+        try {
+            values = dispatch.reader.readValues(visitable);
+        }
+        catch (Exception ex) {
+            throw new VisitorRunnerException(ex);
         }
         /* Get the method from the Visitor */
-        final Method method = getMethod(reader.readTypes());
-        /* Call it with the visitName from the Visitable */
+        final Method method = getMethod(dispatch, values);
+        /* Call it with the values */
         try {
             @SuppressWarnings("unchecked")
-            R result = (R) method.invoke(visitor, reader.readValues(visitable));
+            R result = (R) method.invoke(visitor, values);
             return result;
         }
         catch (Exception ex) {
@@ -129,6 +148,169 @@ final class ReflectionBasedVisitorRunner extends VisitorRunner {
         }
     }
 
+    /** {@inheritDoc} */
+    @Override
+    public <R extends Visitable> R rewrite(Visitor visitor, Visitable visitable) throws VisitorRunnerException {
+        @SuppressWarnings("unchecked")
+        final R result = (R) rewrite(visitor, visitable, new Rewrite(), 0);
+        return result;
+    }
+
+    /**
+     * Rewrites the members of a {@code Visitable}, rebuilds it if they
+     * changed, then gives it to its visiting method if there is one.
+     * @param rewrite Remembers the replaced {@code Visitable}s, so that
+     *        shared ones are rewritten once and stay shared, and holds the
+     *        buffers the members are read in
+     * @param depth The number of ancestors of {@code visitable}
+     */
+    private Visitable rewrite(Visitor visitor, Visitable visitable, Rewrite rewrite,
+                              int depth) throws VisitorRunnerException {
+        final Visitable replacement = rewrite.getReplacement(visitable);
+        if (replacement != null)
+            return replacement;
+        if (VisitDeadline.inProgress())
+            VisitDeadline.check(this);
+        if (visitable instanceof MappedVisitable)
+            throw new VisitorRunnerException("Cannot rewrite " + visitable);
+        final Dispatch dispatch = getDispatch(visitable.getClass());
+        final VisitableReader reader = dispatch.reader;
+        final Visitable result;
+        try {
+            Object[] values = rewrite.readReferences(reader, visitable, depth);
+            boolean complete = false;
+            /* Rewrite the members, and rebuild the visitable if one changed */
+            boolean changed = false;
+            for (int n = 1; n < values.length; n++)
+                if (values[n] instanceof Visitable) {
+                    final Visitable member = (Visitable) values[n];
+                    values[n] = rewrite(visitor, member, rewrite, depth + 1);
+                    changed |= values[n] != member;
+                }
+            if (changed) {
+                values = values.clone();
+                Rewrite.readPrimitives(reader, values);
+                complete = true;
+                values[0] = VisitableModel.of(visitable.getClass()).getCopier().copy(visitable, values);
+            }
+            /* Give it to the visiting method, if there is one */
+            if (dispatch.matcher != null && !complete && dispatch.matcher.testsPrimitives()) {
+                Rewrite.readPrimitives(reader, values);
+                complete = true;
+            }
+            final Method method = dispatch.matcher == null ? null :
+                                  dispatch.matcher.select(values);
+            if (method != null && !complete)
+                Rewrite.readPrimitives(reader, values);
+            result = method == null ? (Visitable) values[0]
+                     : (Visitable) method.invoke(visitor, values);
+        }
+        catch (VisitorRunnerException ex) {
+            throw ex;
+        }
+        catch (Exception ex) {
+            throw new VisitorRunnerException(ex);
+        }
+        rewrite.setReplacement(visitable, result);
+        return result;
+    }
+
+    /**
+     * Does the same as {@link #visit} for a {@link MappedVisitable}, calling
+     * the method annotated by {@link ViewOf} the class of the viewed
+     * {@code Visitable}.
+     */
+    private <R> R visitView(Visitor visitor, MappedVisitable view) throws VisitorRunnerException {
+        final Class<? extends Visitable> viewedClass = view.getVisitableClass();
+        final Method method = viewsToMethods.get(viewedClass);
+        if (method == null)
+            throw new VisitorRunnerException(
+                    "Failed to find a method for visit '" + visitName +
+                    "' taking as argument a view of " + viewedClass);
+        try {
+            @SuppressWarnings("unchecked")
+            R result = (R) method.invoke(visitor, view.readValues());
+            return result;
+        }
+        catch (Exception ex) {
+            throw new VisitorRunnerException(ex);
+        }
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    <R> R dispatchPair(Visitor visitor, Visitable left, Visitable right) throws VisitorRunnerException {
+        if (VisitDeadline.inProgress())
+            VisitDeadline.check(this);
+        final PairDispatch dispatch =
+                visit.getPairDispatch(left.getClass(), right.getClass());
+        final Object[] values;
+        try {
+            final Object[] leftValues = dispatch.left.readValues(left);
+            final Object[] rightValues = dispatch.right.readValues(right);
+            values = new Object[leftValues.length + rightValues.length];
+            System.arraycopy(leftValues, 0, values, 0, leftValues.length);
+            System.arraycopy(rightValues, 0, values, leftValues.length, rightValues.length);
+        }
+        catch (Exception ex) {
+            throw new VisitorRunnerException(ex);
+        }
+        final Method method;
+        try {
+            method = dispatch.matcher == null ? null : dispatch.matcher.select(values);
+        }
+        catch (IllegalStateException ex) {
+            throw new VisitorRunnerException(ex.getMessage());
+        }
+        if (method == null) {
+            if (visitor instanceof PairVisitor) {
+                @SuppressWarnings("unchecked")
+                final R result = (R) ((PairVisitor) visitor).mismatch(left, right);
+                return result;
+            }
+            throw new VisitorRunnerException(
+                    "Failed to find a method for visit '" + visitName +
+                    "' taking as arguments the members of " + left.getClass().getName() +
+                    " and " + right.getClass().getName() + " matching " +
+                    Arrays.toString(values));
+        }
+        try {
+            @SuppressWarnings("unchecked")
+            R result = (R) method.invoke(visitor, values);
+            return result;
+        }
+        catch (Exception ex) {
+            throw new VisitorRunnerException(ex);
+        }
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    boolean handles(Class<? extends Visitable> visitableClass) {
+        return getDispatch(visitableClass).matcher != null;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    FoldingHandler newFoldingHandler(Visitor visitor) {
+        return new FoldingHandler(this, visitor, foldsToMethods);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public <R> R visit(Visitor visitor, VisitableStreamDecoder decoder) throws VisitorRunnerException, IOException {
+        final FoldingHandler handler = newFoldingHandler(visitor);
+        try {
+            decoder.decode(handler);
+        }
+        catch (FoldingHandler.FoldingException ex) {
+            throw ex.getCause();
+        }
+        @SuppressWarnings("unchecked")
+        R result = (R) handler.getResult();
+        return result;
+    }
+
     /** {@inheritDoc} */
     @Override
     public <R> FutureTask<R> futureVisit(final Visitor visitor, final Visitable visitable) {
@@ -145,90 +327,66 @@ final class ReflectionBasedVisitorRunner extends VisitorRunner {
     }
 
     /**
-     * <p>This version of {@link VisitableReader} use Thread Local Storage to
-     * minimize the number of allocations. <b>It is not reentrant.</b><br/>
-     * It  reduced drastically the number of allocations and reduced the time on
-     * the Tree benchmark by 25%</p>
-     * @see VisitableReader
+     * Builds a dispatcher specialised for a class of {@code Visitable}.
+     * @see TieredVisitorRunner
+     * @throws IllegalArgumentException If the class cannot be visited
      */
-    private static final class TLSVisitableReader extends VisitableReader {
-
-        /** Provides arrays suitable for being the second argument of
-         * {@link #readValues(Visitable, Object[])} */
-        ThreadLocal<Object[]> arrayProvider;
-
-        public TLSVisitableReader(Class<? extends Visitable> visitableClass) {
-            super(visitableClass);
-            arrayProvider = new ThreadLocal<Object[]>() {
-                /* {@inheritDoc}
-                 * <p>This version returns an empty array of a size suitable for use with
-                 * {@link VisitableReader#readValues(Visitable, Object[])}</p>
-                 */
-
-                @Override
-                public Object[] initialValue() {
-                    return new Object[getNumberOfValues()];
-                }
-            };
-        }
-
-        /**
-         * {@inheritDoc}
-         * <p>This version use Thread Local Storage to minimize the number of allocations. <b>It is not reentrant.</b></p>
-         */
-        @Override
-        public Object[] readValues(Visitable visitable) throws IllegalArgumentException, IllegalAccessException, InvocationTargetException {
-            Object[] result = arrayProvider.get();
-            readValues(visitable, result);
-            return result;
-        }
+    CompiledDispatch compile(Class<? extends Visitable> visitableClass) throws IllegalArgumentException {
+        return new CompiledDispatch(getDispatch(visitableClass));
     }
 
     /**
-     * A List of parameters.<br />
-     * This class exists because profiling as shown that the use of Java's
-     * generic containers for Parameters classes were of high cost (35% of the
-     * total runtime on a benchmark I ran). The hash and equals function where
-     * the most expensive.
+     * Visits a single class of {@code Visitable}, resolving ahead what
+     * {@link #visit} resolves on each call : the fields are read directly
+     * when all the members are fields, and the method is fixed when no
+     * {@link Matching} pattern depends on the values.
      */
-    private static final class ParametersList {
-
-        private final Class[] classArray;
-        private final int hash;
-
-        /**
-         * Build a new ParametersList that contains the provided array. This
-         * array must not be modified.
-         * @param classArray
-         */
-        public ParametersList(final Class[] classArray) {
-            this.classArray = classArray;
-            hash = Arrays.hashCode(classArray);
-        }
-
-        @Override
-        public int hashCode() {
-            return hash;
-        }
-
-        @Override
-        public boolean equals(final Object other) {
-            if (other instanceof ParametersList) {
-                final ParametersList otherClassList = (ParametersList) other;
-                /* First test the hashs, this is really fast
-                 * we could also use length but on my tests it wasn't helping
-                 */
-                if (otherClassList.hash != hash)
-                    return false;
-                /* Only then, go through the array */
-                for (int i = 0; i < classArray.length; i++)
-                    if (otherClassList.classArray[i] != classArray[i])
-                        return false;
-                /* Didn't found any diference */
-                return true;
+    final class CompiledDispatch {
+
+        /** The generic dispatch of the class */
+        private final Dispatch dispatch;
+        /** The fields to read, or {@code null} to use the reader */
+        private final Field[] fields;
+        /** The method to call, or {@code null} to select it on each call */
+        private final Method method;
+
+        private CompiledDispatch(Dispatch dispatch) {
+            this.dispatch = dispatch;
+            this.fields = dispatch.reader.getFieldsToVisit();
+            this.method = dispatch.matcher == null ? null :
+                          dispatch.matcher.getUnconditionalMethod();
+        }
+
+        /** Does the same as {@link ReflectionBasedVisitorRunner#visit} */
+        <R> R visit(Visitor visitor, Visitable visitable) throws VisitorRunnerException {
+            if (GraphVisit.inProgress())
+                return ReflectionBasedVisitorRunner.this.<R>visit(visitor, visitable);
+            if (VisitDeadline.inProgress())
+                VisitDeadline.check(ReflectionBasedVisitorRunner.this);
+            final Object[] values;
+            try {
+                if (fields == null)
+                    values = dispatch.reader.readValues(visitable);
+                else {
+                    values = new Object[fields.length + 1];
+                    values[0] = visitable;
+                    for (int n = 0; n < fields.length; n++)
+                        values[n + 1] = fields[n].get(visitable);
+                }
+            }
+            catch (Exception ex) {
+                throw new VisitorRunnerException(ex);
+            }
+            final Method target = method != null ? method :
+                                  getMethod(dispatch, values);
+            try {
+                @SuppressWarnings("unchecked")
+                R result = (R) target.invoke(visitor, values);
+                return result;
+            }
+            catch (Exception ex) {
+                throw new VisitorRunnerException(ex);
             }
-            else
-                return false;
         }
     }
 }
@@ -0,0 +1,459 @@
+/*
+ * Copyright 2009 Brice Arnould
+ *
+ * This file is part of VisitOMatic.
+ *
+ * VisitOMatic is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * VisitOMatic is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with VisitOMatic.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.vleu.visitomatic;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.RandomAccessFile;
+import java.io.Serializable;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+import net.vleu.visitomatic.FoldingHandler.FoldingException;
+import net.vleu.visitomatic.VisitorRunner.VisitorRunnerException;
+
+/**
+ * <p>Folds a {@link MappedVisitables} graph with the methods annotated by
+ * {@link FoldOf}, saving its progress in a checkpoint file so that it can be
+ * resumed if it is interrupted.</p>
+ *
+ * <p>The graph is walked with an explicit stack rather than by recursion.
+ * At the given interval, the stack, the arguments already computed for the
+ * nodes it holds and the results of the shared nodes left since the last
+ * checkpoint are appended to the checkpoint file. The size of a checkpoint
+ * is thus proportional to the depth of the graph and to the number of new
+ * shared nodes, not to the size of the graph. Every
+ * {@value #CHECKPOINTS_PER_COMPACTION} checkpoints, the file is replaced by
+ * a single one holding the results of all the shared nodes left so far, so
+ * that it doesn't grow with the duration of the fold. For example :</p>
+ * <pre>
+ * ResumableFold&lt;Integer&gt; sum = new ResumableFold&lt;Integer&gt;(
+ *     SUM_RUNNER, visitor, MappedVisitables.map(graphFile),
+ *     new File("sum.checkpoint"), 5, TimeUnit.SECONDS);
+ * Integer total = sum.run();
+ * </pre>
+ *
+ * <p>{@link #run} resumes from the last complete checkpoint if the file
+ * exists, and deletes it once the fold is over. Each checkpoint is checked
+ * by a CRC32, so a checkpoint left incomplete by a crash is ignored. The
+ * checkpoints carry the SHA-256 digest of the graph, so those of a graph
+ * that was modified since are refused. The
+ * file is flushed but not synced : it survives the crash of the JVM, not
+ * necessarily the one of the system.</p>
+ *
+ * <p>The results of the methods folding the nodes must be
+ * {@link Serializable}. A ResumableFold must not be run by several threads
+ * at once.</p>
+ * @param <R> The return type of the fold
+ * @see FoldOf
+ * @see MappedVisitables
+ */
+public final class ResumableFold<R> {
+
+    /** The number of checkpoints appended to the file before it is
+     * rewritten as a single one */
+    public static final int CHECKPOINTS_PER_COMPACTION = 64;
+    /** The number of steps between two looks at the clock */
+    private static final int STEPS_BETWEEN_CHECKS = 1024;
+
+    /** The runner whose methods fold the nodes */
+    private final VisitorRunner runner;
+    /** The visitor given to the methods */
+    private final Visitor visitor;
+    /** The graph to fold */
+    private final MappedVisitables graph;
+    /** Where checkpoints are saved */
+    private final File checkpointFile;
+    /** The minimum time between two checkpoints, in nanoseconds */
+    private final long intervalNanos;
+    /** Identifies the fold, to refuse the checkpoints of another one */
+    private final String description;
+    /** The number of checkpoints written by this instance */
+    private long checkpointCount;
+
+    /**
+     * Builds a new ResumableFold. The graph is read once, to compute its
+     * digest ; nothing else is read or written before {@link #run} is
+     * called.
+     * @param runner The runner whose methods fold the nodes
+     * @param visitor The visitor to run
+     * @param graph The graph to fold
+     * @param checkpointFile Where checkpoints are saved
+     * @param interval The minimum time between two checkpoints ; 0 saves
+     *        one every few thousand nodes
+     * @param unit The unit of {@code interval}
+     */
+    public ResumableFold(VisitorRunner runner, Visitor visitor, MappedVisitables graph,
+                         File checkpointFile, long interval, TimeUnit unit) {
+        this.runner = runner;
+        this.visitor = visitor;
+        this.graph = graph;
+        this.checkpointFile = checkpointFile;
+        this.intervalNanos = unit.toNanos(interval);
+        this.description = runner + " over " + graph.size() + " bytes of SHA-256 " +
+                           fingerprint(graph);
+    }
+
+    /** @return The SHA-256 digest of the graph, in hexadecimal */
+    private static String fingerprint(MappedVisitables graph) {
+        final MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        }
+        catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException("SHA-256 is not supported", ex);
+        }
+        graph.digest(digest);
+        final StringBuilder result = new StringBuilder();
+        for (byte b : digest.digest())
+            result.append(String.format("%02x", b));
+        return result.toString();
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public String toString() {
+        return "<ResumableFold of " + runner + " saved in " + checkpointFile + '>';
+    }
+
+    /** @return The number of checkpoints written by this ResumableFold so far */
+    public long getCheckpointCount() {
+        return checkpointCount;
+    }
+
+    /** A node entered but not left yet */
+    private static final class Cursor {
+
+        /** Where the record of the node starts */
+        final int offset;
+        /** Is the node reachable from several places ? */
+        final boolean shared;
+        /** Where its next member starts */
+        int position;
+        /** Where its record ends */
+        final int end;
+
+        Cursor(int offset, boolean shared, int position, int end) {
+            this.offset = offset;
+            this.shared = shared;
+            this.position = position;
+            this.end = end;
+        }
+    }
+
+    /** What a checkpoint saves */
+    private static final class Checkpoint implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        /** Identifies the fold */
+        String description;
+        /** The offsets of the shared nodes left since the previous checkpoint */
+        long[] sharedOffsets;
+        /** Their results */
+        Object[] sharedResults;
+        /** The offsets of the nodes of the stack, the innermost last */
+        int[] offsets;
+        /** Whether they are shared */
+        boolean[] shared;
+        /** Where their next members start */
+        int[] positions;
+        /** The arguments given so far to the methods folding them */
+        Object[][] arguments;
+    }
+
+    /**
+     * Runs the fold, from the last checkpoint if there is one.
+     * @return The result of the fold of the root
+     * @throws VisitorRunnerException A method folding a node failed. The
+     *         checkpoints are kept, so calling {@code run} again resumes
+     *         from the last one.
+     * @throws IOException The checkpoint file couldn't be read or written,
+     *         or belongs to another fold
+     */
+    public R run() throws VisitorRunnerException, IOException {
+        final FoldingHandler handler = runner.newFoldingHandler(visitor);
+        final ArrayList<Cursor> stack = new ArrayList<Cursor>();
+        final List<Long> saved = new ArrayList<Long>();
+        try {
+            if (!resume(handler, stack, saved))
+                enter(handler, stack, graph.getRootOffset(), false);
+            fold(handler, stack, saved);
+        }
+        catch (FoldingException ex) {
+            throw ex.getCause();
+        }
+        if (!checkpointFile.delete())
+            throw new IOException("Failed to delete " + checkpointFile);
+        @SuppressWarnings("unchecked")
+        final R result = (R) handler.getResult();
+        return result;
+    }
+
+    /**
+     * Walks the graph until the stack is empty, saving checkpoints.
+     * @param saved The offsets of the shared nodes whose result was saved
+     */
+    private void fold(FoldingHandler handler, ArrayList<Cursor> stack,
+                      List<Long> saved) throws IOException {
+        /* The offsets of the shared nodes left since the last checkpoint */
+        final List<Long> unsaved = new ArrayList<Long>();
+        long lastCheckpoint = System.nanoTime();
+        int steps = 0;
+        /* The number of checkpoints appended since the last compaction */
+        int appended = 0;
+        DataOutputStream out = openForAppend();
+        try {
+            while (!stack.isEmpty()) {
+                final Cursor cursor = stack.get(stack.size() - 1);
+                if (cursor.position >= cursor.end) {
+                    stack.remove(stack.size() - 1);
+                    handler.leave();
+                    if (cursor.shared)
+                        unsaved.add((long) cursor.offset);
+                }
+                else {
+                    final int p = cursor.position;
+                    cursor.position = graph.skipValue(p);
+                    final byte tag = graph.getTag(p);
+                    if (tag == VisitableFormat.TAG_NODE || tag == VisitableFormat.TAG_SHARED_NODE)
+                        enter(handler, stack, p + 1, tag == VisitableFormat.TAG_SHARED_NODE);
+                    else if (tag == VisitableFormat.TAG_REFERENCE)
+                        handler.reference(graph.getReferencedOffset(p));
+                    else
+                        handler.value(graph.readValue(p));
+                }
+                if (++steps == STEPS_BETWEEN_CHECKS) {
+                    steps = 0;
+                    final long now = System.nanoTime();
+                    if (now - lastCheckpoint >= intervalNanos && !stack.isEmpty()) {
+                        if (appended == CHECKPOINTS_PER_COMPACTION) {
+                            out.close();
+                            saved.addAll(unsaved);
+                            compact(handler, stack, saved);
+                            out = openForAppend();
+                            appended = 0;
+                        }
+                        else {
+                            save(handler, stack, unsaved, out);
+                            saved.addAll(unsaved);
+                            appended++;
+                        }
+                        unsaved.clear();
+                        lastCheckpoint = now;
+                    }
+                }
+            }
+        }
+        finally {
+            out.close();
+        }
+    }
+
+    /** @return A stream appending to the checkpoint file */
+    private DataOutputStream openForAppend() throws IOException {
+        return new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(checkpointFile, true)));
+    }
+
+    /**
+     * Replaces the checkpoint file by a single checkpoint, holding the
+     * results of all the shared nodes left so far. The new file is written
+     * aside, then renamed over the old one.
+     * @param saved The offsets of the shared nodes left so far
+     */
+    private void compact(FoldingHandler handler, ArrayList<Cursor> stack,
+                         List<Long> saved) throws IOException {
+        final File temporary = new File(checkpointFile.getPath() + ".tmp");
+        final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(temporary)));
+        try {
+            save(handler, stack, saved, out);
+        }
+        finally {
+            out.close();
+        }
+        /* Renaming doesn't replace an existing file on every platform */
+        if (!temporary.renameTo(checkpointFile) &&
+            !(checkpointFile.delete() && temporary.renameTo(checkpointFile)))
+            throw new IOException("Failed to replace " + checkpointFile);
+    }
+
+    /** Enters the node whose record starts at {@code offset} */
+    private void enter(FoldingHandler handler, ArrayList<Cursor> stack, int offset,
+                       boolean shared) throws IOException {
+        handler.enter(graph.getVisitableClass(offset), offset, shared);
+        stack.add(new Cursor(offset, shared, graph.getPayloadOffset(offset),
+                             graph.getEndOffset(offset)));
+    }
+
+    /**
+     * Appends a checkpoint to a file.
+     * @param sharedOffsets The offsets of the shared nodes whose result to save
+     */
+    private void save(FoldingHandler handler, ArrayList<Cursor> stack, List<Long> sharedOffsets,
+                      DataOutputStream out) throws IOException {
+        final Checkpoint checkpoint = new Checkpoint();
+        checkpoint.description = description;
+        checkpoint.sharedOffsets = new long[sharedOffsets.size()];
+        checkpoint.sharedResults = new Object[sharedOffsets.size()];
+        for (int n = 0; n < sharedOffsets.size(); n++) {
+            checkpoint.sharedOffsets[n] = sharedOffsets.get(n);
+            checkpoint.sharedResults[n] = handler.getSharedResult(sharedOffsets.get(n));
+        }
+        checkpoint.offsets = new int[stack.size()];
+        checkpoint.shared = new boolean[stack.size()];
+        checkpoint.positions = new int[stack.size()];
+        for (int n = 0; n < stack.size(); n++) {
+            final Cursor cursor = stack.get(n);
+            checkpoint.offsets[n] = cursor.offset;
+            checkpoint.shared[n] = cursor.shared;
+            checkpoint.positions[n] = cursor.position;
+        }
+        checkpoint.arguments = handler.getPendingArguments().toArray(new Object[0][]);
+        final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        final ObjectOutputStream serializer = new ObjectOutputStream(buffer);
+        serializer.writeObject(checkpoint);
+        serializer.close();
+        final byte[] bytes = buffer.toByteArray();
+        final CRC32 crc = new CRC32();
+        crc.update(bytes);
+        out.writeInt(bytes.length);
+        out.writeLong(crc.getValue());
+        out.write(bytes);
+        out.flush();
+        checkpointCount++;
+    }
+
+    /**
+     * Restores the state saved by the checkpoints, if any. An incomplete
+     * checkpoint at the end of the file is removed.
+     * @param saved Where to add the offsets of the shared nodes whose result
+     *        was restored
+     * @return true if a checkpoint was restored
+     */
+    private boolean resume(FoldingHandler handler, ArrayList<Cursor> stack,
+                           List<Long> saved) throws IOException {
+        final File temporary = new File(checkpointFile.getPath() + ".tmp");
+        /* A crash during a compaction, between the removal of the old file
+         * and the renaming of the new one */
+        if (!checkpointFile.exists() && temporary.exists())
+            temporary.renameTo(checkpointFile);
+        if (!checkpointFile.exists())
+            return false;
+        final Map<Long, Object> sharedResults = new HashMap<Long, Object>();
+        Checkpoint last = null;
+        long validLength = 0;
+        final long fileLength = checkpointFile.length();
+        final DataInputStream in = new DataInputStream(new FileInputStream(checkpointFile));
+        try {
+            while (true) {
+                final byte[] bytes;
+                final long expectedCrc;
+                try {
+                    final int length = in.readInt();
+                    /* A corrupted length */
+                    if (length < 0 || length > fileLength - validLength)
+                        break;
+                    bytes = new byte[length];
+                    expectedCrc = in.readLong();
+                    in.readFully(bytes);
+                }
+                catch (EOFException ex) {
+                    break;
+                }
+                final CRC32 crc = new CRC32();
+                crc.update(bytes);
+                if (crc.getValue() != expectedCrc)
+                    break;
+                final Checkpoint checkpoint = deserialize(bytes);
+                if (!description.equals(checkpoint.description))
+                    throw new IOException(checkpointFile + " is a checkpoint of " +
+                                          checkpoint.description + ", not of " +
+                                          description);
+                for (int n = 0; n < checkpoint.sharedOffsets.length; n++)
+                    sharedResults.put(checkpoint.sharedOffsets[n],
+                                      checkpoint.sharedResults[n]);
+                last = checkpoint;
+                validLength += 12 + bytes.length;
+            }
+        }
+        finally {
+            in.close();
+        }
+        truncate(validLength);
+        if (last == null)
+            return false;
+        for (Map.Entry<Long, Object> it : sharedResults.entrySet()) {
+            handler.putSharedResult(it.getKey(), it.getValue());
+            saved.add(it.getKey());
+        }
+        for (int n = 0; n < last.offsets.length; n++) {
+            handler.enter(graph.getVisitableClass(last.offsets[n]), last.offsets[n],
+                          last.shared[n]);
+            for (Object argument : last.arguments[n])
+                handler.value(argument);
+            stack.add(new Cursor(last.offsets[n], last.shared[n], last.positions[n],
+                                 graph.getEndOffset(last.offsets[n])));
+        }
+        return true;
+    }
+
+    /** Reads a checkpoint */
+    private Checkpoint deserialize(byte[] bytes) throws IOException {
+        final ObjectInputStream deserializer =
+                new ObjectInputStream(new ByteArrayInputStream(bytes));
+        try {
+            return (Checkpoint) deserializer.readObject();
+        }
+        catch (ClassNotFoundException ex) {
+            throw new IOException("Failed to read a checkpoint of " + description, ex);
+        }
+        finally {
+            deserializer.close();
+        }
+    }
+
+    /** Removes what follows the last complete checkpoint */
+    private void truncate(long length) throws IOException {
+        final RandomAccessFile file = new RandomAccessFile(checkpointFile, "rw");
+        try {
+            if (file.length() > length)
+                file.setLength(length);
+        }
+        finally {
+            file.close();
+        }
+    }
+}
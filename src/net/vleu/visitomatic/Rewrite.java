@@ -0,0 +1,93 @@
+/*
+ * Copyright 2009 Brice Arnould
+ *
+ * This file is part of VisitOMatic.
+ *
+ * VisitOMatic is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * VisitOMatic is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with VisitOMatic.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.vleu.visitomatic;
+
+import java.lang.reflect.InvocationTargetException;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/**
+ * The state of a call to {@link VisitorRunner#rewrite} : the replacements of
+ * the {@code Visitable}s replaced so far, and the buffers in which the
+ * members of the {@code Visitable}s being rewritten are read. The buffers of
+ * a depth are reused by all the {@code Visitable}s read at this depth, and
+ * primitive members are only read once needed, so reading a
+ * {@code Visitable} that is kept allocates nothing.
+ */
+final class Rewrite {
+
+    /** Associate to the {@code Visitable}s replaced so far their
+     * replacement ; {@code null} until one is */
+    private Map<Visitable, Visitable> replacements;
+    /** {@code buffers.get(depth)[size]} receives the values of this size
+     * read at this depth */
+    private final ArrayList<Object[][]> buffers = new ArrayList<Object[][]>();
+
+    /** @return The replacement of this {@code Visitable}, or {@code null} if it wasn't replaced */
+    Visitable getReplacement(Visitable visitable) {
+        return replacements == null ? null : replacements.get(visitable);
+    }
+
+    /** Remembers the replacement of a {@code Visitable}, if it isn't itself */
+    void setReplacement(Visitable visitable, Visitable replacement) {
+        if (replacement == visitable)
+            return;
+        if (replacements == null)
+            replacements = new IdentityHashMap<Visitable, Visitable>();
+        replacements.put(visitable, replacement);
+    }
+
+    /**
+     * Reads a {@code Visitable} and its members which aren't primitives, like
+     * {@link VisitableReader#readValues(Visitable)} does. The result is only
+     * valid until the next {@code Visitable} is read at the same depth.
+     * @param depth The number of ancestors of the {@code Visitable}
+     * @return The {@code Visitable}, followed by its members ; the primitive
+     *         ones are left {@code null}, see {@link #readPrimitives}
+     */
+    Object[] readReferences(VisitableReader reader, Visitable visitable,
+                            int depth) throws IllegalAccessException, InvocationTargetException {
+        final Class<?>[] types = reader.readTypes();
+        while (buffers.size() <= depth)
+            buffers.add(new Object[0][]);
+        Object[][] sized = buffers.get(depth);
+        if (sized.length <= types.length) {
+            final Object[][] grown = new Object[types.length + 1][];
+            System.arraycopy(sized, 0, grown, 0, sized.length);
+            buffers.set(depth, grown);
+            sized = grown;
+        }
+        Object[] result = sized[types.length];
+        if (result == null)
+            result = sized[types.length] = new Object[types.length];
+        result[0] = visitable;
+        for (int n = 1; n < types.length; n++)
+            result[n] = types[n].isPrimitive() ? null : reader.readValue(visitable, n - 1);
+        return result;
+    }
+
+    /** Reads the primitive members left out by {@link #readReferences} */
+    static void readPrimitives(VisitableReader reader, Object[] values) throws IllegalAccessException, InvocationTargetException {
+        final Class<?>[] types = reader.readTypes();
+        for (int n = 1; n < types.length; n++)
+            if (types[n].isPrimitive())
+                values[n] = reader.readValue((Visitable) values[0], n - 1);
+    }
+}
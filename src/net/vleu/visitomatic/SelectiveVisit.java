@@ -0,0 +1,185 @@
+/*
+ * Copyright 2009 Brice Arnould
+ *
+ * This file is part of VisitOMatic.
+ *
+ * VisitOMatic is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * VisitOMatic is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with VisitOMatic.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.vleu.visitomatic;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import net.vleu.visitomatic.VisitorRunner.VisitorRunnerException;
+
+/**
+ * <p>Visits the {@link Visitable}s of a tree that a {@link VisitorRunner}
+ * has a method for, skipping the subtrees that can't contain any.</p>
+ *
+ * <p>The tree is walked in pre-order, and each {@code Visitable} whose class
+ * is accepted by a {@link VisitingMethod} of the visit is given to it ; the
+ * walk then goes on below it. The members whose declared type shows they
+ * can't lead to such a class, or whose actual class can't, are not walked.
+ * For example, to collect the integers of a tree :</p>
+ * <pre>
+ * SelectiveVisit&lt;Integer&gt; integers = new SelectiveVisit&lt;Integer&gt;(
+ *     VALUE_RUNNER, Arrays.asList(Plus.class, Times.class, JustInteger.class));
+ * List&lt;Integer&gt; values = integers.visitAll(visitor, tree);
+ * </pre>
+ *
+ * <p>The analysis of the declared types starts from the classes it is
+ * given, with the ones declared as their members. Members of an abstract
+ * declared type may hold classes it doesn't know of, so they are always
+ * walked. Classes met during a walk are added to it before their subtree is
+ * judged, so only a concrete declared type can exclude a class that is
+ * neither given nor met yet : such a member is skipped when none of the
+ * subclasses known so far can lead to a visited class.</p>
+ *
+ * <p>Like {@link VisitorRunner#visit(Visitor, Visitable)}, the
+ * {@code Visitable}s reachable from several places are visited once per
+ * occurrence. The walk uses an explicit stack and not the Java one. A
+ * SelectiveVisit is thread-safe.</p>
+ * @param <R> The return type of the visit
+ */
+public final class SelectiveVisit<R> {
+
+    /** The runner of the visit */
+    private final VisitorRunner runner;
+    /** The analysis of the classes known so far, replaced when a class is
+     * met for the first time */
+    private volatile TypeReachability reachability;
+    /** The number of subtrees skipped so far */
+    private final AtomicLong prunedCount = new AtomicLong();
+
+    /**
+     * Analyzes the classes that may appear in the visited trees.
+     * @param runner The runner of the visit
+     * @param classes The classes of {@code Visitable} that may appear in the
+     *        trees. The concrete classes declared as their members are
+     *        added, so giving the class of the roots may suffice.
+     * @throws IllegalArgumentException The members of a class can't be read
+     */
+    public SelectiveVisit(VisitorRunner runner, Collection<? extends Class<? extends Visitable>> classes) throws IllegalArgumentException {
+        this.runner = runner;
+        this.reachability = new TypeReachability(runner, classes);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public String toString() {
+        return "<SelectiveVisit of " + runner + '>';
+    }
+
+    /** @return The number of subtrees skipped by the walks so far */
+    public long getPrunedCount() {
+        return prunedCount.get();
+    }
+
+    /**
+     * @param visitableClass A class of {@code Visitable}
+     * @return true if a tree rooted at a {@code Visitable} of this class may
+     *         contain a {@code Visitable} that the visit has a method for
+     */
+    public boolean mayContainVisited(Class<? extends Visitable> visitableClass) {
+        return analyze(visitableClass).reaches(visitableClass);
+    }
+
+    /** @return The analysis, extended to this class if necessary */
+    private TypeReachability analyze(Class<? extends Visitable> visitableClass) {
+        TypeReachability result = reachability;
+        if (result.knows(visitableClass))
+            return result;
+        synchronized (this) {
+            result = reachability;
+            if (!result.knows(visitableClass)) {
+                result = result.with(visitableClass);
+                reachability = result;
+            }
+        }
+        return result;
+    }
+
+    /** A node whose members are being walked */
+    private static final class Frame {
+
+        /** Its class */
+        final Class<? extends Visitable> visitableClass;
+        /** The node and its members, as read by {@link VisitableReader} */
+        final Object[] values;
+        /** The index in {@link #values} of the next member to walk */
+        int next = 1;
+
+        Frame(Class<? extends Visitable> visitableClass, Object[] values) {
+            this.visitableClass = visitableClass;
+            this.values = values;
+        }
+    }
+
+    /**
+     * Visits the {@code Visitable}s of a tree that the visit has a method
+     * for.
+     * @param visitor The visitor to run
+     * @param root The root of the tree
+     * @return The results of the visits, in pre-order
+     * @throws VisitorRunnerException An error occurs during the running of
+     *         the visitor, or a {@code Visitable} can't be read
+     */
+    public List<R> visitAll(Visitor visitor, Visitable root) throws VisitorRunnerException {
+        final List<R> results = new ArrayList<R>();
+        final ArrayList<Frame> frames = new ArrayList<Frame>();
+        if (!enter(visitor, root, frames, results))
+            prunedCount.incrementAndGet();
+        while (!frames.isEmpty()) {
+            final Frame frame = frames.get(frames.size() - 1);
+            if (frame.next == frame.values.length) {
+                frames.remove(frames.size() - 1);
+                continue;
+            }
+            final int index = frame.next++;
+            if (!(frame.values[index] instanceof Visitable))
+                continue;
+            final Visitable member = (Visitable) frame.values[index];
+            /* Learn the class of the member before trusting the analysis */
+            final TypeReachability analysis = analyze(member.getClass());
+            if (!analysis.reaches(frame.visitableClass, index - 1) ||
+                !enter(visitor, member, frames, results))
+                prunedCount.incrementAndGet();
+        }
+        return results;
+    }
+
+    /**
+     * Visits a {@code Visitable} if the visit has a method for it, and
+     * prepares the walk of its members.
+     * @return false if it was skipped, as it can't lead to a visited class
+     */
+    private boolean enter(Visitor visitor, Visitable visitable, List<Frame> frames,
+                          List<R> results) throws VisitorRunnerException {
+        final Class<? extends Visitable> visitableClass = visitable.getClass();
+        final TypeReachability analysis = analyze(visitableClass);
+        if (!analysis.reaches(visitableClass))
+            return false;
+        if (analysis.isHandled(visitableClass))
+            results.add(runner.<R>visit(visitor, visitable));
+        try {
+            frames.add(new Frame(visitableClass,
+                                 VisitableModel.readerOf(visitableClass).readValues(visitable)));
+        }
+        catch (Exception ex) {
+            throw runner.new VisitorRunnerException(ex);
+        }
+        return true;
+    }
+}
@@ -0,0 +1,250 @@
+/*
+ * Copyright 2009 Brice Arnould
+ *
+ * This file is part of VisitOMatic.
+ *
+ * VisitOMatic is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * VisitOMatic is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with VisitOMatic.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.vleu.visitomatic;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * <p>This {@link VisitorRunner} starts by visiting like the one returned by
+ * {@link VisitorRunner#getInstance}, and counts the visits of each class
+ * of {@link Visitable}. Once a class was visited {@code threshold} times,
+ * a dispatcher specialised for it is compiled by a background thread,
+ * then used for the following visits of this class.</p>
+ *
+ * <p>The specialised dispatcher resolves ahead what the generic path
+ * resolves on each visit : it reads the fields directly when all the
+ * members are fields, and calls a fixed method when no {@link Matching}
+ * pattern depends on the values. Rarely visited classes thus cost nothing
+ * more than with the generic path, while the hot ones get faster.
+ * {@link #getTier} tells how a class is currently visited.</p>
+ *
+ * <p>Like with {@link IncrementalVisitorRunner}, {@code VisitingMethod}s
+ * must use this runner to visit the members of their {@code Visitable}s
+ * for these visits to be counted. A TieredVisitorRunner is thread-safe.</p>
+ * @see VisitorRunner#getTieredInstance
+ */
+public final class TieredVisitorRunner extends VisitorRunner {
+
+    /** How a class of {@code Visitable} is visited */
+    public enum Tier {
+
+        /** By the generic path, counting the visits */
+        GENERIC,
+        /** By the generic path, while its dispatcher is compiled */
+        COMPILING,
+        /** By its specialised dispatcher */
+        COMPILED,
+        /** By the generic path, without counting, as its dispatcher failed
+         * to compile */
+        GENERIC_ONLY
+    }
+
+    /** The default number of visits of a class before it is compiled */
+    public final static int DEFAULT_THRESHOLD = 1000;
+    /** Compiles the dispatchers of all the runners, in the background */
+    private final static ExecutorService COMPILER =
+            Executors.newSingleThreadExecutor(new ThreadFactory() {
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            final Thread result = new Thread(runnable, "VisitOMatic compiler");
+            result.setDaemon(true);
+            return result;
+        }
+    });
+    /** The runner of the generic path, which also compiles the dispatchers */
+    private final ReflectionBasedVisitorRunner delegate;
+    /** The number of visits of a class before it is compiled */
+    private final int threshold;
+    /** Associate to the classes visited by the generic path their number
+     * of visits so far */
+    private final ConcurrentHashMap<Class<? extends Visitable>, AtomicInteger> counters;
+    /** Associate to the classes whose dispatcher failed to compile the
+     * reason why */
+    private final ConcurrentHashMap<Class<? extends Visitable>, RuntimeException> failures;
+    /** Associate to the compiled classes their dispatcher. It is never
+     * modified : compiling a class replaces it by a copy, under the lock of
+     * this runner. */
+    private volatile Map<Class<? extends Visitable>, ReflectionBasedVisitorRunner.CompiledDispatch> compiled;
+
+    /**
+     * Call {@link VisitorRunner#getTieredInstance} to get an instance.
+     */
+    TieredVisitorRunner(ReflectionBasedVisitorRunner delegate, int threshold) {
+        if (threshold < 1)
+            throw new IllegalArgumentException("threshold must be positive");
+        this.delegate = delegate;
+        this.threshold = threshold;
+        counters = new ConcurrentHashMap<Class<? extends Visitable>, AtomicInteger>();
+        failures = new ConcurrentHashMap<Class<? extends Visitable>, RuntimeException>();
+        compiled = new HashMap<Class<? extends Visitable>, ReflectionBasedVisitorRunner.CompiledDispatch>();
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public String toString() {
+        return "<Tiered " + delegate + '>';
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>This version uses the specialised dispatcher of the class of
+     * {@code visitable} if it was compiled, and counts the visit otherwise,
+     * unless its compilation failed.</p>
+     */
+    @Override
+    public <R> R visit(Visitor visitor, Visitable visitable) throws VisitorRunnerException {
+        final Class<? extends Visitable> visitableClass = visitable.getClass();
+        final ReflectionBasedVisitorRunner.CompiledDispatch dispatch =
+                compiled.get(visitableClass);
+        if (dispatch != null)
+            return dispatch.<R>visit(visitor, visitable);
+        if (!(visitable instanceof MappedVisitable) &&
+            !failures.containsKey(visitableClass))
+            count(visitableClass);
+        return delegate.<R>visit(visitor, visitable);
+    }
+
+    /** Counts a visit by the generic path, and compiles the class once hot */
+    private void count(final Class<? extends Visitable> visitableClass) {
+        AtomicInteger counter = counters.get(visitableClass);
+        if (counter == null) {
+            counter = new AtomicInteger();
+            final AtomicInteger previous = counters.putIfAbsent(visitableClass, counter);
+            if (previous != null)
+                counter = previous;
+        }
+        if (counter.incrementAndGet() == threshold)
+            COMPILER.execute(new Runnable() {
+
+                @Override
+                public void run() {
+                    compile(visitableClass);
+                }
+            });
+    }
+
+    /** Compiles the dispatcher of a class, and makes the visits use it */
+    private void compile(Class<? extends Visitable> visitableClass) {
+        final ReflectionBasedVisitorRunner.CompiledDispatch dispatch;
+        try {
+            dispatch = delegate.compile(visitableClass);
+        }
+        catch (RuntimeException ex) {
+            /* It stays on the generic path, which reports the error */
+            failures.put(visitableClass, ex);
+            return;
+        }
+        synchronized (this) {
+            final Map<Class<? extends Visitable>, ReflectionBasedVisitorRunner.CompiledDispatch> copy =
+                    new HashMap<Class<? extends Visitable>, ReflectionBasedVisitorRunner.CompiledDispatch>(compiled);
+            copy.put(visitableClass, dispatch);
+            compiled = copy;
+        }
+    }
+
+    /**
+     * @param visitableClass A class of {@code Visitable}
+     * @return How this class is currently visited
+     */
+    public Tier getTier(Class<? extends Visitable> visitableClass) {
+        if (compiled.containsKey(visitableClass))
+            return Tier.COMPILED;
+        if (failures.containsKey(visitableClass))
+            return Tier.GENERIC_ONLY;
+        final AtomicInteger counter = counters.get(visitableClass);
+        if (counter != null && counter.get() >= threshold)
+            return Tier.COMPILING;
+        else
+            return Tier.GENERIC;
+    }
+
+    /**
+     * @param visitableClass A class of {@code Visitable}
+     * @return Why the dispatcher of this class failed to compile, or null if
+     *         it did not
+     * @see Tier#GENERIC_ONLY
+     */
+    public RuntimeException getCompilationFailure(Class<? extends Visitable> visitableClass) {
+        return failures.get(visitableClass);
+    }
+
+    /**
+     * @param visitableClass A class of {@code Visitable}
+     * @return The number of visits of this class by the generic path, until
+     *         it is compiled or its compilation fails
+     */
+    public int getGenericVisitCount(Class<? extends Visitable> visitableClass) {
+        final AtomicInteger counter = counters.get(visitableClass);
+        return counter == null ? 0 : counter.get();
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public <R extends Visitable> R rewrite(Visitor visitor, Visitable visitable) throws VisitorRunnerException {
+        return delegate.<R>rewrite(visitor, visitable);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public <R> R visit(Visitor visitor, VisitableStreamDecoder decoder) throws VisitorRunnerException, IOException {
+        return delegate.<R>visit(visitor, decoder);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    <R> R dispatchPair(Visitor visitor, Visitable left, Visitable right) throws VisitorRunnerException {
+        return delegate.<R>dispatchPair(visitor, left, right);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    boolean handles(Class<? extends Visitable> visitableClass) {
+        return delegate.handles(visitableClass);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    FoldingHandler newFoldingHandler(Visitor visitor) {
+        return delegate.newFoldingHandler(visitor);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public <R> FutureTask<R> futureVisit(final Visitor visitor, final Visitable visitable) {
+        final Callable<R> callable = new Callable<R>() {
+
+            /** {@inheritDoc} */
+            @Override
+            public R call() throws VisitorRunnerException {
+                return TieredVisitorRunner.this.<R>visit(visitor, visitable);
+            }
+        };
+        return new FutureTask<R>(callable);
+    }
+}
@@ -0,0 +1,383 @@
+/*
+ * Copyright 2009 Brice Arnould
+ *
+ * This file is part of VisitOMatic.
+ *
+ * VisitOMatic is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * VisitOMatic is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with VisitOMatic.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.vleu.visitomatic;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.RandomAccess;
+import java.util.concurrent.atomic.AtomicInteger;
+import net.vleu.visitomatic.VisitorRunner.VisitorRunnerException;
+
+/**
+ * <p>An index of the nodes of a tree of {@link Visitable}s by class, built
+ * in a single walk of the members annotated by {@link ToVisit}.</p>
+ *
+ * <p>Each node is given an identifier, its position in the pre-order of the
+ * tree (the document order), and the index keeps the parent and the depth
+ * of each identifier in flat arrays. For each class of {@code Visitable},
+ * it keeps the identifiers of its nodes in an array, in document order, so
+ * asking for all the nodes of a class doesn't walk the tree again. For
+ * example :</p>
+ * <pre>
+ * TreeIndex index = TreeIndex.build(tree, 4);
+ * List&lt;Integer&gt; values = index.visitAll(VALUE_RUNNER, visitor, JustInteger.class);
+ * pipeline.run(index.getNodes(Plus.class).iterator(), handler);
+ * </pre>
+ *
+ * <p>Like {@link VisitorRunner#visit(Visitor, Visitable)}, the
+ * {@code Visitable}s reachable from several places are indexed once per
+ * occurrence, so the graph must not have cycles. The index is a snapshot :
+ * it isn't updated if the tree is modified. Instances are immutable and
+ * thread-safe.</p>
+ */
+public final class TreeIndex {
+
+    /** The number of subtrees built in parallel per thread, to balance the load */
+    private static final int SUBTREES_PER_THREAD = 4;
+
+    /** Associate to identifiers the nodes */
+    private final Visitable[] nodes;
+    /** Associate to identifiers the identifier of the parent, or -1 for the root */
+    private final int[] parents;
+    /** Associate to identifiers the depth, the root being at 0 */
+    private final int[] depths;
+    /** Associate to classes of {@code Visitable} the identifiers of their
+     * nodes, in document order */
+    private final Map<Class<? extends Visitable>, int[]> classesToIds;
+
+    private TreeIndex(Fragment tree) {
+        nodes = Arrays.copyOf(tree.nodes, tree.size);
+        parents = Arrays.copyOf(tree.parents, tree.size);
+        depths = Arrays.copyOf(tree.depths, tree.size);
+        /* Count the nodes of each class, then gather their identifiers */
+        final Map<Class<? extends Visitable>, int[]> counts =
+                new HashMap<Class<? extends Visitable>, int[]>();
+        for (Visitable node : nodes) {
+            final int[] count = counts.get(node.getClass());
+            if (count == null)
+                counts.put(node.getClass(), new int[] {1});
+            else
+                count[0]++;
+        }
+        classesToIds = new HashMap<Class<? extends Visitable>, int[]>();
+        for (Map.Entry<Class<? extends Visitable>, int[]> it : counts.entrySet()) {
+            classesToIds.put(it.getKey(), new int[it.getValue()[0]]);
+            it.getValue()[0] = 0;
+        }
+        for (int id = 0; id < nodes.length; id++) {
+            final Class<? extends Visitable> nodeClass = nodes[id].getClass();
+            classesToIds.get(nodeClass)[counts.get(nodeClass)[0]++] = id;
+        }
+    }
+
+    /**
+     * Indexes a tree in the current thread.
+     * @param root The root of the tree
+     * @return The index of the tree
+     * @throws IllegalArgumentException The members of a node can't be read
+     */
+    public static TreeIndex build(Visitable root) throws IllegalArgumentException {
+        final Fragment tree = new Fragment();
+        tree.append(root, -1, 0);
+        return new TreeIndex(tree);
+    }
+
+    /**
+     * Indexes a tree using several threads. The first levels of the tree
+     * are cut into subtrees that are indexed in parallel, then gathered.
+     * @param root The root of the tree
+     * @param threads The number of threads
+     * @return The index of the tree
+     * @throws IllegalArgumentException The members of a node can't be read
+     */
+    public static TreeIndex build(Visitable root, int threads) throws IllegalArgumentException {
+        if (threads < 1)
+            throw new IllegalArgumentException("At least one thread is needed");
+        if (threads == 1)
+            return build(root);
+        /* Find the first level with enough nodes to keep the threads busy */
+        int cutDepth = 0;
+        List<Visitable> level = Collections.singletonList(root);
+        while (!level.isEmpty() && level.size() < threads * SUBTREES_PER_THREAD) {
+            final List<Visitable> next = new ArrayList<Visitable>();
+            for (Visitable node : level) {
+                final Object[] values = read(node);
+                for (int n = 1; n < values.length; n++)
+                    if (values[n] instanceof Visitable)
+                        next.add((Visitable) values[n]);
+            }
+            level = next;
+            cutDepth++;
+        }
+        if (level.isEmpty())
+            return build(root);
+        /* Index the distinct subtrees at this level in parallel */
+        final Map<Visitable, Fragment> subtrees = new IdentityHashMap<Visitable, Fragment>();
+        for (Visitable node : level)
+            subtrees.put(node, null);
+        final Visitable[] roots = subtrees.keySet().toArray(new Visitable[subtrees.size()]);
+        final Fragment[] fragments = buildInParallel(roots, threads);
+        for (int n = 0; n < roots.length; n++)
+            subtrees.put(roots[n], fragments[n]);
+        /* Gather them under the first levels, in document order */
+        final Fragment tree = new Fragment();
+        tree.append(root, -1, 0, cutDepth, subtrees);
+        return new TreeIndex(tree);
+    }
+
+    /** @return The fragments of these subtrees, built by {@code threads} threads */
+    private static Fragment[] buildInParallel(final Visitable[] roots, int threads) {
+        final Fragment[] result = new Fragment[roots.length];
+        final AtomicInteger next = new AtomicInteger();
+        final RuntimeException[] failure = new RuntimeException[1];
+        final Runnable run = new Runnable() {
+
+            @Override
+            public void run() {
+                try {
+                    for (int n; (n = next.getAndIncrement()) < roots.length;) {
+                        final Fragment fragment = new Fragment();
+                        fragment.append(roots[n], -1, 0);
+                        result[n] = fragment;
+                    }
+                }
+                catch (RuntimeException ex) {
+                    synchronized (failure) {
+                        if (failure[0] == null)
+                            failure[0] = ex;
+                    }
+                    next.set(roots.length);
+                }
+            }
+        };
+        final Thread[] workers = new Thread[Math.min(threads, roots.length)];
+        for (int n = 0; n < workers.length; n++) {
+            workers[n] = new Thread(run, "TreeIndex builder " + n);
+            workers[n].start();
+        }
+        try {
+            for (Thread worker : workers)
+                worker.join();
+        }
+        catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while indexing", ex);
+        }
+        /* The joins made the fragments and the failure visible */
+        if (failure[0] != null)
+            throw failure[0];
+        return result;
+    }
+
+    /** Reads the members of a {@code Visitable} */
+    private static Object[] read(Visitable visitable) throws IllegalArgumentException {
+        try {
+            return VisitableModel.readerOf(visitable.getClass()).readValues(visitable);
+        }
+        catch (Exception ex) {
+            throw new IllegalArgumentException("Failed to read " + visitable, ex);
+        }
+    }
+
+    /**
+     * The nodes of a tree, or of a subtree, in pre-order, with their parents
+     * and depths. The arrays grow as nodes are appended.
+     */
+    private static final class Fragment {
+
+        Visitable[] nodes = new Visitable[64];
+        int[] parents = new int[64];
+        int[] depths = new int[64];
+        /** The number of nodes */
+        int size;
+
+        /** @return The identifier of a new node */
+        private int add(Visitable node, int parent, int depth) {
+            if (size == nodes.length) {
+                nodes = Arrays.copyOf(nodes, size * 2);
+                parents = Arrays.copyOf(parents, size * 2);
+                depths = Arrays.copyOf(depths, size * 2);
+            }
+            nodes[size] = node;
+            parents[size] = parent;
+            depths[size] = depth;
+            return size++;
+        }
+
+        /** Appends a subtree */
+        void append(Visitable root, int parent, int depth) {
+            append(root, parent, depth, -1, null);
+        }
+
+        /**
+         * Appends a subtree, with an explicit stack.
+         * @param cutDepth The depth of the nodes whose subtree is already in
+         *        {@code subtrees}, or -1
+         * @param subtrees Associate to the nodes at {@code cutDepth} the
+         *        fragment of their subtree
+         */
+        void append(Visitable root, int parent, int depth, int cutDepth,
+                    Map<Visitable, Fragment> subtrees) {
+            final ArrayList<Object[]> valuesStack = new ArrayList<Object[]>();
+            final ArrayList<int[]> stateStack = new ArrayList<int[]>();
+            Visitable node = root;
+            while (true) {
+                if (node != null) {
+                    if (depth == cutDepth)
+                        splice(subtrees.get(node), parent, depth);
+                    else {
+                        final int id = add(node, parent, depth);
+                        valuesStack.add(read(node));
+                        /* The identifier of the node, its depth and the next member */
+                        stateStack.add(new int[] {id, depth, 1});
+                    }
+                }
+                /* Find the next member to append */
+                node = null;
+                while (node == null && !stateStack.isEmpty()) {
+                    final Object[] values = valuesStack.get(valuesStack.size() - 1);
+                    final int[] state = stateStack.get(stateStack.size() - 1);
+                    if (state[2] == values.length) {
+                        valuesStack.remove(valuesStack.size() - 1);
+                        stateStack.remove(stateStack.size() - 1);
+                    }
+                    else if (values[state[2]++] instanceof Visitable) {
+                        node = (Visitable) values[state[2] - 1];
+                        parent = state[0];
+                        depth = state[1] + 1;
+                    }
+                }
+                if (node == null)
+                    return;
+            }
+        }
+
+        /** Appends the nodes of a fragment under a node */
+        private void splice(Fragment fragment, int parent, int depth) {
+            final int base = size;
+            for (int n = 0; n < fragment.size; n++)
+                add(fragment.nodes[n],
+                    fragment.parents[n] < 0 ? parent : fragment.parents[n] + base,
+                    fragment.depths[n] + depth);
+        }
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public String toString() {
+        return "<TreeIndex of " + nodes.length + " nodes of " + classesToIds.size() +
+               " classes>";
+    }
+
+    /** @return The number of nodes of the tree */
+    public int size() {
+        return nodes.length;
+    }
+
+    /**
+     * @param id An identifier, from 0 to {@link #size} excluded
+     * @return The node with this identifier
+     */
+    public Visitable getNode(int id) {
+        return nodes[id];
+    }
+
+    /**
+     * @param id An identifier, from 0 to {@link #size} excluded
+     * @return The identifier of the parent of the node, or -1 for the root
+     */
+    public int getParent(int id) {
+        return parents[id];
+    }
+
+    /**
+     * @param id An identifier, from 0 to {@link #size} excluded
+     * @return The depth of the node, the root being at 0
+     */
+    public int getDepth(int id) {
+        return depths[id];
+    }
+
+    /**
+     * @param visitableClass A class of {@code Visitable}
+     * @return The identifiers of the nodes of exactly this class, in
+     *         document order. The array is a copy.
+     */
+    public int[] getIds(Class<? extends Visitable> visitableClass) {
+        final int[] ids = classesToIds.get(visitableClass);
+        return ids == null ? new int[0] : ids.clone();
+    }
+
+    /**
+     * @param <T> The class of the nodes
+     * @param visitableClass A class of {@code Visitable}
+     * @return The nodes of exactly this class, in document order, as an
+     *         unmodifiable list backed by the index
+     */
+    public <T extends Visitable> List<T> getNodes(final Class<T> visitableClass) {
+        final int[] ids = classesToIds.containsKey(visitableClass) ?
+                          classesToIds.get(visitableClass) : new int[0];
+        return new NodeList<T>(ids);
+    }
+
+    /** The nodes with some identifiers */
+    private final class NodeList<T extends Visitable> extends AbstractList<T> implements RandomAccess {
+
+        private final int[] ids;
+
+        NodeList(int[] ids) {
+            this.ids = ids;
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public T get(int index) {
+            return (T) nodes[ids[index]];
+        }
+
+        @Override
+        public int size() {
+            return ids.length;
+        }
+    }
+
+    /**
+     * Visits all the nodes of a class, in document order.
+     * @param <R> The return type
+     * @param runner The runner of the visit
+     * @param visitor The visitor to run
+     * @param visitableClass The class of the nodes to visit
+     * @return The results of the visits, in document order
+     * @throws VisitorRunnerException An error occurs during the running of the visitor
+     */
+    public <R> List<R> visitAll(VisitorRunner runner, Visitor visitor,
+                                Class<? extends Visitable> visitableClass) throws VisitorRunnerException {
+        final List<? extends Visitable> selected = getNodes(visitableClass);
+        final List<R> results = new ArrayList<R>(selected.size());
+        for (Visitable node : selected)
+            results.add(runner.<R>visit(visitor, node));
+        return results;
+    }
+}
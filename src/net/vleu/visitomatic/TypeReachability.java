@@ -0,0 +1,209 @@
+/*
+ * Copyright 2009 Brice Arnould
+ *
+ * This file is part of VisitOMatic.
+ *
+ * VisitOMatic is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * VisitOMatic is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with VisitOMatic.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.vleu.visitomatic;
+
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * <p>Tells, from the declared types of the members annotated by
+ * {@link ToVisit}, which subtrees may contain a {@code Visitable} of a class
+ * handled by a {@link VisitorRunner}.</p>
+ *
+ * <p>The analysis is done over a set of classes : the ones it is given and
+ * the concrete classes declared as members of those, transitively. A member
+ * may hold a class of the set if its declared type is assignable from it,
+ * and contains a handled class if such a class is reachable from it through
+ * members. A member whose declared type is abstract, or has no subclass in
+ * the set, may hold classes the analysis doesn't know of : it is assumed to
+ * contain a handled class. The least fixed point is computed, so recursive
+ * types are handled. Instances are immutable ; {@link #with} returns an
+ * extended copy.</p>
+ * @see SelectiveVisit
+ */
+final class TypeReachability {
+
+    /** The runner whose handled classes are searched */
+    private final VisitorRunner runner;
+    /** The concrete classes analyzed */
+    private final Set<Class<? extends Visitable>> classes;
+    /** The classes handled by {@link #runner} */
+    private final Set<Class<? extends Visitable>> targets;
+    /** Associate to the analyzed classes whether a handled class may be
+     * found in their subtrees, themselves included */
+    private final Map<Class<? extends Visitable>, Boolean> classesReach;
+    /** Associate to the analyzed classes whether a handled class may be
+     * found below each of their members, in the order specified by
+     * {@code ToVisit}. Open members are assumed to reach one. */
+    private final Map<Class<? extends Visitable>, boolean[]> membersReach;
+
+    /**
+     * Analyzes a set of classes.
+     * @param runner The runner whose handled classes are searched
+     * @param classes The classes that may appear in the visited graphs ;
+     *        abstract ones are ignored
+     */
+    TypeReachability(VisitorRunner runner, Collection<? extends Class<? extends Visitable>> classes) {
+        this.runner = runner;
+        this.classes = close(classes);
+        targets = new HashSet<Class<? extends Visitable>>();
+        for (Class<? extends Visitable> it : this.classes)
+            if (runner.handles(it))
+                targets.add(it);
+        /* Associate to each class and member the classes it may hold, or
+         * null if it may hold classes we don't know of */
+        final Map<Class<? extends Visitable>, List<List<Class<? extends Visitable>>>> candidates =
+                new HashMap<Class<? extends Visitable>, List<List<Class<? extends Visitable>>>>();
+        for (Class<? extends Visitable> it : this.classes) {
+            final Class<?>[] types = VisitableModel.readerOf(it).readTypes();
+            final List<List<Class<? extends Visitable>>> members =
+                    new ArrayList<List<Class<? extends Visitable>>>(types.length - 1);
+            for (int n = 1; n < types.length; n++)
+                members.add(isOpen(types[n]) ? null : assignableTo(types[n]));
+            candidates.put(it, members);
+        }
+        /* Propagate reachability from the handled classes up to a fixed point */
+        classesReach = new HashMap<Class<? extends Visitable>, Boolean>();
+        for (Class<? extends Visitable> it : this.classes)
+            classesReach.put(it, targets.contains(it));
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (Class<? extends Visitable> it : this.classes)
+                if (!classesReach.get(it))
+                    for (List<Class<? extends Visitable>> member : candidates.get(it))
+                        if (anyReaches(member)) {
+                            classesReach.put(it, Boolean.TRUE);
+                            changed = true;
+                            break;
+                        }
+        }
+        membersReach = new HashMap<Class<? extends Visitable>, boolean[]>();
+        for (Class<? extends Visitable> it : this.classes) {
+            final List<List<Class<? extends Visitable>>> members = candidates.get(it);
+            final boolean[] reach = new boolean[members.size()];
+            for (int n = 0; n < reach.length; n++)
+                reach[n] = anyReaches(members.get(n));
+            membersReach.put(it, reach);
+        }
+    }
+
+    /**
+     * @return The concrete classes among {@code classes}, and the ones
+     *         declared as their members, transitively
+     */
+    private static Set<Class<? extends Visitable>> close(Collection<? extends Class<? extends Visitable>> classes) {
+        final Set<Class<? extends Visitable>> result = new HashSet<Class<? extends Visitable>>();
+        final List<Class<? extends Visitable>> pending =
+                new ArrayList<Class<? extends Visitable>>(classes);
+        while (!pending.isEmpty()) {
+            final Class<? extends Visitable> it = pending.remove(pending.size() - 1);
+            if (!isConcrete(it) || !result.add(it))
+                continue;
+            final Class<?>[] types = VisitableModel.readerOf(it).readTypes();
+            for (int n = 1; n < types.length; n++)
+                if (Visitable.class.isAssignableFrom(types[n]))
+                    pending.add(types[n].asSubclass(Visitable.class));
+        }
+        return result;
+    }
+
+    /** @return true if instances of this class may exist */
+    private static boolean isConcrete(Class<?> type) {
+        return !type.isInterface() && !Modifier.isAbstract(type.getModifiers());
+    }
+
+    /**
+     * @return true if a member of this declared type may hold a
+     *         {@code Visitable} of a class the analysis doesn't know of
+     */
+    private boolean isOpen(Class<?> type) {
+        final boolean mayHoldVisitable = !type.isPrimitive() &&
+                (Visitable.class.isAssignableFrom(type) ||
+                 !Modifier.isFinal(type.getModifiers()));
+        return mayHoldVisitable &&
+               (!isConcrete(type) || assignableTo(type).isEmpty());
+    }
+
+    /** @return The analyzed classes that a member of this type may hold */
+    private List<Class<? extends Visitable>> assignableTo(Class<?> type) {
+        final List<Class<? extends Visitable>> result = new ArrayList<Class<? extends Visitable>>();
+        for (Class<? extends Visitable> it : classes)
+            if (type.isAssignableFrom(it))
+                result.add(it);
+        return result;
+    }
+
+    /**
+     * @param candidates Classes, or null if they are not known
+     * @return true if a handled class may be found below one of those classes
+     */
+    private boolean anyReaches(List<Class<? extends Visitable>> candidates) {
+        if (candidates == null)
+            return true;
+        for (Class<? extends Visitable> it : candidates)
+            if (classesReach.get(it))
+                return true;
+        return false;
+    }
+
+    /**
+     * @return A copy of this analysis that also knows {@code visitableClass}
+     */
+    TypeReachability with(Class<? extends Visitable> visitableClass) {
+        final List<Class<? extends Visitable>> extended =
+                new ArrayList<Class<? extends Visitable>>(classes);
+        extended.add(visitableClass);
+        return new TypeReachability(runner, extended);
+    }
+
+    /** @return true if this class was analyzed */
+    boolean knows(Class<? extends Visitable> visitableClass) {
+        return classesReach.containsKey(visitableClass);
+    }
+
+    /** @return true if {@link #runner} has a method for this analyzed class */
+    boolean isHandled(Class<? extends Visitable> visitableClass) {
+        return targets.contains(visitableClass);
+    }
+
+    /**
+     * @return true if a handled class may be found in a subtree rooted at a
+     *         {@code Visitable} of this analyzed class, itself included
+     */
+    boolean reaches(Class<? extends Visitable> visitableClass) {
+        return classesReach.get(visitableClass);
+    }
+
+    /**
+     * @param visitableClass An analyzed class
+     * @param index The position of the member, in the order specified by
+     *        {@code ToVisit}, starting from 0
+     * @return true if a handled class may be found below this member
+     */
+    boolean reaches(Class<? extends Visitable> visitableClass, int index) {
+        return membersReach.get(visitableClass)[index];
+    }
+}
@@ -0,0 +1,238 @@
+/*
+ * Copyright 2009 Brice Arnould
+ *
+ * This file is part of VisitOMatic.
+ *
+ * VisitOMatic is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * VisitOMatic is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with VisitOMatic.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.vleu.visitomatic;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import net.vleu.visitomatic.VisitorRunner.VisitorRunnerException;
+
+/**
+ * <p>Bounds the duration of visits : given to
+ * {@link VisitorRunner#visit(Visitor, Visitable, VisitDeadline)}, it
+ * aborts the visit once it expires or is cancelled.</p>
+ *
+ * <p>The runners check it every {@code checkInterval} calls to a visiting
+ * method of the thread running the visit, so an expired visit stops after
+ * at most this number of calls plus the duration of one of them. Other
+ * threads, including the ones running visits with other deadlines, are
+ * not affected.</p>
+ *
+ * <p>A VisitDeadline is thread-safe : the same one can be given to several
+ * visits, and cancelled from any thread.</p>
+ * @see FallbackVisitor
+ */
+public final class VisitDeadline {
+
+    /** The default number of calls between two checks */
+    public final static int DEFAULT_CHECK_INTERVAL = 256;
+    /**
+     * The number of visits with a deadline in progress in all the threads.
+     * While it is zero, the runners don't look for the deadline of the
+     * current thread.
+     */
+    private final static AtomicInteger SCOPES = new AtomicInteger();
+    /** The deadlines of the visits in progress in the current thread */
+    private final static ThreadLocal<Scope> CURRENT = new ThreadLocal<Scope>();
+    /** The value of System.nanoTime() at which it expires */
+    private final long expiry;
+    /** Whether it can expire, or only be cancelled */
+    private final boolean expires;
+    /** The number of calls between two checks */
+    private final int checkInterval;
+    /** Set by {@link #cancel} */
+    private volatile boolean cancelled;
+
+    private VisitDeadline(long expiry, boolean expires, int checkInterval) {
+        if (checkInterval < 1)
+            throw new IllegalArgumentException("checkInterval must be positive");
+        this.expiry = expiry;
+        this.expires = expires;
+        this.checkInterval = checkInterval;
+    }
+
+    /**
+     * @param timeout The maximum duration of the visits
+     * @param unit The unit of {@code timeout}
+     * @return A deadline expiring once {@code timeout} elapsed from now
+     */
+    public static VisitDeadline after(long timeout, TimeUnit unit) {
+        return after(timeout, unit, DEFAULT_CHECK_INTERVAL);
+    }
+
+    /**
+     * @param timeout The maximum duration of the visits
+     * @param unit The unit of {@code timeout}
+     * @param checkInterval The number of calls to visiting methods between
+     *        two checks
+     * @return A deadline expiring once {@code timeout} elapsed from now
+     */
+    public static VisitDeadline after(long timeout, TimeUnit unit, int checkInterval) {
+        return new VisitDeadline(System.nanoTime() + unit.toNanos(timeout),
+                                 true, checkInterval);
+    }
+
+    /**
+     * @return A deadline that never expires, but can be cancelled
+     */
+    public static VisitDeadline cancellable() {
+        return new VisitDeadline(0, false, DEFAULT_CHECK_INTERVAL);
+    }
+
+    /**
+     * Aborts the visits using this deadline, and the ones that will use it.
+     */
+    public void cancel() {
+        cancelled = true;
+    }
+
+    /**
+     * @return true if {@link #cancel} was called
+     */
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    /**
+     * @return true if the visits using this deadline should be aborted
+     */
+    public boolean isExpired() {
+        return cancelled || (expires && System.nanoTime() - expiry >= 0);
+    }
+
+    /**
+     * @return The reason why the visits using this deadline should be
+     *         aborted, or null if they should not
+     */
+    private Exception getReason() {
+        if (cancelled)
+            return new CancellationException("The visit was cancelled");
+        else if (expires && System.nanoTime() - expiry >= 0)
+            return new TimeoutException("The visit exceeded its deadline");
+        else
+            return null;
+    }
+
+    /**
+     * Runs the visits of the current thread under {@code deadline}, until
+     * the matching call to {@link #leave}.
+     */
+    static void enter(VisitDeadline deadline) {
+        CURRENT.set(new Scope(deadline, CURRENT.get()));
+        SCOPES.incrementAndGet();
+    }
+
+    /**
+     * Ends the last call to {@link #enter} of the current thread.
+     */
+    static void leave() {
+        SCOPES.decrementAndGet();
+        final Scope parent = CURRENT.get().parent;
+        if (parent == null)
+            CURRENT.remove();
+        else
+            CURRENT.set(parent);
+    }
+
+    /**
+     * @return true if a visit with a deadline is in progress in a thread ;
+     *         it is cheap enough to call before each visiting method
+     */
+    static boolean inProgress() {
+        return SCOPES.get() != 0;
+    }
+
+    /**
+     * Called before each visiting method while {@link #inProgress}.
+     * @param runner The runner that will call the method
+     * @throws VisitorRunnerException If the deadline of the current thread
+     *         has expired, caused by a {@link TimeoutException}, or was
+     *         cancelled, caused by a {@link CancellationException}
+     */
+    static void check(VisitorRunner runner) throws VisitorRunnerException {
+        final Scope scope = CURRENT.get();
+        if (scope == null || --scope.countdown > 0)
+            return;
+        scope.countdown = scope.deadline.checkInterval;
+        for (Scope it = scope; it != null; it = it.parent) {
+            final Exception reason = it.deadline.getReason();
+            if (reason != null)
+                throw runner.new VisitorRunnerException(new Abort(it.deadline, reason));
+        }
+    }
+
+    /**
+     * @param ex An exception thrown by a visit
+     * @param deadline The deadline of the visit
+     * @return The {@link TimeoutException} or {@link CancellationException}
+     *         explaining why {@code deadline} aborted the visit, or null if
+     *         {@code ex} was not caused by it
+     */
+    static Throwable getReason(Throwable ex, VisitDeadline deadline) {
+        for (Throwable it = ex; it != null; it = it.getCause())
+            if (it instanceof Abort && ((Abort) it).deadline == deadline)
+                return it.getCause();
+        return null;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public String toString() {
+        if (cancelled)
+            return "<Cancelled deadline>";
+        else if (!expires)
+            return "<Cancellable deadline>";
+        else
+            return "<Deadline in " +
+                   TimeUnit.NANOSECONDS.toMillis(expiry - System.nanoTime()) +
+                   "ms>";
+    }
+
+    /**
+     * Tells, through the cause of a {@link VisitorRunnerException}, which
+     * deadline aborted a visit. Its own cause is the reason.
+     */
+    private final static class Abort extends Exception {
+
+        private static final long serialVersionUID = 1L;
+        /** The deadline that aborted the visit */
+        final transient VisitDeadline deadline;
+
+        Abort(VisitDeadline deadline, Exception reason) {
+            super(reason.getMessage(), reason);
+            this.deadline = deadline;
+        }
+    }
+
+    /** A deadline of the current thread, and the ones of the enclosing visits */
+    private final static class Scope {
+
+        final VisitDeadline deadline;
+        final Scope parent;
+        /** The number of calls before the next check */
+        int countdown;
+
+        Scope(VisitDeadline deadline, Scope parent) {
+            this.deadline = deadline;
+            this.parent = parent;
+            this.countdown = 1;
+        }
+    }
+}
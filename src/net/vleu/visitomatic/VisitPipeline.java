@@ -0,0 +1,427 @@
+/*
+ * Copyright 2009 Brice Arnould
+ *
+ * This file is part of VisitOMatic.
+ *
+ * VisitOMatic is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * VisitOMatic is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with VisitOMatic.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.vleu.visitomatic;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Semaphore;
+import net.vleu.visitomatic.VisitorRunner.VisitorRunnerException;
+
+/**
+ * <p>Runs a visit over each {@link Visitable} of a stream, using several
+ * worker threads.</p>
+ *
+ * <p>The {@code Visitable}s are handed to the workers through a bounded
+ * queue : at most {@code capacity} of them are read from the input and not
+ * yet delivered at any time, so a slow visit slows the reading of the input
+ * rather than filling the memory. Each worker takes up to
+ * {@code batchSize} {@code Visitable}s at a time from the queue and
+ * delivers their results at once, which amortises the handoffs.</p>
+ *
+ * <p>The results are given to a {@link ResultHandler}, either in the order
+ * of the input or in the order the visits complete. The handler is never
+ * called concurrently. For example :</p>
+ * <pre>
+ * VisitPipeline&lt;Integer&gt; pipeline = new VisitPipeline&lt;Integer&gt;(
+ *     SUM_RUNNER, visitor, 4, 1024, 16, VisitPipeline.Order.INPUT);
+ * pipeline.run(trees, new VisitPipeline.ResultHandler&lt;Integer&gt;() {
+ *     public void visited(long index, Visitable visitable, Integer sum) {
+ *         total += sum;
+ *     }
+ * });
+ * </pre>
+ *
+ * <p>Like with {@link VisitorRunner#futureVisit}, the same visitor is used
+ * by all the workers. A VisitPipeline is thread-safe, and can run over
+ * several streams at once.</p>
+ * @param <R> The return type of the visit
+ */
+public final class VisitPipeline<R> {
+
+    /**
+     * The order in which results are given to the {@link ResultHandler}
+     */
+    public enum Order {
+
+        /** The order in which the {@code Visitable}s were read */
+        INPUT,
+        /** The order in which their visits complete */
+        COMPLETION
+    }
+
+    /**
+     * Receives the results of a {@link VisitPipeline}.
+     * @param <R> The return type of the visit
+     */
+    public interface ResultHandler<R> {
+
+        /**
+         * Called once the visit of a {@code Visitable} is complete.
+         * @param index The position of {@code visitable} in the input,
+         *        starting from 0
+         * @param visitable The visited {@code Visitable}
+         * @param result The return value of the visit
+         */
+        void visited(long index, Visitable visitable, R result);
+    }
+
+    /** Runs each visit */
+    private final VisitorRunner runner;
+    /** The visitor given to the runner */
+    private final Visitor visitor;
+    /** The number of worker threads */
+    private final int workers;
+    /** The maximum number of Visitables read and not yet delivered */
+    private final int capacity;
+    /** The maximum number of Visitables taken at once by a worker */
+    private final int batchSize;
+    /** The order of the results */
+    private final Order order;
+
+    /**
+     * @param runner Runs each visit
+     * @param visitor The visitor given to the runner
+     * @param workers The number of worker threads
+     * @param capacity The maximum number of {@code Visitable}s read from
+     *        the input and not yet delivered
+     * @param batchSize The maximum number of {@code Visitable}s taken at
+     *        once by a worker
+     * @param order The order of the results
+     */
+    public VisitPipeline(VisitorRunner runner, Visitor visitor, int workers,
+                         int capacity, int batchSize, Order order) {
+        if (workers < 1 || capacity < 1 || batchSize < 1)
+            throw new IllegalArgumentException("workers, capacity and " +
+                                               "batchSize must be positive");
+        if (runner == null || visitor == null || order == null)
+            throw new NullPointerException();
+        this.runner = runner;
+        this.visitor = visitor;
+        this.workers = workers;
+        this.capacity = capacity;
+        this.batchSize = batchSize;
+        this.order = order;
+    }
+
+    /**
+     * Visits each {@code Visitable} of {@code input}, and gives the results
+     * to {@code handler}. Returns once all of them were delivered, or after
+     * the first failure.
+     * @param input The {@code Visitable}s to visit
+     * @param handler Receives the results
+     * @throws VisitorRunnerException An error occurs during the running of
+     *         the visitor ; the remaining {@code Visitable}s are not visited
+     * @throws InterruptedException The current thread was interrupted while
+     *         waiting for the workers
+     */
+    public void run(Iterator<? extends Visitable> input,
+                    ResultHandler<? super R> handler)
+            throws VisitorRunnerException, InterruptedException {
+        final Run<R> run = new Run<R>(this, handler);
+        final Thread[] threads = new Thread[workers];
+        for (int n = 0; n < workers; n++) {
+            threads[n] = new Thread(run, "VisitPipeline worker " + n);
+            threads[n].setDaemon(true);
+            threads[n].start();
+        }
+        try {
+            run.feed(input);
+        }
+        finally {
+            run.stop(threads);
+        }
+        run.rethrow();
+        if (Thread.interrupted())
+            throw new InterruptedException();
+    }
+
+    /**
+     * Visits the {@code Visitable}s taken from {@code input} until
+     * {@code last} is taken, and gives the results to {@code handler}.
+     * @param input The queue of the {@code Visitable}s to visit
+     * @param last The {@code Visitable} marking the end of the stream,
+     *        compared by identity ; it is not visited
+     * @param handler Receives the results
+     * @throws VisitorRunnerException An error occurs during the running of
+     *         the visitor ; the remaining {@code Visitable}s are not visited
+     * @throws InterruptedException The current thread was interrupted while
+     *         waiting for the input or the workers
+     * @see #run(Iterator, ResultHandler)
+     */
+    public void run(BlockingQueue<? extends Visitable> input, Visitable last,
+                    ResultHandler<? super R> handler)
+            throws VisitorRunnerException, InterruptedException {
+        run(new QueueIterator(input, last), handler);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public String toString() {
+        return "<Pipeline of " + workers + " over " + runner + ">";
+    }
+
+    /**
+     * The state of one call to {@link VisitPipeline#run}, shared by the
+     * calling thread, which reads the input, and the workers.
+     */
+    private final static class Run<R> implements Runnable {
+
+        /** Tells a worker that the input is over */
+        final static Slot END = new Slot(-1, null);
+        /** The pipeline being run */
+        final VisitPipeline<R> pipeline;
+        /** Receives the results */
+        final ResultHandler<? super R> handler;
+        /** The Visitables read and not yet taken by a worker */
+        final ArrayBlockingQueue<Slot> queue;
+        /** One permit per Visitable that may be read and not delivered */
+        final Semaphore permits;
+        /**
+         * The visited slots not yet delivered, by index modulo capacity ;
+         * only used to deliver in the input order
+         */
+        final Slot[] reorder;
+        /** The index of the next slot to deliver in the input order */
+        long nextToDeliver;
+        /** The first error that occurred, if any */
+        volatile Throwable failure;
+
+        Run(VisitPipeline<R> pipeline, ResultHandler<? super R> handler) {
+            this.pipeline = pipeline;
+            this.handler = handler;
+            this.queue = new ArrayBlockingQueue<Slot>(pipeline.capacity +
+                                                      pipeline.workers);
+            this.permits = new Semaphore(pipeline.capacity);
+            this.reorder = pipeline.order == Order.INPUT ?
+                           new Slot[pipeline.capacity] : null;
+        }
+
+        /**
+         * Reads the input and hands it to the workers, until it is over or
+         * a failure occurs.
+         */
+        void feed(Iterator<? extends Visitable> input) throws InterruptedException {
+            long index = 0;
+            while (failure == null && input.hasNext()) {
+                final Visitable visitable = input.next();
+                permits.acquire();
+                if (failure != null)
+                    break;
+                queue.put(new Slot(index++, visitable));
+            }
+        }
+
+        /**
+         * Tells the workers that the input is over and waits for them, even
+         * if the current thread is interrupted : otherwise they would wait
+         * for the input forever. The interruption is restored afterwards.
+         */
+        void stop(Thread[] threads) {
+            boolean interrupted = Thread.interrupted();
+            for (int n = 0; n < threads.length; n++) {
+                while (true) {
+                    try {
+                        queue.put(END);
+                        break;
+                    }
+                    catch (InterruptedException ex) {
+                        interrupted = true;
+                    }
+                }
+            }
+            for (Thread thread : threads) {
+                while (true) {
+                    try {
+                        thread.join();
+                        break;
+                    }
+                    catch (InterruptedException ex) {
+                        interrupted = true;
+                    }
+                }
+            }
+            if (interrupted)
+                Thread.currentThread().interrupt();
+        }
+
+        /** Throws the first failure, if any */
+        void rethrow() throws VisitorRunnerException {
+            final Throwable cause = failure;
+            if (cause == null)
+                return;
+            else if (cause instanceof VisitorRunnerException)
+                throw (VisitorRunnerException) cause;
+            else if (cause instanceof RuntimeException)
+                throw (RuntimeException) cause;
+            else if (cause instanceof Error)
+                throw (Error) cause;
+            else
+                throw pipeline.runner.new VisitorRunnerException(cause);
+        }
+
+        /** The loop of the workers */
+        @Override
+        public void run() {
+            final ArrayList<Slot> batch = new ArrayList<Slot>(pipeline.batchSize);
+            try {
+                boolean over = false;
+                while (!over) {
+                    batch.add(queue.take());
+                    queue.drainTo(batch, pipeline.batchSize - 1);
+                    for (int n = 0; n < batch.size(); n++) {
+                        final Slot slot = batch.get(n);
+                        if (slot == END) {
+                            /* Leave the others to the other workers */
+                            for (int m = n + 1; m < batch.size(); m++)
+                                queue.put(batch.get(m));
+                            batch.subList(n, batch.size()).clear();
+                            over = true;
+                            break;
+                        }
+                        if (failure == null)
+                            slot.result = pipeline.runner.visit(pipeline.visitor,
+                                                                slot.visitable);
+                    }
+                    deliver(batch);
+                    batch.clear();
+                }
+            }
+            catch (Throwable ex) {
+                fail(ex);
+            }
+        }
+
+        /** Gives the results of a batch to the handler */
+        @SuppressWarnings("unchecked")
+        private void deliver(ArrayList<Slot> batch) {
+            int delivered = 0;
+            synchronized (this) {
+                if (failure != null) {
+                    delivered = batch.size();
+                }
+                else if (reorder == null) {
+                    for (Slot slot : batch)
+                        handler.visited(slot.index, slot.visitable, (R) slot.result);
+                    delivered = batch.size();
+                }
+                else {
+                    final int capacity = reorder.length;
+                    for (Slot slot : batch)
+                        reorder[(int) (slot.index % capacity)] = slot;
+                    Slot slot;
+                    while ((slot = reorder[(int) (nextToDeliver % capacity)]) != null &&
+                           slot.index == nextToDeliver) {
+                        reorder[(int) (nextToDeliver % capacity)] = null;
+                        handler.visited(slot.index, slot.visitable, (R) slot.result);
+                        nextToDeliver++;
+                        delivered++;
+                    }
+                }
+            }
+            permits.release(delivered);
+        }
+
+        /** Records a failure, and stops reading the input */
+        private void fail(Throwable cause) {
+            synchronized (this) {
+                if (failure != null)
+                    return;
+                failure = cause;
+            }
+            /* Wake up the reader if it waits for the slots we still hold */
+            permits.release(pipeline.capacity);
+            /* Skip the remaining slots, until the end of this worker */
+            try {
+                while (queue.take() != END)
+                    permits.release();
+            }
+            catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /** A Visitable read from the input, and the result of its visit */
+    private final static class Slot {
+
+        /** The position of the visitable in the input */
+        final long index;
+        /** The visitable to visit */
+        final Visitable visitable;
+        /** The return value of the visit, once it is done */
+        Object result;
+
+        Slot(long index, Visitable visitable) {
+            this.index = index;
+            this.visitable = visitable;
+        }
+    }
+
+    /** Iterates over a BlockingQueue until a given element is taken */
+    private final static class QueueIterator implements Iterator<Visitable> {
+
+        private final BlockingQueue<? extends Visitable> queue;
+        private final Visitable last;
+        /** The next element, or null if it was not taken yet */
+        private Visitable next;
+        /** Whether last was taken, or the thread interrupted */
+        private boolean over;
+
+        QueueIterator(BlockingQueue<? extends Visitable> queue, Visitable last) {
+            this.queue = queue;
+            this.last = last;
+        }
+
+        @Override
+        public boolean hasNext() {
+            if (next == null && !over) {
+                try {
+                    final Visitable taken = queue.take();
+                    if (taken == last)
+                        over = true;
+                    else
+                        next = taken;
+                }
+                catch (InterruptedException ex) {
+                    /* Reported by VisitPipeline.run */
+                    Thread.currentThread().interrupt();
+                    over = true;
+                }
+            }
+            return next != null;
+        }
+
+        @Override
+        public Visitable next() {
+            if (!hasNext())
+                throw new NoSuchElementException();
+            final Visitable result = next;
+            next = null;
+            return result;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
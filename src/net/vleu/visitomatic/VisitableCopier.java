@@ -0,0 +1,141 @@
+/*
+ * Copyright 2009 Brice Arnould
+ *
+ * This file is part of VisitOMatic.
+ *
+ * VisitOMatic is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * VisitOMatic is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with VisitOMatic.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.vleu.visitomatic;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+
+/**
+ * Builds copies of a {@link Visitable} with other values for its members
+ * marked with {@link ToVisit}.<br />
+ * If the class has a constructor taking the members in the order specified
+ * by {@code ToVisit}, copies are built by calling it. Otherwise all the
+ * members must be fields : the copy is built by the constructor without
+ * arguments, then all the fields of the original are copied and the
+ * members are replaced.<br />
+ * A VisitableCopier built for a class can be used many times for all
+ * instances of this class. Doing so is more efficient.
+ * @see VisitableReader
+ */
+final class VisitableCopier {
+
+    /** The constructor taking the members, or {@code null} if there are none */
+    private final Constructor<? extends Visitable> membersConstructor;
+    /** The constructor without arguments, used if there is no {@link #membersConstructor} */
+    private final Constructor<? extends Visitable> defaultConstructor;
+    /** The fields marked by {@code ToVisit}, by position, used if there is no {@link #membersConstructor} */
+    private final Field[] fieldsToVisit;
+    /** All the instance fields of the class and its superclasses, used if
+     * there is no {@link #membersConstructor} */
+    private final Field[] allFields;
+
+    /**
+     * Builds a new VisitableCopier.
+     * @param reader The reader of the class to copy
+     * @throws IllegalArgumentException If the class cannot be copied
+     */
+    @SuppressWarnings("unchecked")
+    VisitableCopier(VisitableReader reader) throws IllegalArgumentException {
+        final Class<? extends Visitable> visitableClass = reader.getVisitableClass();
+        final Class<?>[] types = reader.readTypes();
+        Constructor<? extends Visitable> found = null;
+        for (Constructor<?> constructor : visitableClass.getDeclaredConstructors())
+            if (accepts(constructor.getParameterTypes(), types)) {
+                found = (Constructor<? extends Visitable>) constructor;
+                break;
+            }
+        membersConstructor = found;
+        if (membersConstructor != null) {
+            membersConstructor.setAccessible(true);
+            defaultConstructor = null;
+            fieldsToVisit = null;
+            allFields = null;
+            return;
+        }
+        /* Fall back to copying fields */
+        fieldsToVisit = new Field[types.length - 1];
+        for (int n = 0; n < fieldsToVisit.length; n++) {
+            fieldsToVisit[n] = reader.getFieldToVisit(n);
+            if (fieldsToVisit[n] == null)
+                throw new IllegalArgumentException("Cannot copy " +
+                        visitableClass + " : it has no constructor taking its" +
+                        " members and its member " + n + " is not a field");
+        }
+        try {
+            defaultConstructor = visitableClass.getDeclaredConstructor();
+        }
+        catch (NoSuchMethodException ex) {
+            throw new IllegalArgumentException("Cannot copy " + visitableClass +
+                    " : it has no constructor taking its members nor a" +
+                    " constructor without arguments", ex);
+        }
+        defaultConstructor.setAccessible(true);
+        final ArrayList<Field> fields = new ArrayList<Field>();
+        for (Class<?> c = visitableClass; c != null; c = c.getSuperclass())
+            for (Field field : c.getDeclaredFields())
+                if (!Modifier.isStatic(field.getModifiers())) {
+                    field.setAccessible(true);
+                    fields.add(field);
+                }
+        allFields = fields.toArray(new Field[fields.size()]);
+    }
+
+    /**
+     * @return Whether a constructor taking those parameters accepts the
+     *         members of a visitable of those types
+     * @param parameters The types of the parameters of the constructor
+     * @param types The types returned by {@link VisitableReader#readTypes()}
+     */
+    private static boolean accepts(Class<?>[] parameters, Class<?>[] types) {
+        if (parameters.length != types.length - 1)
+            return false;
+        for (int n = 0; n < parameters.length; n++)
+            if (!parameters[n].isAssignableFrom(types[n + 1]))
+                return false;
+        return true;
+    }
+
+    /**
+     * Builds a copy of a {@code Visitable} with other members.
+     * @param original The {@code Visitable} to copy
+     * @param values The new members, in the layout of
+     *        {@link VisitableReader#readValues(Visitable)} : the first
+     *        element is ignored
+     * @return The copy
+     * @throws InstantiationException The class is abstract
+     * @throws IllegalAccessException Java refuses to grant us the right to build the copy
+     * @throws InvocationTargetException The constructor threw an exception
+     */
+    Visitable copy(Visitable original, Object[] values) throws InstantiationException, IllegalAccessException, InvocationTargetException {
+        if (membersConstructor != null) {
+            final Object[] arguments = new Object[values.length - 1];
+            System.arraycopy(values, 1, arguments, 0, arguments.length);
+            return membersConstructor.newInstance(arguments);
+        }
+        final Visitable result = defaultConstructor.newInstance();
+        for (Field field : allFields)
+            field.set(result, field.get(original));
+        for (int n = 0; n < fieldsToVisit.length; n++)
+            fieldsToVisit[n].set(result, values[n + 1]);
+        return result;
+    }
+}
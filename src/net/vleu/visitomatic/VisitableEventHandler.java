@@ -0,0 +1,62 @@
+/*
+ * Copyright 2009 Brice Arnould
+ *
+ * This file is part of VisitOMatic.
+ *
+ * VisitOMatic is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * VisitOMatic is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with VisitOMatic.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.vleu.visitomatic;
+
+import java.io.IOException;
+
+/**
+ * Receives the events emitted by a {@link VisitableStreamDecoder}, in the
+ * manner of SAX.<br />
+ * A node is reported by a call to {@link #enter}, followed by one call to
+ * {@link #value}, {@link #enter} or {@link #reference} per member, in the
+ * order specified by {@link ToVisit}, and finally by a call to {@link #leave}.
+ * @see VisitableStreamDecoder
+ */
+public interface VisitableEventHandler {
+
+    /**
+     * Called when a node starts.
+     * @param visitableClass The class of the node
+     * @param offset Where the record of the node starts in the stream, this is
+     *        what {@link #reference} gives for later occurrences of this node
+     * @param shared Whether {@link #reference} will be called for this node
+     * @throws IOException To stop the decoding
+     */
+    void enter(Class<? extends Visitable> visitableClass, long offset, boolean shared) throws IOException;
+
+    /**
+     * Called for a member that is not a {@code Visitable}.
+     * @param value The value of the member, which may be {@code null}
+     * @throws IOException To stop the decoding
+     */
+    void value(Object value) throws IOException;
+
+    /**
+     * Called for a member that is a node already entered.
+     * @param offset The {@code offset} given to {@link #enter} for this node
+     * @throws IOException To stop the decoding
+     */
+    void reference(long offset) throws IOException;
+
+    /**
+     * Called when the last member of the current node has been reported.
+     * @throws IOException To stop the decoding
+     */
+    void leave() throws IOException;
+}
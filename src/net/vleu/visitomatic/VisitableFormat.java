@@ -0,0 +1,335 @@
+/*
+ * Copyright 2009 Brice Arnould
+ *
+ * This file is part of VisitOMatic.
+ *
+ * VisitOMatic is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * VisitOMatic is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with VisitOMatic.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.vleu.visitomatic;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * <p>Constants and helpers shared by the readers and writers of the binary
+ * encoding of {@link Visitable} graphs.</p>
+ *
+ * <p>An encoded graph is laid out as follows :</p>
+ * <pre>
+ * file    := MAGIC VERSION classes node
+ * classes := count (name numberOfMembers)*
+ * node    := classId payloadLength value*
+ * value   := TAG_NULL | TAG_NODE node | TAG_SHARED_NODE node
+ *          | TAG_REFERENCE offset | TAG_BOOLEAN byte | TAG_INT int | …
+ * </pre>
+ * <p>Nodes are written in pre-order, their members in the order given by
+ * {@link ToVisit#position()}. A node reachable from several places is written
+ * once, tagged with {@code TAG_SHARED_NODE}, and then referred to by the
+ * absolute offset of its {@code node} record. Counts, class identifiers and
+ * lengths are variable-length integers, all other numbers are big-endian.</p>
+ * @see VisitableWriter
+ * @see MappedVisitables
+ */
+final class VisitableFormat {
+
+    /** The first four bytes of an encoded graph, "VOMG" */
+    static final int MAGIC = 0x564F4D47;
+    /** The version of the encoding, written after {@link #MAGIC} */
+    static final byte VERSION = 1;
+    /** A {@code null} member */
+    static final byte TAG_NULL = 0;
+    /** A {@code Visitable} member, whose node record follows */
+    static final byte TAG_NODE = 1;
+    /** A {@code Visitable} member, whose node record follows, and which will
+     * be referred to by {@link #TAG_REFERENCE} afterwards */
+    static final byte TAG_SHARED_NODE = 2;
+    /** A {@code Visitable} member already written, its offset follows */
+    static final byte TAG_REFERENCE = 3;
+    static final byte TAG_BOOLEAN = 4;
+    static final byte TAG_BYTE = 5;
+    static final byte TAG_SHORT = 6;
+    static final byte TAG_CHAR = 7;
+    static final byte TAG_INT = 8;
+    static final byte TAG_LONG = 9;
+    static final byte TAG_FLOAT = 10;
+    static final byte TAG_DOUBLE = 11;
+    /** A {@code String} member, its length in bytes and its UTF-8 bytes follow */
+    static final byte TAG_STRING = 12;
+    /** The charset used for {@link #TAG_STRING} */
+    static final String CHARSET = "UTF-8";
+
+    /** Not instantiable */
+    private VisitableFormat() {
+    }
+
+    /**
+     * Loads a {@code Visitable} class and checks that its layout still
+     * matches the one that was written.
+     */
+    static Class<? extends Visitable> loadClass(String name, int numberOfMembers) throws IOException {
+        ClassLoader loader = Thread.currentThread().getContextClassLoader();
+        if (loader == null)
+            loader = VisitableFormat.class.getClassLoader();
+        final Class<?> loaded;
+        try {
+            loaded = Class.forName(name, false, loader);
+        }
+        catch (ClassNotFoundException ex) {
+            throw new IOException("Cannot load " + name, ex);
+        }
+        if (!Visitable.class.isAssignableFrom(loaded))
+            throw new IOException(loaded + " is not Visitable");
+        final Class<? extends Visitable> result = loaded.asSubclass(Visitable.class);
+        if (VisitableModel.readerOf(result).getNumberOfValues() != numberOfMembers + 1)
+            throw new IOException("The members to visit of " + name +
+                                  " changed since it was written");
+        return result;
+    }
+
+    /**
+     * @return the tag used to encode a leaf value (neither {@code null} nor a
+     *         {@code Visitable})
+     * @param value The value to encode
+     * @throws IllegalArgumentException The value cannot be encoded
+     */
+    static byte tagOf(Object value) throws IllegalArgumentException {
+        if (value instanceof Integer)
+            return TAG_INT;
+        else if (value instanceof String)
+            return TAG_STRING;
+        else if (value instanceof Long)
+            return TAG_LONG;
+        else if (value instanceof Double)
+            return TAG_DOUBLE;
+        else if (value instanceof Boolean)
+            return TAG_BOOLEAN;
+        else if (value instanceof Character)
+            return TAG_CHAR;
+        else if (value instanceof Byte)
+            return TAG_BYTE;
+        else if (value instanceof Short)
+            return TAG_SHORT;
+        else if (value instanceof Float)
+            return TAG_FLOAT;
+        else
+            throw new IllegalArgumentException("Cannot encode values of " +
+                                               value.getClass());
+    }
+
+    /**
+     * @return the number of bytes taken by a leaf value, its tag excluded
+     * @param tag The tag of the value, as returned by {@link #tagOf}
+     * @param value The value
+     */
+    static int sizeOfLeaf(byte tag, Object value) throws IOException {
+        switch (tag) {
+            case TAG_BOOLEAN:
+            case TAG_BYTE:
+                return 1;
+            case TAG_SHORT:
+            case TAG_CHAR:
+                return 2;
+            case TAG_INT:
+            case TAG_FLOAT:
+                return 4;
+            case TAG_LONG:
+            case TAG_DOUBLE:
+                return 8;
+            case TAG_STRING:
+                final int length = ((String) value).getBytes(CHARSET).length;
+                return sizeOfVarLong(length) + length;
+            default:
+                throw new IOException("Unknown tag " + tag);
+        }
+    }
+
+    /**
+     * Writes a leaf value, its tag excluded.
+     * @param out Where to write
+     * @param tag The tag of the value, as returned by {@link #tagOf}
+     * @param value The value to write
+     */
+    static void writeLeaf(DataOutput out, byte tag, Object value) throws IOException {
+        switch (tag) {
+            case TAG_BOOLEAN:
+                out.writeBoolean((Boolean) value);
+                break;
+            case TAG_BYTE:
+                out.writeByte((Byte) value);
+                break;
+            case TAG_SHORT:
+                out.writeShort((Short) value);
+                break;
+            case TAG_CHAR:
+                out.writeChar((Character) value);
+                break;
+            case TAG_INT:
+                out.writeInt((Integer) value);
+                break;
+            case TAG_FLOAT:
+                out.writeFloat((Float) value);
+                break;
+            case TAG_LONG:
+                out.writeLong((Long) value);
+                break;
+            case TAG_DOUBLE:
+                out.writeDouble((Double) value);
+                break;
+            case TAG_STRING:
+                final byte[] bytes = ((String) value).getBytes(CHARSET);
+                writeVarLong(out, bytes.length);
+                out.write(bytes);
+                break;
+            default:
+                throw new IOException("Unknown tag " + tag);
+        }
+    }
+
+    /**
+     * Reads a leaf value, its tag excluded, at an absolute position of a
+     * buffer. The position of the buffer is left untouched.
+     * @param buffer Where to read
+     * @param offset Where the value starts
+     * @param tag The tag of the value
+     * @return The value
+     */
+    static Object readLeaf(ByteBuffer buffer, int offset, byte tag) throws IOException {
+        switch (tag) {
+            case TAG_BOOLEAN:
+                return buffer.get(offset) != 0;
+            case TAG_BYTE:
+                return buffer.get(offset);
+            case TAG_SHORT:
+                return buffer.getShort(offset);
+            case TAG_CHAR:
+                return buffer.getChar(offset);
+            case TAG_INT:
+                return buffer.getInt(offset);
+            case TAG_FLOAT:
+                return buffer.getFloat(offset);
+            case TAG_LONG:
+                return buffer.getLong(offset);
+            case TAG_DOUBLE:
+                return buffer.getDouble(offset);
+            case TAG_STRING:
+                final long length = readVarLong(buffer, offset);
+                final byte[] bytes = new byte[(int) length];
+                for (int i = 0; i < bytes.length; i++)
+                    bytes[i] = buffer.get(offset + sizeOfVarLong(length) + i);
+                return new String(bytes, CHARSET);
+            default:
+                throw new IOException("Unknown tag " + tag + " at offset " +
+                                      offset);
+        }
+    }
+
+    /**
+     * @return the number of bytes taken by a leaf value stored at an absolute
+     *         position of a buffer, its tag excluded
+     * @param buffer Where to read
+     * @param offset Where the value starts
+     * @param tag The tag of the value
+     */
+    static int sizeOfLeaf(ByteBuffer buffer, int offset, byte tag) throws IOException {
+        if (tag == TAG_STRING) {
+            final long length = readVarLong(buffer, offset);
+            return sizeOfVarLong(length) + (int) length;
+        }
+        return sizeOfLeaf(tag, null);
+    }
+
+    /**
+     * Reads a leaf value, its tag excluded, from a stream.
+     * @param in Where to read
+     * @param tag The tag of the value
+     * @return The value
+     */
+    static Object readLeaf(DataInput in, byte tag) throws IOException {
+        switch (tag) {
+            case TAG_BOOLEAN:
+                return in.readBoolean();
+            case TAG_BYTE:
+                return in.readByte();
+            case TAG_SHORT:
+                return in.readShort();
+            case TAG_CHAR:
+                return in.readChar();
+            case TAG_INT:
+                return in.readInt();
+            case TAG_FLOAT:
+                return in.readFloat();
+            case TAG_LONG:
+                return in.readLong();
+            case TAG_DOUBLE:
+                return in.readDouble();
+            case TAG_STRING:
+                final byte[] bytes = new byte[(int) readVarLong(in)];
+                in.readFully(bytes);
+                return new String(bytes, CHARSET);
+            default:
+                throw new IOException("Unknown tag " + tag);
+        }
+    }
+
+    /** @return the number of bytes used by {@link #writeVarLong} for this value */
+    static int sizeOfVarLong(long value) {
+        int size = 1;
+        while ((value >>>= 7) != 0)
+            size++;
+        return size;
+    }
+
+    /**
+     * Writes a positive number using 7 bits per byte, the highest bit telling
+     * whether more bytes follow.
+     */
+    static void writeVarLong(DataOutput out, long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.writeByte((int) (value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+
+    /**
+     * Reads a number written by {@link #writeVarLong} at an absolute position
+     * of a buffer. The position of the buffer is left untouched.
+     */
+    static long readVarLong(ByteBuffer buffer, int offset) {
+        long result = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = buffer.get(offset++);
+            result |= (long) (b & 0x7F) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return result;
+    }
+
+    /** Reads a number written by {@link #writeVarLong} from a stream. */
+    static long readVarLong(DataInput in) throws IOException {
+        long result = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = in.readByte();
+            result |= (long) (b & 0x7F) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return result;
+    }
+}
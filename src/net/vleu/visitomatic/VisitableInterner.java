@@ -0,0 +1,281 @@
+/*
+ * Copyright 2009 Brice Arnould
+ *
+ * This file is part of VisitOMatic.
+ *
+ * VisitOMatic is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * VisitOMatic is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with VisitOMatic.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.vleu.visitomatic;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/**
+ * <p>Interns graphs of {@link Visitable}s : {@link #intern} returns, for
+ * each graph, a graph where structurally equal {@code Visitable}s are the
+ * same instance, reusing the ones interned before.</p>
+ *
+ * <p>Two {@code Visitable}s are structurally equal if they have the same
+ * class and their members marked with {@link ToVisit} are either
+ * structurally equal {@code Visitable}s or equal values. Interning
+ * processes each graph from the leaves up, so that once the members of a
+ * {@code Visitable} are interned, comparing them by identity is enough :
+ * each {@code Visitable} is hashed and compared in time proportional to
+ * its number of members.</p>
+ *
+ * <p>Besides saving memory, this lets the caches keyed by identity, such as
+ * {@link CachingVisitorRunner}, reuse the results of equal subgraphs.
+ * Interned {@code Visitable}s must not be modified.</p>
+ *
+ * <p>Interned {@code Visitable}s are only weakly referenced, and forgotten
+ * once garbage collected. A VisitableInterner is thread-safe ; the table is
+ * spread over several independently locked stripes.</p>
+ * @see VisitableCopier
+ */
+public final class VisitableInterner {
+
+    /** The number of stripes, a power of two */
+    private final static int STRIPES = 16;
+    /** The interned {@code Visitable}s, by stripe. Each is guarded by itself. */
+    private final Stripe[] stripes;
+    /** Receives the entries whose {@code Visitable} was garbage collected */
+    private final ReferenceQueue<Visitable> collected;
+
+    /** Builds an empty interner. */
+    public VisitableInterner() {
+        collected = new ReferenceQueue<Visitable>();
+        stripes = new Stripe[STRIPES];
+        for (int n = 0; n < STRIPES; n++)
+            stripes[n] = new Stripe();
+    }
+
+    /**
+     * Interns a graph of {@code Visitable}s. The {@code Visitable}s that are
+     * not structurally equal to an interned one are interned as is if their
+     * members were already interned, or copied with their interned members
+     * otherwise.
+     * @param <T> The type of the root
+     * @param root The root of the graph to intern
+     * @return The root of the interned graph, structurally equal to
+     *         {@code root}
+     * @throws IllegalArgumentException If a {@code Visitable} cannot be read
+     *         or copied
+     */
+    public <T extends Visitable> T intern(T root) throws IllegalArgumentException {
+        expungeCollected();
+        @SuppressWarnings("unchecked")
+        final T result = (T) intern(root, new IdentityHashMap<Visitable, Visitable>());
+        return result;
+    }
+
+    /**
+     * Interns the members of a {@code Visitable}, then the {@code Visitable}.
+     * @param interned Associate to the {@code Visitable}s already interned
+     *        during this call their interned version
+     */
+    private Visitable intern(Visitable visitable, Map<Visitable, Visitable> interned) {
+        final Visitable known = interned.get(visitable);
+        if (known != null)
+            return known;
+        if (visitable instanceof MappedVisitable)
+            throw new IllegalArgumentException("Cannot intern " + visitable);
+        final VisitableReader reader = getReader(visitable.getClass());
+        final Object[] values;
+        try {
+            values = reader.readValues(visitable);
+        }
+        catch (Exception ex) {
+            throw new IllegalArgumentException("Failed to read " + visitable, ex);
+        }
+        boolean changed = false;
+        for (int n = 1; n < values.length; n++)
+            if (values[n] instanceof Visitable) {
+                final Visitable member = (Visitable) values[n];
+                values[n] = intern(member, interned);
+                changed |= values[n] != member;
+            }
+        final int hash = hash(visitable.getClass(), values);
+        final Stripe stripe = stripes[(hash ^ (hash >>> 16)) & (STRIPES - 1)];
+        Visitable result;
+        synchronized (stripe) {
+            result = stripe.find(hash, visitable.getClass(), values, reader);
+            if (result == null) {
+                result = changed ? copy(visitable, values) : visitable;
+                stripe.add(new Entry(result, hash, collected));
+            }
+        }
+        interned.put(visitable, result);
+        return result;
+    }
+
+    /**
+     * @return The structural hash of a {@code Visitable} whose
+     *         {@code Visitable} members are interned
+     */
+    private static int hash(Class<?> visitableClass, Object[] values) {
+        int result = visitableClass.hashCode();
+        for (int n = 1; n < values.length; n++) {
+            final Object value = values[n];
+            final int hash;
+            if (value == null)
+                hash = 0;
+            else if (value instanceof Visitable)
+                hash = System.identityHashCode(value);
+            else
+                hash = value.hashCode();
+            result = 31 * result + hash;
+        }
+        return result;
+    }
+
+    /** @return A copy of {@code original} with other members */
+    private Visitable copy(Visitable original, Object[] values) {
+        try {
+            return VisitableModel.of(original.getClass()).getCopier().copy(original, values);
+        }
+        catch (Exception ex) {
+            throw new IllegalArgumentException("Failed to copy " + original, ex);
+        }
+    }
+
+    /** @return The {@link VisitableReader} for this class, shared by the process */
+    private static VisitableReader getReader(Class<? extends Visitable> visitableClass) {
+        return VisitableModel.readerOf(visitableClass);
+    }
+
+    /** Forgets the garbage collected {@code Visitable}s */
+    private void expungeCollected() {
+        Reference<? extends Visitable> reference;
+        while ((reference = collected.poll()) != null) {
+            final Entry entry = (Entry) reference;
+            final Stripe stripe = stripes[(entry.hash ^ (entry.hash >>> 16)) & (STRIPES - 1)];
+            synchronized (stripe) {
+                stripe.remove(entry);
+            }
+        }
+    }
+
+    /**
+     * @return The number of interned {@code Visitable}s, including the ones
+     *         that were just garbage collected
+     */
+    public int size() {
+        int result = 0;
+        for (Stripe stripe : stripes)
+            synchronized (stripe) {
+                result += stripe.size;
+            }
+        return result;
+    }
+
+    /** An interned {@code Visitable} */
+    private static final class Entry extends WeakReference<Visitable> {
+
+        /** The structural hash of the {@code Visitable} */
+        final int hash;
+        /** The next entry of the same bucket */
+        Entry next;
+
+        Entry(Visitable visitable, int hash, ReferenceQueue<Visitable> queue) {
+            super(visitable, queue);
+            this.hash = hash;
+        }
+    }
+
+    /** A hash table of interned {@code Visitable}s, chaining collisions */
+    private static final class Stripe {
+
+        /** The chains of entries, by hash modulo its length, a power of two */
+        Entry[] buckets = new Entry[16];
+        /** The number of entries */
+        int size;
+
+        /**
+         * @return The interned {@code Visitable} structurally equal to the
+         *         described one, or null if there is none
+         */
+        Visitable find(int hash, Class<?> visitableClass, Object[] values,
+                       VisitableReader reader) {
+            for (Entry it = buckets[hash & (buckets.length - 1)]; it != null; it = it.next) {
+                if (it.hash != hash)
+                    continue;
+                final Visitable candidate = it.get();
+                if (candidate != null && candidate.getClass() == visitableClass &&
+                    haveSameMembers(candidate, values, reader))
+                    return candidate;
+            }
+            return null;
+        }
+
+        /**
+         * @return true if the members of {@code candidate} are the same
+         *         {@code Visitable}s and equal values as {@code values}
+         */
+        private static boolean haveSameMembers(Visitable candidate, Object[] values,
+                                               VisitableReader reader) {
+            final Object[] candidateValues;
+            try {
+                candidateValues = reader.readValues(candidate);
+            }
+            catch (Exception ex) {
+                throw new IllegalArgumentException("Failed to read " + candidate, ex);
+            }
+            for (int n = 1; n < values.length; n++) {
+                final Object value = values[n];
+                final Object other = candidateValues[n];
+                if (value instanceof Visitable ? value != other :
+                    value == null ? other != null : !value.equals(other))
+                    return false;
+            }
+            return true;
+        }
+
+        /** Adds an entry, growing the table if needed */
+        void add(Entry entry) {
+            if (++size > buckets.length * 3 / 4) {
+                final Entry[] old = buckets;
+                buckets = new Entry[old.length * 2];
+                for (Entry chain : old)
+                    while (chain != null) {
+                        final Entry next = chain.next;
+                        final int index = chain.hash & (buckets.length - 1);
+                        chain.next = buckets[index];
+                        buckets[index] = chain;
+                        chain = next;
+                    }
+            }
+            final int index = entry.hash & (buckets.length - 1);
+            entry.next = buckets[index];
+            buckets[index] = entry;
+        }
+
+        /** Removes an entry, if it is still there */
+        void remove(Entry entry) {
+            final int index = entry.hash & (buckets.length - 1);
+            Entry previous = null;
+            for (Entry it = buckets[index]; it != null; previous = it, it = it.next)
+                if (it == entry) {
+                    if (previous == null)
+                        buckets[index] = it.next;
+                    else
+                        previous.next = it.next;
+                    size--;
+                    return;
+                }
+        }
+    }
+}
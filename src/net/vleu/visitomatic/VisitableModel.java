@@ -0,0 +1,74 @@
+/*
+ * Copyright 2009 Brice Arnould
+ *
+ * This file is part of VisitOMatic.
+ *
+ * VisitOMatic is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * VisitOMatic is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with VisitOMatic.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.vleu.visitomatic;
+
+/**
+ * What is known about a class of {@link Visitable} : its
+ * {@link VisitableReader} and, once needed, its {@link VisitableCopier}.<br />
+ * There is a single VisitableModel per class in use, shared by all
+ * the runners, writers and walkers, so each class is analyzed once.
+ * The models are kept in a {@link ClassCache}, so they don't keep their
+ * class loaded : a model no longer used may be dropped when memory runs
+ * short, and is then analyzed again if needed.
+ */
+final class VisitableModel {
+
+    /** Associate to classes of {@code Visitable} their model */
+    private static final ClassCache<VisitableModel> MODELS = new ClassCache<VisitableModel>();
+
+    /** Reads the members */
+    private final VisitableReader reader;
+    /** Rebuilds instances, or {@code null} until it is needed */
+    private volatile VisitableCopier copier;
+
+    private VisitableModel(Class<? extends Visitable> visitableClass) {
+        reader = new VisitableReader(visitableClass);
+    }
+
+    /** @return The model of this class, building it if it is the first request */
+    static VisitableModel of(Class<? extends Visitable> visitableClass) {
+        final VisitableModel model = MODELS.get(visitableClass);
+        if (model != null)
+            return model;
+        return MODELS.putIfAbsent(visitableClass, new VisitableModel(visitableClass));
+    }
+
+    /** @return The reader of this class, shared by the whole process */
+    static VisitableReader readerOf(Class<? extends Visitable> visitableClass) {
+        return of(visitableClass).reader;
+    }
+
+    /** @return The reader of the members */
+    VisitableReader getReader() {
+        return reader;
+    }
+
+    /**
+     * @return The copier of this class
+     * @throws IllegalArgumentException If the class cannot be copied
+     */
+    VisitableCopier getCopier() throws IllegalArgumentException {
+        VisitableCopier result = copier;
+        if (result == null) {
+            result = new VisitableCopier(reader);
+            copier = result;
+        }
+        return result;
+    }
+}
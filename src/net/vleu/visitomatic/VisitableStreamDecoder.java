@@ -0,0 +1,148 @@
+/*
+ * Copyright 2009 Brice Arnould
+ *
+ * This file is part of VisitOMatic.
+ *
+ * VisitOMatic is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * VisitOMatic is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with VisitOMatic.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.vleu.visitomatic;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * Reads a graph written by {@link VisitableWriter} from a stream and reports
+ * its nodes to a {@link VisitableEventHandler}, without building them.<br />
+ * The memory used while decoding is proportional to the depth of the graph,
+ * not to its size. A VisitableStreamDecoder can only be used once.
+ * @see VisitableEventHandler
+ * @see VisitorRunner#visit(Visitor, VisitableStreamDecoder)
+ */
+public final class VisitableStreamDecoder {
+
+    /** Where we read */
+    private final DataInputStream in;
+    /** The number of bytes read so far */
+    private long position;
+
+    /**
+     * Builds a new VisitableStreamDecoder.
+     * @param stream The stream to read, which won't be closed
+     */
+    public VisitableStreamDecoder(InputStream stream) {
+        in = new DataInputStream(new FilterInputStream(
+                new BufferedInputStream(stream)) {
+
+            @Override
+            public int read() throws IOException {
+                final int result = super.read();
+                if (result >= 0)
+                    position++;
+                return result;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                final int result = super.read(b, off, len);
+                if (result > 0)
+                    position += result;
+                return result;
+            }
+
+            @Override
+            public long skip(long n) throws IOException {
+                final long result = super.skip(n);
+                position += result;
+                return result;
+            }
+
+            @Override
+            public boolean markSupported() {
+                return false;
+            }
+        });
+    }
+
+    /**
+     * Builds a new VisitableStreamDecoder.
+     * @param channel The channel to read, which won't be closed
+     */
+    public VisitableStreamDecoder(ReadableByteChannel channel) {
+        this(Channels.newInputStream(channel));
+    }
+
+    /**
+     * Reads the whole graph and reports it to {@code handler}.
+     * @param handler What to report the nodes to
+     * @throws IOException If reading fails, the stream doesn't contain a
+     *         valid graph, or the handler failed
+     */
+    public void decode(VisitableEventHandler handler) throws IOException {
+        if (in.readInt() != VisitableFormat.MAGIC ||
+            in.readByte() != VisitableFormat.VERSION)
+            throw new IOException("Not a graph of Visitables, or of an unsupported version");
+        /* Read the class table */
+        @SuppressWarnings("unchecked")
+        final Class<? extends Visitable>[] classes =
+                (Class<? extends Visitable>[]) new Class<?>[(int) VisitableFormat.readVarLong(in)];
+        for (int n = 0; n < classes.length; n++) {
+            final String name = (String) VisitableFormat.readLeaf(in,
+                    VisitableFormat.TAG_STRING);
+            classes[n] = VisitableFormat.loadClass(name,
+                    (int) VisitableFormat.readVarLong(in));
+        }
+        /* Read the nodes, ends[depth - 1] is where the current node ends */
+        long[] ends = new long[16];
+        int depth = 0;
+        byte tag = VisitableFormat.TAG_NODE;
+        do {
+            switch (tag) {
+                case VisitableFormat.TAG_NULL:
+                    handler.value(null);
+                    break;
+                case VisitableFormat.TAG_NODE:
+                case VisitableFormat.TAG_SHARED_NODE:
+                    final long offset = position;
+                    final int classId = (int) VisitableFormat.readVarLong(in);
+                    final long payloadLength = VisitableFormat.readVarLong(in);
+                    handler.enter(classes[classId], offset,
+                                  tag == VisitableFormat.TAG_SHARED_NODE);
+                    if (depth == ends.length) {
+                        final long[] newEnds = new long[depth * 2];
+                        System.arraycopy(ends, 0, newEnds, 0, depth);
+                        ends = newEnds;
+                    }
+                    ends[depth++] = position + payloadLength;
+                    break;
+                case VisitableFormat.TAG_REFERENCE:
+                    handler.reference(in.readLong());
+                    break;
+                default:
+                    handler.value(VisitableFormat.readLeaf(in, tag));
+            }
+            /* Leave the nodes we reached the end of */
+            while (depth > 0 && position == ends[depth - 1]) {
+                handler.leave();
+                depth--;
+            }
+            if (depth > 0)
+                tag = in.readByte();
+        } while (depth > 0);
+    }
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright 2009 Brice Arnould
+ *
+ * This file is part of VisitOMatic.
+ *
+ * VisitOMatic is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * VisitOMatic is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with VisitOMatic.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.vleu.visitomatic;
+
+import java.io.IOException;
+
+/**
+ * Reports a graph of {@link Visitable}s held in memory to
+ * {@link VisitableEventHandler}s, as {@link VisitableStreamDecoder} does for
+ * an encoded one.<br />
+ * The members of each node are read once and reported to all the handlers.
+ * Like {@link VisitorRunner#visit(Visitor, Visitable)}, nodes reachable from
+ * several places are reported once per occurrence, so
+ * {@link VisitableEventHandler#reference} is never called. The walk uses an
+ * explicit stack and not the Java one.
+ */
+final class VisitableWalker {
+
+    VisitableWalker() {
+    }
+
+    /** A node entered but not left yet */
+    private static final class Frame {
+
+        /** The node and its members, as read by {@link VisitableReader} */
+        final Object[] values;
+        /** The index in {@link #values} of the next member to report */
+        int next = 1;
+
+        Frame(Object[] values) {
+            this.values = values;
+        }
+    }
+
+    /**
+     * Reports the graph starting at {@code root} to all the handlers.
+     * @param root The root of the graph
+     * @param handlers Where to report the nodes
+     * @throws IOException If a node cannot be read or a handler failed
+     */
+    void walk(Visitable root, VisitableEventHandler[] handlers) throws IOException {
+        Frame[] frames = new Frame[16];
+        int depth = 0;
+        long offset = 0;
+        Object value = root;
+        while (true) {
+            if (value instanceof Visitable) {
+                /* Enter a node */
+                final Visitable visitable = (Visitable) value;
+                for (VisitableEventHandler handler : handlers)
+                    handler.enter(visitable.getClass(), offset, false);
+                offset++;
+                if (depth == frames.length) {
+                    final Frame[] newFrames = new Frame[depth * 2];
+                    System.arraycopy(frames, 0, newFrames, 0, depth);
+                    frames = newFrames;
+                }
+                frames[depth++] = new Frame(read(visitable));
+            }
+            else
+                for (VisitableEventHandler handler : handlers)
+                    handler.value(value);
+            /* Leave the nodes whose members have all been reported */
+            while (depth > 0 &&
+                   frames[depth - 1].next == frames[depth - 1].values.length) {
+                frames[--depth] = null;
+                for (VisitableEventHandler handler : handlers)
+                    handler.leave();
+            }
+            if (depth == 0)
+                return;
+            final Frame frame = frames[depth - 1];
+            value = frame.values[frame.next++];
+        }
+    }
+
+    /** Reads the members of a {@code Visitable} */
+    private Object[] read(Visitable visitable) throws IOException {
+        try {
+            return VisitableModel.readerOf(visitable.getClass()).readValues(visitable);
+        }
+        catch (Exception ex) {
+            throw new IOException("Failed to read " + visitable, ex);
+        }
+    }
+}
@@ -0,0 +1,246 @@
+/*
+ * Copyright 2009 Brice Arnould
+ *
+ * This file is part of VisitOMatic.
+ *
+ * VisitOMatic is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * VisitOMatic is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with VisitOMatic.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.vleu.visitomatic;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Writes a graph of {@link Visitable}s in a compact binary form, derived from
+ * the members annotated by {@link ToVisit}. The result can be visited without
+ * being deserialized through {@link MappedVisitables}.<br />
+ * Members must either be {@code null}, {@code Visitable}s, boxed primitives
+ * or {@code String}s. A {@code Visitable} reachable from several places is
+ * written only once.<br />
+ * A VisitableWriter can be used many times, from many threads. Doing so is
+ * more efficient.
+ * @see VisitableFormat
+ * @see MappedVisitables
+ */
+public final class VisitableWriter {
+
+    /** Builds a new VisitableWriter */
+    public VisitableWriter() {
+    }
+
+    /**
+     * Writes the graph starting at {@code root} in a file, replacing its
+     * previous content.
+     * @param root The root of the graph
+     * @param file The file to write
+     * @throws IOException If writing fails or a member cannot be encoded
+     */
+    public void write(Visitable root, File file) throws IOException {
+        final OutputStream out =
+                new BufferedOutputStream(new FileOutputStream(file));
+        try {
+            write(root, out);
+        }
+        finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Writes the graph starting at {@code root} in a stream. The stream is
+     * flushed but not closed.
+     * @param root The root of the graph
+     * @param out Where to write
+     * @throws IOException If writing fails or a member cannot be encoded
+     */
+    public void write(Visitable root, OutputStream out) throws IOException {
+        final Encoding encoding = new Encoding();
+        encoding.measure(root);
+        encoding.write(root, out);
+    }
+
+    /** @return The {@link VisitableReader} for this class, shared by the process */
+    private static VisitableReader getReader(Class<? extends Visitable> visitableClass) {
+        return VisitableModel.readerOf(visitableClass);
+    }
+
+    /** What we know about a node while encoding it */
+    private static final class Node {
+
+        /** The index of its class in the class table */
+        final int classId;
+        /** The size of its members, once encoded */
+        long payloadLength;
+        /** Where its record starts, or -1 if it has not been written yet */
+        long offset = -1;
+        /** Is it referred to from more than one place ? */
+        boolean shared;
+
+        Node(int classId) {
+            this.classId = classId;
+        }
+    }
+
+    /**
+     * The state of a single call to {@link VisitableWriter#write}.<br />
+     * The graph is read twice : once to measure nodes and find the shared
+     * ones, once to write it. This allows to write each length before the
+     * data it describes without buffering the output.
+     */
+    private final class Encoding {
+
+        /** The {@code Visitable} classes met so far, in the order of their identifiers */
+        private final List<Class<? extends Visitable>> classes =
+                new ArrayList<Class<? extends Visitable>>();
+        /** Associate to classes their index in {@link #classes} */
+        private final Map<Class<? extends Visitable>, Integer> classIds =
+                new IdentityHashMap<Class<? extends Visitable>, Integer>();
+        /** Associate to each node what we know about it */
+        private final Map<Visitable, Node> nodes =
+                new IdentityHashMap<Visitable, Node>();
+        /** Where we are writing */
+        private DataOutputStream out;
+        /** The number of bytes written so far */
+        private long position;
+
+        /** Reads the members of a {@code Visitable} */
+        private Object[] read(Visitable visitable) throws IOException {
+            try {
+                return getReader(visitable.getClass()).readValues(visitable);
+            }
+            catch (Exception ex) {
+                throw new IOException("Failed to read " + visitable, ex);
+            }
+        }
+
+        /** @return The identifier of this class, registering it if necessary */
+        private int classIdOf(Class<? extends Visitable> visitableClass) {
+            Integer result = classIds.get(visitableClass);
+            if (result == null) {
+                result = classes.size();
+                classes.add(visitableClass);
+                classIds.put(visitableClass, result);
+            }
+            return result;
+        }
+
+        /**
+         * First pass : registers a node met for the first time and its
+         * descendants.
+         * @return The size of its record
+         */
+        long measure(Visitable visitable) throws IOException {
+            final Node node = new Node(classIdOf(visitable.getClass()));
+            nodes.put(visitable, node);
+            final Object[] values = read(visitable);
+            long payloadLength = 0;
+            for (int n = 1; n < values.length; n++)
+                payloadLength += 1 + measureValue(values[n]);
+            node.payloadLength = payloadLength;
+            return VisitableFormat.sizeOfVarLong(node.classId) +
+                   VisitableFormat.sizeOfVarLong(payloadLength) +
+                   payloadLength;
+        }
+
+        /** @return The size of a member, its tag excluded */
+        private long measureValue(Object value) throws IOException {
+            if (value == null)
+                return 0;
+            else if (value instanceof Visitable) {
+                final Node known = nodes.get(value);
+                if (known == null)
+                    return measure((Visitable) value);
+                known.shared = true;
+                return 8;
+            }
+            else
+                return VisitableFormat.sizeOfLeaf(VisitableFormat.tagOf(value),
+                                                  value);
+        }
+
+        /** Second pass : writes the header and the nodes */
+        void write(Visitable root, OutputStream stream) throws IOException {
+            out = new DataOutputStream(new FilterOutputStream(stream) {
+
+                @Override
+                public void write(int b) throws IOException {
+                    out.write(b);
+                    position++;
+                }
+
+                @Override
+                public void write(byte[] b, int off, int len) throws IOException {
+                    out.write(b, off, len);
+                    position += len;
+                }
+            });
+            out.writeInt(VisitableFormat.MAGIC);
+            out.writeByte(VisitableFormat.VERSION);
+            VisitableFormat.writeVarLong(out, classes.size());
+            for (Class<? extends Visitable> visitableClass : classes) {
+                final byte[] name = visitableClass.getName().getBytes(
+                        VisitableFormat.CHARSET);
+                VisitableFormat.writeVarLong(out, name.length);
+                out.write(name);
+                VisitableFormat.writeVarLong(out, getReader(visitableClass).
+                        getNumberOfValues() - 1);
+            }
+            writeNode(root);
+            out.flush();
+        }
+
+        /** Second pass : writes the record of a node met for the first time */
+        private void writeNode(Visitable visitable) throws IOException {
+            final Node node = nodes.get(visitable);
+            node.offset = position;
+            VisitableFormat.writeVarLong(out, node.classId);
+            VisitableFormat.writeVarLong(out, node.payloadLength);
+            final Object[] values = read(visitable);
+            for (int n = 1; n < values.length; n++)
+                writeValue(values[n]);
+        }
+
+        /** Second pass : writes a tagged member */
+        private void writeValue(Object value) throws IOException {
+            if (value == null)
+                out.writeByte(VisitableFormat.TAG_NULL);
+            else if (value instanceof Visitable) {
+                final Node node = nodes.get(value);
+                if (node.offset >= 0) {
+                    out.writeByte(VisitableFormat.TAG_REFERENCE);
+                    out.writeLong(node.offset);
+                }
+                else {
+                    out.writeByte(node.shared ? VisitableFormat.TAG_SHARED_NODE
+                                  : VisitableFormat.TAG_NODE);
+                    writeNode((Visitable) value);
+                }
+            }
+            else {
+                final byte tag = VisitableFormat.tagOf(value);
+                out.writeByte(tag);
+                VisitableFormat.writeLeaf(out, tag, value);
+            }
+        }
+    }
+}
@@ -0,0 +1,44 @@
+/*
+ * Copyright 2009 Brice Arnould
+ *
+ * This file is part of VisitOMatic.
+ *
+ * VisitOMatic is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * VisitOMatic is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with VisitOMatic.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.vleu.visitomatic;
+
+import net.vleu.visitomatic.VisitorRunner.VisitorRunnerException;
+
+/**
+ * Visits a class of {@link Visitable}, in place of a method annotated by
+ * {@link VisitingMethod}, for runners built by {@link VisitorRunnerBuilder}.
+ * @param <R> The return type
+ * @see VisitorRunner#builder
+ */
+public interface VisitingHandler<R> {
+
+    /**
+     * Visits a {@code Visitable}.
+     * @param runner The runner calling this handler, to visit the members
+     * @param visitor The visitor given to the runner, which may be
+     *        {@code null}
+     * @param values The {@code Visitable}, followed by its members in the
+     *        order specified by {@link ToVisit}, as a visiting method would
+     *        receive them. For a {@link MappedVisitable}, they are the view
+     *        and the members read through it.
+     * @return The result of the visit
+     * @throws VisitorRunnerException The visit of a member failed
+     */
+    R visit(VisitorRunner runner, Visitor visitor, Object[] values) throws VisitorRunnerException;
+}
@@ -0,0 +1,286 @@
+/*
+ * Copyright 2009 Brice Arnould
+ *
+ * This file is part of VisitOMatic.
+ *
+ * VisitOMatic is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * VisitOMatic is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with VisitOMatic.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.vleu.visitomatic;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * <p>What is known about a class of {@link Visitor} : its methods annotated
+ * by {@link VisitingMethod}, grouped by visit name.</p>
+ *
+ * <p>There is a single VisitorModel per class in use. The methods
+ * are scanned once, when the first runner of the class is built ; each
+ * visit is then analyzed once, by its first runner, and shared by the
+ * following ones. Building a runner thus mostly costs two lookups. The
+ * classes of {@code Visitable}s are described by the {@link VisitableModel}s
+ * they share with the rest of the process.</p>
+ *
+ * <p>The models are kept in a {@link ClassCache}, so they don't keep their
+ * class loaded : a model lives as long as one of its runners, or until
+ * memory runs short.</p>
+ */
+final class VisitorModel {
+
+    /** Associate to classes of {@code Visitor} their model */
+    private static final ClassCache<VisitorModel> MODELS = new ClassCache<VisitorModel>();
+
+    /** Associate to visit names the methods annotated with them */
+    private final Map<String, List<Method>> namesToMethods;
+    /** Associate to visit names their analysis, filled by {@link #getVisit} */
+    private final ConcurrentHashMap<String, Visit> visits;
+
+    /** Scans the methods of a class of {@code Visitor} */
+    private VisitorModel(Class<? extends Visitor> visitorClass) {
+        namesToMethods = new HashMap<String, List<Method>>();
+        for (final Method m : visitorClass.getDeclaredMethods()) {
+            final VisitingMethod annotation = m.getAnnotation(VisitingMethod.class);
+            if (annotation == null)
+                continue;
+            m.setAccessible(true);
+            List<Method> methods = namesToMethods.get(annotation.visitName());
+            if (methods == null) {
+                methods = new ArrayList<Method>();
+                namesToMethods.put(annotation.visitName(), methods);
+            }
+            methods.add(m);
+        }
+        visits = new ConcurrentHashMap<String, Visit>();
+    }
+
+    /** @return The model of this class, scanning it if it is the first request */
+    static VisitorModel of(Class<? extends Visitor> visitorClass) {
+        final VisitorModel model = MODELS.get(visitorClass);
+        if (model != null)
+            return model;
+        return MODELS.putIfAbsent(visitorClass, new VisitorModel(visitorClass));
+    }
+
+    /**
+     * @return The analysis of the methods of a visit, which has no methods
+     *         if none are annotated with this name
+     * @throws IllegalArgumentException Two methods of the visit have the
+     *         same patterns
+     */
+    Visit getVisit(String visitName) throws IllegalArgumentException {
+        Visit visit = visits.get(visitName);
+        if (visit == null) {
+            final List<Method> methods = namesToMethods.get(visitName);
+            final Visit built = new Visit(methods == null ?
+                                          Collections.<Method>emptyList() : methods);
+            visit = visits.putIfAbsent(visitName, built);
+            if (visit == null)
+                visit = built;
+        }
+        return visit;
+    }
+
+    /**
+     * The methods of a visit, sorted by what they accept. It is shared by
+     * all the runners of this visit.
+     */
+    static final class Visit {
+
+        /** Associate to arrays of types the matcher selecting among the methods
+         * that accept them as arguments */
+        private final Map<ParametersList, PatternMatcher> parametersToMatchers;
+        /** Associate to classes of {@code Visitable} the methods that accept
+         * {@link MappedVisitable} views of them, see {@link ViewOf} */
+        final Map<Class<? extends Visitable>, Method> viewsToMethods;
+        /** Associate to classes of {@code Visitable} the methods that fold
+         * them, see {@link FoldOf} */
+        final Map<Class<? extends Visitable>, Method> foldsToMethods;
+        /** Associate to classes of {@code Visitable} how to visit them, so that
+         * each visit costs a single lookup on the class */
+        private final Map<Class<? extends Visitable>, Dispatch> visitableToDispatches;
+        /** Associate to the class of the first {@code Visitable} of a pair
+         * a row associating to the class of the second one how to visit the
+         * pair */
+        private final Map<Class<? extends Visitable>, Map<Class<? extends Visitable>, PairDispatch>> pairsToDispatches;
+
+        /** Sorts the methods of the visit */
+        private Visit(List<Method> methods) throws IllegalArgumentException {
+            final Map<ParametersList, List<Method>> parametersToMethods =
+                    new HashMap<ParametersList, List<Method>>();
+            final Map<Class<? extends Visitable>, Method> views =
+                    new HashMap<Class<? extends Visitable>, Method>();
+            final Map<Class<? extends Visitable>, Method> folds =
+                    new HashMap<Class<? extends Visitable>, Method>();
+            for (final Method m : methods) {
+                final ViewOf viewOf = m.getAnnotation(ViewOf.class);
+                if (viewOf != null) {
+                    views.put(viewOf.value(), m);
+                    continue;
+                }
+                final FoldOf foldOf = m.getAnnotation(FoldOf.class);
+                if (foldOf != null) {
+                    folds.put(foldOf.value(), m);
+                    continue;
+                }
+                final ParametersList parameters =
+                        new ParametersList(m.getParameterTypes());
+                if (!parametersToMethods.containsKey(parameters))
+                    parametersToMethods.put(parameters, new ArrayList<Method>());
+                parametersToMethods.get(parameters).add(m);
+            }
+            /* Compile the patterns of methods taking the same arguments */
+            parametersToMatchers = new HashMap<ParametersList, PatternMatcher>();
+            for (Map.Entry<ParametersList, List<Method>> entry :
+                 parametersToMethods.entrySet())
+                parametersToMatchers.put(entry.getKey(),
+                                         new PatternMatcher(entry.getValue()));
+            viewsToMethods = Collections.unmodifiableMap(views);
+            foldsToMethods = Collections.unmodifiableMap(folds);
+            visitableToDispatches =
+                    new ConcurrentHashMap<Class<? extends Visitable>, Dispatch>();
+            pairsToDispatches =
+                    new ConcurrentHashMap<Class<? extends Visitable>, Map<Class<? extends Visitable>, PairDispatch>>();
+        }
+
+        /** Get the Dispatch from the cache, or put it in the cache */
+        Dispatch getDispatch(Class<? extends Visitable> visitableClass) {
+            Dispatch dispatch = visitableToDispatches.get(visitableClass);
+            if (dispatch == null) {
+                final VisitableReader reader = VisitableModel.readerOf(visitableClass);
+                dispatch = new Dispatch(reader, parametersToMatchers.get(
+                        new ParametersList(reader.readTypes())));
+                visitableToDispatches.put(visitableClass, dispatch);
+            }
+            return dispatch;
+        }
+
+        /** Get the PairDispatch from the table, or put it in the table */
+        PairDispatch getPairDispatch(Class<? extends Visitable> leftClass,
+                                     Class<? extends Visitable> rightClass) {
+            Map<Class<? extends Visitable>, PairDispatch> row = pairsToDispatches.get(leftClass);
+            if (row == null) {
+                row = new ConcurrentHashMap<Class<? extends Visitable>, PairDispatch>();
+                pairsToDispatches.put(leftClass, row);
+            }
+            PairDispatch dispatch = row.get(rightClass);
+            if (dispatch == null) {
+                final VisitableReader left = VisitableModel.readerOf(leftClass);
+                final VisitableReader right = VisitableModel.readerOf(rightClass);
+                final Class<?>[] leftTypes = left.readTypes();
+                final Class<?>[] rightTypes = right.readTypes();
+                final Class<?>[] types = new Class<?>[leftTypes.length + rightTypes.length];
+                System.arraycopy(leftTypes, 0, types, 0, leftTypes.length);
+                System.arraycopy(rightTypes, 0, types, leftTypes.length, rightTypes.length);
+                dispatch = new PairDispatch(left, right,
+                                            parametersToMatchers.get(new ParametersList(types)));
+                row.put(rightClass, dispatch);
+            }
+            return dispatch;
+        }
+    }
+
+    /**
+     * How to visit a class of {@code Visitable} : the reader of its members
+     * and the matcher selecting among the methods that accept them. It plays
+     * the part of an {@code accept} method, resolved on the first visit of
+     * the class.
+     */
+    static final class Dispatch {
+
+        /** Reads the members */
+        final VisitableReader reader;
+        /** Selects the method, or {@code null} if no method takes the members */
+        final PatternMatcher matcher;
+
+        Dispatch(VisitableReader reader, PatternMatcher matcher) {
+            this.reader = reader;
+            this.matcher = matcher;
+        }
+    }
+
+    /**
+     * How to visit a pair of {@code Visitable}s : the readers of their
+     * members and the matcher selecting among the methods that accept the
+     * members of both, one after the other.
+     */
+    static final class PairDispatch {
+
+        /** Reads the members of the first {@code Visitable} */
+        final VisitableReader left;
+        /** Reads the members of the second {@code Visitable} */
+        final VisitableReader right;
+        /** Selects the method, or {@code null} if no method takes the members */
+        final PatternMatcher matcher;
+
+        PairDispatch(VisitableReader left, VisitableReader right, PatternMatcher matcher) {
+            this.left = left;
+            this.right = right;
+            this.matcher = matcher;
+        }
+    }
+
+    /**
+     * A List of parameters.<br />
+     * This class exists because profiling as shown that the use of Java's
+     * generic containers for Parameters classes were of high cost (35% of the
+     * total runtime on a benchmark I ran). The hash and equals function where
+     * the most expensive.
+     */
+    private static final class ParametersList {
+
+        private final Class[] classArray;
+        private final int hash;
+
+        /**
+         * Build a new ParametersList that contains the provided array. This
+         * array must not be modified.
+         * @param classArray
+         */
+        public ParametersList(final Class[] classArray) {
+            this.classArray = classArray;
+            hash = Arrays.hashCode(classArray);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(final Object other) {
+            if (other instanceof ParametersList) {
+                final ParametersList otherClassList = (ParametersList) other;
+                /* First test the hashs, this is really fast
+                 * we could also use length but on my tests it wasn't helping
+                 */
+                if (otherClassList.hash != hash)
+                    return false;
+                /* Only then, go through the array */
+                for (int i = 0; i < classArray.length; i++)
+                    if (otherClassList.classArray[i] != classArray[i])
+                        return false;
+                /* Didn't found any diference */
+                return true;
+            }
+            else
+                return false;
+        }
+    }
+}
@@ -18,6 +18,8 @@
  */
 package net.vleu.visitomatic;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.concurrent.FutureTask;
 
 /**
@@ -61,6 +63,114 @@ public abstract class VisitorRunner {
         return new ReflectionBasedVisitorRunner(visitorClass, visitName);
     }
 
+    /**
+     * Does the same as {@link #getInstance}, but the returned
+     * {@code VisitorRunner} remembers the results of its visits, and
+     * recomputes only the ones that were invalidated.
+     * @param visitorClass The class of the {@code Visitor}s the {@code VisitorRunner} we will run
+     * @param visitName The name of the visit, as given to {@link VisitingMethod}s in the {@code Visitor}
+     * @return An {@code IncrementalVisitorRunner} for {@code Visitor}s and {@code Visitable}s of those classes
+     * @throws VisitorRunnerInitialisationException If we failed to analyze the visitor
+     * @see IncrementalVisitorRunner
+     */
+    public final static IncrementalVisitorRunner
+            getIncrementalInstance(Class<? extends Visitor> visitorClass, String visitName)
+            throws VisitorRunnerInitialisationException {
+        return new IncrementalVisitorRunner(getInstance(visitorClass, visitName));
+    }
+
+    /**
+     * Does the same as {@link #getInstance}, but the returned
+     * {@code VisitorRunner} remembers the results of the visits of up to
+     * {@code maximumSize} immutable {@code Visitable}s across calls.
+     * @param visitorClass The class of the {@code Visitor}s the {@code VisitorRunner} we will run
+     * @param visitName The name of the visit, as given to {@link VisitingMethod}s in the {@code Visitor}
+     * @param maximumSize The maximum number of results to remember
+     * @return A {@code CachingVisitorRunner} for {@code Visitor}s and {@code Visitable}s of those classes
+     * @throws VisitorRunnerInitialisationException If we failed to analyze the visitor
+     * @see CachingVisitorRunner
+     */
+    public final static CachingVisitorRunner
+            getCachingInstance(Class<? extends Visitor> visitorClass, String visitName,
+                               int maximumSize)
+            throws VisitorRunnerInitialisationException {
+        return new CachingVisitorRunner(getInstance(visitorClass, visitName),
+                                        maximumSize);
+    }
+
+    /**
+     * Does the same as {@link #getInstance}, but the returned
+     * {@code VisitorRunner} stores the results of its visits in a file of
+     * {@code maximumSize} bytes, keyed by the structure of the visited
+     * {@code Visitable}s, so that they are reused across processes.
+     * @param visitorClass The class of the {@code Visitor}s the {@code VisitorRunner} we will run
+     * @param visitName The name of the visit, as given to {@link VisitingMethod}s in the {@code Visitor}
+     * @param file The file where results are stored, created if needed
+     * @param maximumSize The size of the file, in bytes
+     * @return A {@code PersistentVisitorRunner} for {@code Visitor}s and {@code Visitable}s of those classes
+     * @throws VisitorRunnerInitialisationException If we failed to analyze the visitor
+     * @throws IOException If the file cannot be mapped
+     * @see PersistentVisitorRunner
+     */
+    public final static PersistentVisitorRunner
+            getPersistentInstance(Class<? extends Visitor> visitorClass, String visitName,
+                                  File file, int maximumSize)
+            throws VisitorRunnerInitialisationException, IOException {
+        final VisitorRunner delegate = getInstance(visitorClass, visitName);
+        return new PersistentVisitorRunner(
+                delegate, MappedResultStore.open(file, maximumSize),
+                visitorClass.getName() + '#' + visitName);
+    }
+
+    /**
+     * Does the same as {@link #getInstance}, but the returned
+     * {@code VisitorRunner} compiles in the background a specialised
+     * dispatcher for each class of {@code Visitable} visited
+     * {@link TieredVisitorRunner#DEFAULT_THRESHOLD} times.
+     * @param visitorClass The class of the {@code Visitor}s the {@code VisitorRunner} we will run
+     * @param visitName The name of the visit, as given to {@link VisitingMethod}s in the {@code Visitor}
+     * @return A {@code TieredVisitorRunner} for {@code Visitor}s and {@code Visitable}s of those classes
+     * @throws VisitorRunnerInitialisationException If we failed to analyze the visitor
+     * @see TieredVisitorRunner
+     */
+    public final static TieredVisitorRunner
+            getTieredInstance(Class<? extends Visitor> visitorClass, String visitName)
+            throws VisitorRunnerInitialisationException {
+        return getTieredInstance(visitorClass, visitName,
+                                 TieredVisitorRunner.DEFAULT_THRESHOLD);
+    }
+
+    /**
+     * Does the same as {@link #getTieredInstance(Class, String)}, with
+     * another threshold.
+     * @param visitorClass The class of the {@code Visitor}s the {@code VisitorRunner} we will run
+     * @param visitName The name of the visit, as given to {@link VisitingMethod}s in the {@code Visitor}
+     * @param threshold The number of visits of a class before its
+     *        dispatcher is compiled
+     * @return A {@code TieredVisitorRunner} for {@code Visitor}s and {@code Visitable}s of those classes
+     * @throws VisitorRunnerInitialisationException If we failed to analyze the visitor
+     * @see TieredVisitorRunner
+     */
+    public final static TieredVisitorRunner
+            getTieredInstance(Class<? extends Visitor> visitorClass, String visitName,
+                              int threshold)
+            throws VisitorRunnerInitialisationException {
+        return new TieredVisitorRunner(
+                new ReflectionBasedVisitorRunner(visitorClass, visitName),
+                threshold);
+    }
+
+    /**
+     * Fuses several runners, so that their visits can be run in a single
+     * pass over a graph.
+     * @param runners The runners to fuse
+     * @return A {@code FusedVisitorRunner} running the visits of all the runners
+     * @see FusedVisitorRunner
+     */
+    public final static FusedVisitorRunner fuse(VisitorRunner... runners) {
+        return new FusedVisitorRunner(runners);
+    }
+
     /**
      * Analyzes the provided {@code Visitable}, extracts the
      * fields annotated by {@code ToVisit} and uses them as argument to call a
@@ -75,6 +185,229 @@ public abstract class VisitorRunner {
      */
     public abstract <R> R visit(Visitor visitor, Visitable visitable) throws VisitorRunnerException;
 
+    /**
+     * Does the same as {@link #visit(Visitor, Visitable)}, but aborts the
+     * visit once {@code deadline} expires or is cancelled. The other visits
+     * of this thread started during this one, including the ones of other
+     * runners, are aborted too.
+     * @param <R> The return type
+     * @param visitor The visitor to run ; if it is a {@link FallbackVisitor},
+     *        it provides the result of an aborted visit
+     * @param visitable The visitable to visit
+     * @param deadline Bounds the duration of the visit
+     * @return The return value from the suitable method of the visitor, or
+     *         the one of {@link FallbackVisitor#fallback} if it was aborted
+     * @throws VisitorRunnerException An error occurs during the running of
+     *         the visitor. If the visit was aborted and {@code visitor} is
+     *         not a {@code FallbackVisitor}, it is caused by a
+     *         {@link java.util.concurrent.TimeoutException} or a
+     *         {@link java.util.concurrent.CancellationException}
+     * @see VisitDeadline
+     */
+    public final <R> R visit(Visitor visitor, Visitable visitable,
+                             VisitDeadline deadline) throws VisitorRunnerException {
+        VisitDeadline.enter(deadline);
+        try {
+            return this.<R>visit(visitor, visitable);
+        }
+        catch (VisitorRunnerException ex) {
+            /* Only the aborts of this deadline are ours ; the ones of the
+             * enclosing visits are left to them */
+            final Throwable reason = VisitDeadline.getReason(ex, deadline);
+            if (reason == null)
+                throw ex;
+            else if (visitor instanceof FallbackVisitor) {
+                @SuppressWarnings("unchecked")
+                final R result = (R) ((FallbackVisitor) visitor).fallback(visitable, reason);
+                return result;
+            }
+            else
+                throw new VisitorRunnerException(reason);
+        }
+        finally {
+            VisitDeadline.leave();
+        }
+    }
+
+    /**
+     * Does the same as {@link #visit(Visitor, Visitable)}, without looking
+     * for a {@link GraphVisit} : the {@code Visitable} is always visited.
+     * Runners that look for one must override it.
+     */
+    <R> R dispatch(Visitor visitor, Visitable visitable) throws VisitorRunnerException {
+        return this.<R>visit(visitor, visitable);
+    }
+
+    /**
+     * @param visitableClass A class of {@code Visitable}
+     * @return true if this runner has a method accepting the
+     *         {@code Visitable}s of this class. Runners that can't tell
+     *         answer true.
+     */
+    boolean handles(Class<? extends Visitable> visitableClass) {
+        return true;
+    }
+
+    /**
+     * @return A builder of runners calling handlers registered for each
+     *         class of {@code Visitable}, instead of the methods of a
+     *         {@code Visitor}
+     * @see VisitorRunnerBuilder
+     */
+    public final static VisitorRunnerBuilder builder() {
+        return new VisitorRunnerBuilder();
+    }
+
+    /**
+     * Binds this runner to a visitor, for runners always used with the same
+     * long-lived visitor.
+     * @param <R> The return type
+     * @param visitor The visitor to run
+     * @return A {@code BoundVisitorRunner} visiting with {@code visitor}
+     * @see BoundVisitorRunner
+     */
+    public <R> BoundVisitorRunner<R> bind(Visitor visitor) {
+        return new BoundVisitorRunner<R>(this, visitor);
+    }
+
+    /**
+     * <p>Does the same as {@link #visit(Visitor, Visitable)}, but visits each
+     * {@code Visitable} reachable from {@code visitable} at most once, so
+     * that graphs with shared nodes and cycles can be visited.</p>
+     *
+     * <p>During this call, the visits of {@code visitor} in the current
+     * thread, including the ones started by visiting methods through any
+     * runner of this library, return the result of the first visit of a
+     * {@code Visitable} once it is over. Visiting a {@code Visitable} whose
+     * visit is in progress, which closes a cycle, returns the value of
+     * {@link CyclicVisitor#backEdge} instead.</p>
+     *
+     * <p>The results are remembered in a table that allocates nothing per
+     * {@code Visitable}. The depth of the recursion is still bounded by the
+     * stack of the thread.</p>
+     * @param <R> The return type
+     * @param visitor The visitor to run
+     * @param visitable The root of the graph to visit
+     * @return The return value from the suitable method of the visitor
+     * @throws VisitorRunnerException An error occurs during the running of
+     *         the visitor, or it met a cycle and is not a
+     *         {@code CyclicVisitor}
+     * @see CyclicVisitor
+     */
+    public final <R> R visitGraph(Visitor visitor, Visitable visitable) throws VisitorRunnerException {
+        GraphVisit.enter(visitor);
+        try {
+            return this.<R>visit(visitor, visitable);
+        }
+        finally {
+            GraphVisit.leave();
+        }
+    }
+
+    /**
+     * <p>Visits a pair of {@code Visitable}s, for example to compare or
+     * unify them : the method annotated by {@code VisitingMethod} that is
+     * called takes the first {@code Visitable} followed by its members, then
+     * the second one followed by its members. For example, to compare
+     * expressions :</p>
+     * <pre>
+     * &#64;VisitingMethod(visitName="equal")
+     * Boolean equal(Plus a, PlusOrJustInteger a1, PlusOrJustInteger a2,
+     *               Plus b, PlusOrJustInteger b1, PlusOrJustInteger b2) {
+     *     return EQUAL.&lt;Boolean&gt;visitPair(this, a1, b1) &amp;&amp;
+     *            EQUAL.&lt;Boolean&gt;visitPair(this, a2, b2);
+     * }
+     * </pre>
+     *
+     * <p>The methods are selected through a table indexed by the classes of
+     * both {@code Visitable}s, filled on the first visit of each pair of
+     * classes. If the visitor is a {@code PairVisitor}, a pair made of the
+     * same {@code Visitable} twice is resolved by {@link PairVisitor#same}
+     * without being visited, so comparing graphs that share most of their
+     * nodes costs only the size of their differences ; and pairs that no
+     * method accepts are resolved by {@link PairVisitor#mismatch}.</p>
+     * @param <R> The return type
+     * @param visitor The visitor to run
+     * @param left The first {@code Visitable} of the pair
+     * @param right The second {@code Visitable} of the pair
+     * @return The return value from the suitable method of the visitor
+     * @throws VisitorRunnerException An error occurs during the running of
+     *         the visitor, or no method accepts the pair and the visitor
+     *         isn't a {@code PairVisitor}
+     * @see PairVisitor
+     */
+    public final <R> R visitPair(Visitor visitor, Visitable left, Visitable right) throws VisitorRunnerException {
+        if (left == right && visitor instanceof PairVisitor) {
+            @SuppressWarnings("unchecked")
+            final R result = (R) ((PairVisitor) visitor).same(left);
+            return result;
+        }
+        return this.<R>dispatchPair(visitor, left, right);
+    }
+
+    /**
+     * Does the work of {@link #visitPair} once the pairs of identical
+     * {@code Visitable}s are resolved. This version fails : runners that
+     * support pairs must override it.
+     */
+    <R> R dispatchPair(Visitor visitor, Visitable left, Visitable right) throws VisitorRunnerException {
+        throw new VisitorRunnerException(this + " cannot visit pairs");
+    }
+
+    /**
+     * <p>Rewrites a graph of {@code Visitable}s, from the leaves up : the
+     * members of each {@code Visitable} are rewritten first, then it is
+     * given to the method annotated by {@code VisitingMethod} that accepts
+     * it, if there is one, which returns its replacement.
+     * {@code Visitable}s without such a method are kept.</p>
+     *
+     * <p>A {@code Visitable} is only rebuilt if one of its members was
+     * replaced : unchanged subgraphs are returned as is, so rewriting k nodes
+     * of a graph only builds them and their ancestors. Every node is still
+     * read, to find its visiting method, but in buffers reused from one node
+     * to the next, and only the replaced nodes are remembered : a rewrite
+     * takes a time linear in the size of the graph seen as a tree, and
+     * allocates memory in
+     * proportion to the number of nodes it rebuilds and to the depth of the
+     * graph. A replaced {@code Visitable} reachable from several places is
+     * rewritten once and its replacement stays shared ; one that is kept is
+     * read again each time it is reached.
+     * Rebuilt classes need a constructor taking their members in the order
+     * specified by {@code ToVisit}, or to keep them all in fields.</p>
+     * @param <R> The return type
+     * @param visitor The visitor to run
+     * @param visitable The root of the graph to rewrite
+     * @return The rewritten graph
+     * @throws VisitorRunnerException An error occurs during the running of the visitor
+     * @see ToVisit
+     * @see VisitingMethod
+     */
+    public abstract <R extends Visitable> R rewrite(Visitor visitor, Visitable visitable) throws VisitorRunnerException;
+
+    /**
+     * Visits a graph reported by a {@link VisitableStreamDecoder} without
+     * building it : each node is given to the method annotated by
+     * {@link FoldOf} its class once its members have been visited, and the
+     * result is given in turn to the enclosing node.<br />
+     * The memory used is proportional to the depth of the graph, plus the
+     * number of nodes it shares.
+     * @param <R> The return type
+     * @param visitor The visitor to run
+     * @param decoder The decoder reading the graph to visit
+     * @return The return value of the method called for the root of the graph
+     * @throws VisitorRunnerException An error occurs during the running of the visitor
+     * @throws IOException The graph could not be read
+     * @see FoldOf
+     */
+    public abstract <R> R visit(Visitor visitor, VisitableStreamDecoder decoder) throws VisitorRunnerException, IOException;
+
+    /**
+     * @return A handler calling the methods annotated by {@link FoldOf} of
+     *         the {@code visitor} as nodes are reported
+     * @param visitor The visitor to run
+     */
+    abstract FoldingHandler newFoldingHandler(Visitor visitor);
+
    /**
      * Return a {@link FutureTask} that analyzes the provided {@code Visitable},
      * extracts the fields annotated by {@code ToVisit} and uses them as argument
@@ -0,0 +1,92 @@
+/*
+ * Copyright 2009 Brice Arnould
+ *
+ * This file is part of VisitOMatic.
+ *
+ * VisitOMatic is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * VisitOMatic is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with VisitOMatic.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.vleu.visitomatic;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * <p>Builds a {@link VisitorRunner} from handlers registered for each class
+ * of {@link Visitable}, rather than from the methods of a {@link Visitor}
+ * annotated by {@link VisitingMethod}. This avoids scanning a class, and
+ * allows to assemble visits at runtime. For example :</p>
+ * <pre>
+ * VisitorRunner sum = VisitorRunner.builder()
+ *     .on(Plus.class, new VisitingHandler&lt;Integer&gt;() {
+ *         public Integer visit(VisitorRunner runner, Visitor visitor, Object[] values)
+ *                 throws VisitorRunnerException {
+ *             return (Integer) runner.visit(visitor, (Visitable) values[1]) +
+ *                    (Integer) runner.visit(visitor, (Visitable) values[2]);
+ *         }
+ *     })
+ *     .on(JustInteger.class, ...)
+ *     .build();
+ * Integer result = sum.visit(null, tree);
+ * </pre>
+ *
+ * <p>The built runner matches the classes of the {@code Visitable}s
+ * exactly, and reads their members with a {@link VisitableReader}. A
+ * {@link MappedVisitable} is given to the handler of the class it views,
+ * with its members read through the view : the members that are
+ * {@code Visitable}s are views too, so handlers that only pass them to the
+ * runner work on mapped graphs as well. It has no {@link FoldOf} methods,
+ * so it can't visit streams.</p>
+ * @see VisitorRunner#builder
+ */
+public final class VisitorRunnerBuilder {
+
+    /** The handlers registered so far */
+    private final Map<Class<? extends Visitable>, VisitingHandler<?>> handlers =
+            new HashMap<Class<? extends Visitable>, VisitingHandler<?>>();
+
+    /**
+     * Call {@link VisitorRunner#builder} to get an instance.
+     */
+    VisitorRunnerBuilder() {
+    }
+
+    /**
+     * Registers the handler of a class of {@code Visitable}.
+     * @param visitableClass The class of the {@code Visitable}s to visit
+     * @param handler Visits them
+     * @return This builder
+     * @throws IllegalArgumentException A handler is already registered for
+     *         this class
+     */
+    public VisitorRunnerBuilder on(Class<? extends Visitable> visitableClass,
+                                   VisitingHandler<?> handler) throws IllegalArgumentException {
+        if (handler == null)
+            throw new NullPointerException();
+        if (handlers.containsKey(visitableClass))
+            throw new IllegalArgumentException("A handler is already registered for " +
+                                               visitableClass);
+        handlers.put(visitableClass, handler);
+        return this;
+    }
+
+    /**
+     * @return A runner calling the registered handlers. Registering other
+     *         handlers afterwards doesn't change it.
+     * @throws IllegalArgumentException The members of a registered class
+     *         can't be read
+     */
+    public VisitorRunner build() throws IllegalArgumentException {
+        return new HandlerVisitorRunner(handlers);
+    }
+}
@@ -0,0 +1,49 @@
+/*
+ * Copyright 2009 Brice Arnould
+ *
+ * This file is part of VisitOMatic.
+ *
+ * VisitOMatic is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * VisitOMatic is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with VisitOMatic.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.vleu.visitomatic.tests.benchmark;
+
+import net.vleu.visitomatic.BoundVisitorRunner;
+import net.vleu.visitomatic.VisitingMethod;
+import net.vleu.visitomatic.Visitor;
+import net.vleu.visitomatic.VisitorRunner;
+import net.vleu.visitomatic.VisitorRunner.VisitorRunnerException;
+
+/**
+ * Sums a {@link PlusOrJustInteger} tree with a runner bound to a single
+ * stateless instance.
+ */
+final class BoundSumVisitor implements Visitor {
+
+    final static BoundVisitorRunner<Integer> SUM =
+            VisitorRunner.getInstance(BoundSumVisitor.class, "sum").
+            bind(new BoundSumVisitor());
+
+    private BoundSumVisitor() {
+    }
+
+    @VisitingMethod(visitName="sum")
+    private Integer sum(Plus it, PlusOrJustInteger a, PlusOrJustInteger b) throws VisitorRunnerException {
+        return SUM.applyAsInt(a) + SUM.applyAsInt(b);
+    }
+
+    @VisitingMethod(visitName="sum")
+    private Integer sum(JustInteger it, Integer value) {
+        return value;
+    }
+}
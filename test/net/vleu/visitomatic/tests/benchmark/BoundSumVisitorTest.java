@@ -0,0 +1,43 @@
+/*
+ * Copyright 2009 Brice Arnould
+ *
+ * This file is part of VisitOMatic.
+ *
+ * VisitOMatic is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * VisitOMatic is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with VisitOMatic.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.vleu.visitomatic.tests.benchmark;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import net.vleu.visitomatic.VisitorRunner.VisitorRunnerException;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests BoundVisitorRunner using BoundSumVisitor.
+ */
+public final class BoundSumVisitorTest {
+
+    /** Check that bound visits give the same results */
+    @Test
+    public void testApply() throws VisitorRunnerException, InterruptedException, ExecutionException {
+        assertEquals(1, BoundSumVisitor.SUM.applyAsInt(new JustInteger(1)));
+        assertEquals(1 << 16, (int) BoundSumVisitor.SUM.apply(PlusOrJustInteger.buildTree(16)));
+        assertEquals(1L << 16, BoundSumVisitor.SUM.applyAsLong(PlusOrJustInteger.buildTree(16)));
+        final FutureTask<Integer> future =
+                BoundSumVisitor.SUM.futureApply(PlusOrJustInteger.buildTree(8));
+        new Thread(future).start();
+        assertEquals(1 << 8, (int) future.get());
+    }
+}
@@ -0,0 +1,67 @@
+/*
+ * Copyright 2009 Brice Arnould
+ *
+ * This file is part of VisitOMatic.
+ *
+ * VisitOMatic is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * VisitOMatic is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with VisitOMatic.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.vleu.visitomatic.tests.benchmark;
+
+import net.vleu.visitomatic.FoldOf;
+import net.vleu.visitomatic.VisitingMethod;
+import net.vleu.visitomatic.Visitor;
+import net.vleu.visitomatic.VisitorRunner;
+
+/**
+ * Sums a {@link PlusOrJustInteger} tree by folding, and fails after a given
+ * number of folds, as if the process crashed.
+ */
+final class BudgetedFoldingSumVisitor implements Visitor {
+
+    final static VisitorRunner SUM_RUNNER =
+            VisitorRunner.getInstance(BudgetedFoldingSumVisitor.class, "sum");
+
+    /** The number of folds left before failing */
+    private int budget;
+    /** The number of folds done */
+    private int folds;
+
+    BudgetedFoldingSumVisitor(int budget) {
+        this.budget = budget;
+    }
+
+    int getFolds() {
+        return folds;
+    }
+
+    private void spend() {
+        if (budget-- == 0)
+            throw new IllegalStateException("Out of budget");
+        folds++;
+    }
+
+    @VisitingMethod(visitName="sum")
+    @FoldOf(Plus.class)
+    private Integer sum(Integer a, Integer b) {
+        spend();
+        return a + b;
+    }
+
+    @VisitingMethod(visitName="sum")
+    @FoldOf(JustInteger.class)
+    private Integer sum(Integer value) {
+        spend();
+        return value;
+    }
+}
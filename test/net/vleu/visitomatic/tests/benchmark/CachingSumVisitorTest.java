@@ -0,0 +1,72 @@
+/*
+ * Copyright 2009 Brice Arnould
+ *
+ * This file is part of VisitOMatic.
+ *
+ * VisitOMatic is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * VisitOMatic is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with VisitOMatic.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.vleu.visitomatic.tests.benchmark;
+
+import net.vleu.visitomatic.VisitorRunner.VisitorRunnerException;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests CachingVisitorRunner using CachingSumVisitor.
+ */
+public final class CachingSumVisitorTest {
+
+    /** Check that shared subtrees and repeated visits are looked up */
+    @Test
+    public void testHits() throws VisitorRunnerException {
+        final CachingSumVisitor visitor = new CachingSumVisitor(1000);
+        /* Each level shares its subtree, so it has 31 distinct nodes */
+        final PlusOrJustInteger tree = PlusOrJustInteger.buildTree(30);
+        assertEquals(1 << 30, (int) visitor.visit(tree));
+        assertEquals(31, visitor.calls);
+        assertEquals(31, visitor.sumRunner.getMissCount());
+        assertEquals(30, visitor.sumRunner.getHitCount());
+        assertEquals(1 << 30, (int) visitor.visit(tree));
+        assertEquals(31, visitor.calls);
+        assertEquals(31, visitor.sumRunner.getHitCount());
+        /* Another visitor doesn't reuse the results */
+        final CachingSumVisitor other = new CachingSumVisitor(1000);
+        assertEquals(1 << 30, (int) visitor.sumRunner.<Integer>visit(other, tree));
+        assertEquals(31, other.calls);
+    }
+
+    /** Check that the size is bounded */
+    @Test
+    public void testEviction() throws VisitorRunnerException {
+        final CachingSumVisitor visitor = new CachingSumVisitor(64);
+        for (int n = 0; n < 1000; n++)
+            visitor.visit(new Plus(new JustInteger(n), new JustInteger(n)));
+        assertTrue(visitor.sumRunner.size() <= 64);
+        assertTrue(visitor.sumRunner.getEvictionCount() >= 3000 - 64);
+        visitor.sumRunner.clear();
+        assertEquals(0, visitor.sumRunner.size());
+    }
+
+    /** Check that invalidate forgets a result */
+    @Test
+    public void testInvalidate() throws VisitorRunnerException {
+        final CachingSumVisitor visitor = new CachingSumVisitor(100);
+        final JustInteger leaf = new JustInteger(1);
+        visitor.visit(leaf);
+        leaf.setValue(2);
+        assertEquals(1, (int) visitor.visit(leaf));
+        visitor.sumRunner.invalidate(leaf);
+        assertEquals(2, (int) visitor.visit(leaf));
+    }
+}
@@ -0,0 +1,46 @@
+/*
+ * Copyright 2009 Brice Arnould
+ *
+ * This file is part of VisitOMatic.
+ *
+ * VisitOMatic is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * VisitOMatic is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with VisitOMatic.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.vleu.visitomatic.tests.benchmark;
+
+import net.vleu.visitomatic.Matching;
+import net.vleu.visitomatic.VisitingMethod;
+import net.vleu.visitomatic.Visitor;
+import net.vleu.visitomatic.VisitorRunner;
+import net.vleu.visitomatic.VisitorRunner.VisitorRunnerException;
+
+/**
+ * Replaces the additions of integers in a {@link PlusOrJustInteger} tree by
+ * their result.
+ */
+final class ConstantFoldingVisitor implements Visitor {
+
+    private final static VisitorRunner FOLD_RUNNER =
+            VisitorRunner.getInstance(ConstantFoldingVisitor.class, "fold");
+
+    @VisitingMethod(visitName="fold")
+    private PlusOrJustInteger fold(Plus it, @Matching(JustInteger.class) PlusOrJustInteger a,
+                                   @Matching(JustInteger.class) PlusOrJustInteger b) {
+        return new JustInteger(((JustInteger) a).getValue() +
+                               ((JustInteger) b).getValue());
+    }
+
+    public PlusOrJustInteger rewrite(PlusOrJustInteger it) throws VisitorRunnerException {
+        return FOLD_RUNNER.rewrite(this, it);
+    }
+}
@@ -0,0 +1,106 @@
+/*
+ * Copyright 2009 Brice Arnould
+ *
+ * This file is part of VisitOMatic.
+ *
+ * VisitOMatic is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * VisitOMatic is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with VisitOMatic.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.vleu.visitomatic.tests.benchmark;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import net.vleu.visitomatic.VisitorRunner.VisitorRunnerException;
+import org.junit.Test;
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Tests rewrites using ConstantFoldingVisitor.
+ */
+public final class ConstantFoldingVisitorTest {
+
+    /** Check that unchanged subtrees are kept and changed ones rebuilt */
+    @Test
+    public void testSharing() throws VisitorRunnerException {
+        final Plus unchanged = new Plus(PlusOrJustInteger.buildTree(4),
+                                        new Plus(new JustInteger(), null));
+        final Plus root = new Plus(new Plus(new JustInteger(1),
+                                            new JustInteger(2)), unchanged);
+        final Plus result = (Plus) new ConstantFoldingVisitor().rewrite(root);
+        assertNotSame(root, result);
+        assertEquals(3, (int) ((JustInteger) result.a).getValue());
+        assertSame(unchanged.b, ((Plus) result.b).b);
+        assertNotSame(unchanged, result.b);
+        assertEquals(16, (int) ((JustInteger) ((Plus) result.b).a).getValue());
+    }
+
+    /** Check that nothing is rebuilt when nothing changes */
+    @Test
+    public void testIdentity() throws VisitorRunnerException {
+        final Plus root = new Plus(new JustInteger(), new Plus(new JustInteger(), null));
+        assertSame(root, new ConstantFoldingVisitor().rewrite(root));
+    }
+
+    /**
+     * @return A tree of this height whose nodes are all distinct, and whose
+     *         leftmost node is the only one that can be folded
+     */
+    private static Plus buildFoldableOnce(int height, boolean leftmost) {
+        if (height == 0)
+            return leftmost ? new Plus(new JustInteger(1), new JustInteger(2))
+                   : new Plus(null, null);
+        return new Plus(buildFoldableOnce(height - 1, leftmost),
+                        buildFoldableOnce(height - 1, false));
+    }
+
+    /** @return The bytes allocated so far by the current thread, or -1 if the JVM doesn't tell */
+    private static long allocatedBytes() {
+        final ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean)
+            return ((com.sun.management.ThreadMXBean) bean).
+                    getThreadAllocatedBytes(Thread.currentThread().getId());
+        return -1;
+    }
+
+    /** Check that the nodes that are kept are read without allocating */
+    @Test
+    public void testAllocation() throws VisitorRunnerException {
+        final int height = 16;
+        final Plus root = buildFoldableOnce(height, true);
+        final ConstantFoldingVisitor visitor = new ConstantFoldingVisitor();
+        /* Let the runner build its dispatches */
+        for (int n = 0; n < 10; n++)
+            visitor.rewrite(root);
+        final long before = allocatedBytes();
+        PlusOrJustInteger result = visitor.rewrite(root);
+        final long allocated = allocatedBytes() - before;
+        assertSame(root.b, ((Plus) result).b);
+        for (int n = 0; n < height; n++)
+            result = ((Plus) result).a;
+        assertEquals(3, (int) ((JustInteger) result).getValue());
+        assumeTrue(before != -1);
+        /* Only the path to the folded node is rebuilt */
+        final int nodes = (1 << (height + 1)) - 1;
+        assertTrue("Allocated " + allocated + " bytes for " + nodes + " nodes",
+                   allocated < nodes);
+    }
+
+    /** Check that shared subtrees are rewritten once */
+    @Test
+    public void testBigTree() throws VisitorRunnerException {
+        final JustInteger result = (JustInteger) new ConstantFoldingVisitor().
+                rewrite(PlusOrJustInteger.buildTree(24));
+        assertEquals(1 << 24, (int) result.getValue());
+    }
+}
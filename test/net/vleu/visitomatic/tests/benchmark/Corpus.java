@@ -0,0 +1,111 @@
+/*
+ * Copyright 2009 Brice Arnould
+ *
+ * This file is part of VisitOMatic.
+ *
+ * VisitOMatic is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * VisitOMatic is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with VisitOMatic.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.vleu.visitomatic.tests.benchmark;
+
+import java.util.Random;
+import net.vleu.visitomatic.Visitable;
+import net.vleu.visitomatic.tests.lists.ConsList;
+import net.vleu.visitomatic.tests.lists.EmptyList;
+import net.vleu.visitomatic.tests.lists.VisitableList;
+
+/**
+ * The shapes of synthetic trees {@link LoadGenerator} can visit. Used only
+ * for benchmarks.
+ */
+enum Corpus {
+
+    /** A {@link ConsList} of {@code size} elements */
+    DEEP_LIST {
+
+        @Override
+        Visitable build(int size, Random random) {
+            VisitableList<Integer> result = new EmptyList<Integer>();
+            for (int i = 0; i < size; i++)
+                result = new ConsList<Integer>(i, result);
+            return result;
+        }
+    },
+    /** A complete binary tree of about {@code size} distinct nodes */
+    BALANCED {
+
+        @Override
+        Visitable build(int size, Random random) {
+            /* A tree of height h has 2^(h+1) - 1 nodes */
+            return balanced(Math.max(0, log(size + 1, 2) - 1));
+        }
+
+        private PlusOrJustInteger balanced(int height) {
+            if (height == 0)
+                return new JustInteger();
+            return new Plus(balanced(height - 1), balanced(height - 1));
+        }
+    },
+    /** A binary tree of {@code size} nodes, each having a leaf on its right */
+    SKEWED {
+
+        @Override
+        Visitable build(int size, Random random) {
+            PlusOrJustInteger result = new JustInteger();
+            for (int i = 1; i < size; i += 2)
+                result = new Plus(result, new JustInteger());
+            return result;
+        }
+    },
+    /** A complete binary tree of about {@code size} nodes, whose identical
+     * subtrees are shared, as built by {@link PlusOrJustInteger#buildTree} */
+    DAG {
+
+        @Override
+        Visitable build(int size, Random random) {
+            return PlusOrJustInteger.buildTree(log(size, 2));
+        }
+    },
+    /** A random tree of about {@code size} {@link WideNode}s and leaves */
+    WIDE {
+
+        @Override
+        Visitable build(int size, Random random) {
+            return wide(log(size, 8), random);
+        }
+
+        private PlusOrJustInteger wide(int height, Random random) {
+            if (height == 0 || random.nextInt(4) == 0)
+                return new JustInteger();
+            final PlusOrJustInteger[] children = new PlusOrJustInteger[8];
+            for (int i = 0; i < children.length; i++)
+                children[i] = wide(height - 1, random);
+            return new WideNode(children);
+        }
+    };
+
+    /**
+     * Builds a tree of this shape.
+     * @param size The approximate number of nodes to visit
+     * @param random The source of randomness, for the shapes that need one
+     */
+    abstract Visitable build(int size, Random random);
+
+    /** @return The height of a complete tree of about {@code size} nodes */
+    private static int log(int size, int base) {
+        int height = 0;
+        for (long nodes = 1; nodes * base <= size; nodes *= base)
+            height++;
+        return height;
+    }
+}
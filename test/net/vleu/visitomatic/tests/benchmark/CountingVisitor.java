@@ -0,0 +1,111 @@
+/*
+ * Copyright 2009 Brice Arnould
+ *
+ * This file is part of VisitOMatic.
+ *
+ * VisitOMatic is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * VisitOMatic is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with VisitOMatic.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.vleu.visitomatic.tests.benchmark;
+
+import net.vleu.visitomatic.FoldOf;
+import net.vleu.visitomatic.FusedVisitorRunner;
+import net.vleu.visitomatic.Visitable;
+import net.vleu.visitomatic.VisitingMethod;
+import net.vleu.visitomatic.Visitor;
+import net.vleu.visitomatic.VisitorRunner;
+import net.vleu.visitomatic.VisitorRunner.VisitorRunnerException;
+import net.vleu.visitomatic.tests.lists.ConsList;
+import net.vleu.visitomatic.tests.lists.EmptyList;
+import net.vleu.visitomatic.tests.lists.VisitableList;
+
+/**
+ * Counts the nodes of the corpora of {@link LoadGenerator}, either by
+ * recursive visits or by folds. Used only for benchmarks.
+ */
+final class CountingVisitor implements Visitor {
+
+    private final static VisitorRunner COUNT_RUNNER =
+            VisitorRunner.getInstance(CountingVisitor.class, "count");
+    private final static FusedVisitorRunner FOLD_COUNT_RUNNER =
+            VisitorRunner.fuse(VisitorRunner.getInstance(CountingVisitor.class,
+                                                         "foldCount"));
+
+    @VisitingMethod(visitName="count")
+    private int count(Plus it, PlusOrJustInteger a, PlusOrJustInteger b) throws VisitorRunnerException {
+        return 1 + count(a) + count(b);
+    }
+
+    @VisitingMethod(visitName="count")
+    private int count(JustInteger it, Integer value) {
+        return 1;
+    }
+
+    @VisitingMethod(visitName="count")
+    private int count(WideNode it, PlusOrJustInteger c0, PlusOrJustInteger c1,
+                      PlusOrJustInteger c2, PlusOrJustInteger c3,
+                      PlusOrJustInteger c4, PlusOrJustInteger c5,
+                      PlusOrJustInteger c6, PlusOrJustInteger c7) throws VisitorRunnerException {
+        return 1 + count(c0) + count(c1) + count(c2) + count(c3) +
+               count(c4) + count(c5) + count(c6) + count(c7);
+    }
+
+    @VisitingMethod(visitName="count")
+    private int count(ConsList<?> it, Object head, VisitableList<?> tail) throws VisitorRunnerException {
+        return 1 + count(tail);
+    }
+
+    @VisitingMethod(visitName="count")
+    private int count(EmptyList<?> it) {
+        return 1;
+    }
+
+    @VisitingMethod(visitName="foldCount")
+    @FoldOf(Plus.class)
+    private int foldCount(int a, int b) {
+        return 1 + a + b;
+    }
+
+    @VisitingMethod(visitName="foldCount")
+    @FoldOf(JustInteger.class)
+    private int foldCount(Integer value) {
+        return 1;
+    }
+
+    @VisitingMethod(visitName="foldCount")
+    @FoldOf(WideNode.class)
+    private int foldCount(int c0, int c1, int c2, int c3, int c4, int c5,
+                          int c6, int c7) {
+        return 1 + c0 + c1 + c2 + c3 + c4 + c5 + c6 + c7;
+    }
+
+    @VisitingMethod(visitName="foldCount")
+    @FoldOf(ConsList.class)
+    private int foldCount(Object head, int tail) {
+        return 1 + tail;
+    }
+
+    @VisitingMethod(visitName="foldCount")
+    @FoldOf(EmptyList.class)
+    private int foldCount() {
+        return 1;
+    }
+
+    public int count(Visitable it) throws VisitorRunnerException {
+        return COUNT_RUNNER.<Integer>visit(this, it);
+    }
+
+    public int foldCount(Visitable it) throws VisitorRunnerException {
+        return (Integer) FOLD_COUNT_RUNNER.visit(it, this)[0];
+    }
+}
@@ -0,0 +1,69 @@
+/*
+ * Copyright 2009 Brice Arnould
+ *
+ * This file is part of VisitOMatic.
+ *
+ * VisitOMatic is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * VisitOMatic is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with VisitOMatic.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.vleu.visitomatic.tests.benchmark;
+
+import net.vleu.visitomatic.PairVisitor;
+import net.vleu.visitomatic.Visitable;
+import net.vleu.visitomatic.VisitingMethod;
+import net.vleu.visitomatic.VisitorRunner;
+import net.vleu.visitomatic.VisitorRunner.VisitorRunnerException;
+
+/**
+ * Checks whether two {@link PlusOrJustInteger} trees are structurally
+ * equal, counting the pairs it had to compare.
+ */
+final class EqualityVisitor implements PairVisitor {
+
+    private final static VisitorRunner EQUAL_RUNNER =
+            VisitorRunner.getInstance(EqualityVisitor.class, "equal");
+
+    /** The number of pairs compared by a method */
+    private int comparisons;
+
+    int getComparisons() {
+        return comparisons;
+    }
+
+    boolean equal(PlusOrJustInteger a, PlusOrJustInteger b) throws VisitorRunnerException {
+        return EQUAL_RUNNER.<Boolean>visitPair(this, a, b);
+    }
+
+    @VisitingMethod(visitName="equal")
+    private Boolean equal(Plus a, PlusOrJustInteger a1, PlusOrJustInteger a2,
+                          Plus b, PlusOrJustInteger b1, PlusOrJustInteger b2) throws VisitorRunnerException {
+        comparisons++;
+        return equal(a1, b1) && equal(a2, b2);
+    }
+
+    @VisitingMethod(visitName="equal")
+    private Boolean equal(JustInteger a, Integer x, JustInteger b, Integer y) {
+        comparisons++;
+        return x.equals(y);
+    }
+
+    @Override
+    public Object same(Visitable visitable) {
+        return Boolean.TRUE;
+    }
+
+    @Override
+    public Object mismatch(Visitable left, Visitable right) {
+        return Boolean.FALSE;
+    }
+}
@@ -0,0 +1,52 @@
+/*
+ * Copyright 2009 Brice Arnould
+ *
+ * This file is part of VisitOMatic.
+ *
+ * VisitOMatic is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * VisitOMatic is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with VisitOMatic.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.vleu.visitomatic.tests.benchmark;
+
+import net.vleu.visitomatic.VisitorRunner.VisitorRunnerException;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests visits of pairs using EqualityVisitor.
+ */
+public final class EqualityVisitorTest {
+
+    /** Check that distinct but equal trees are compared node by node */
+    @Test
+    public void testEqual() throws VisitorRunnerException {
+        final EqualityVisitor visitor = new EqualityVisitor();
+        assertTrue(visitor.equal(PlusOrJustInteger.buildTree(3), PlusOrJustInteger.buildTree(3)));
+        assertEquals((1 << 4) - 1, visitor.getComparisons());
+        assertFalse(visitor.equal(new JustInteger(1), new JustInteger(2)));
+        /* Different classes */
+        assertFalse(visitor.equal(PlusOrJustInteger.buildTree(1), new JustInteger(2)));
+    }
+
+    /** Check that shared subtrees are not compared */
+    @Test
+    public void testShared() throws VisitorRunnerException {
+        final EqualityVisitor visitor = new EqualityVisitor();
+        final PlusOrJustInteger shared = PlusOrJustInteger.buildTree(20);
+        assertTrue(visitor.equal(shared, shared));
+        assertFalse(visitor.equal(new Plus(shared, new JustInteger(1)),
+                                  new Plus(shared, new JustInteger(2))));
+        /* The roots, then the leaves */
+        assertEquals(2, visitor.getComparisons());
+    }
+}
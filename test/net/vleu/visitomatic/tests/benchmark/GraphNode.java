@@ -0,0 +1,40 @@
+/*
+ * Copyright 2009 Brice Arnould
+ *
+ * This file is part of VisitOMatic.
+ *
+ * VisitOMatic is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * VisitOMatic is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with VisitOMatic.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.vleu.visitomatic.tests.benchmark;
+
+import net.vleu.visitomatic.ToVisit;
+import net.vleu.visitomatic.Visitable;
+
+/**
+ * A mutable node, so that graphs with cycles can be built. Used only for
+ * tests.
+ */
+final class GraphNode implements Visitable {
+
+    @ToVisit(position = 0)
+    final int value;
+    @ToVisit(position = 1)
+    GraphNode left;
+    @ToVisit(position = 2)
+    GraphNode right;
+
+    GraphNode(int value) {
+        this.value = value;
+    }
+}
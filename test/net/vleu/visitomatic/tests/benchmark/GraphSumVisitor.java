@@ -0,0 +1,58 @@
+/*
+ * Copyright 2009 Brice Arnould
+ *
+ * This file is part of VisitOMatic.
+ *
+ * VisitOMatic is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * VisitOMatic is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with VisitOMatic.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.vleu.visitomatic.tests.benchmark;
+
+import net.vleu.visitomatic.CyclicVisitor;
+import net.vleu.visitomatic.Visitable;
+import net.vleu.visitomatic.VisitingMethod;
+import net.vleu.visitomatic.VisitorRunner;
+import net.vleu.visitomatic.VisitorRunner.VisitorRunnerException;
+
+/**
+ * Sums the values of the nodes reachable from a {@link GraphNode}. Each node
+ * is visited once, but a shared node is counted once per edge leading to it,
+ * as its result is reused ; back edges count for nothing.
+ */
+final class GraphSumVisitor implements CyclicVisitor {
+
+    private final static VisitorRunner SUM_RUNNER =
+            VisitorRunner.getInstance(GraphSumVisitor.class, "sum");
+    /** The number of back edges met so far */
+    int backEdges;
+
+    @VisitingMethod(visitName="sum")
+    private Long sum(GraphNode it, int value, GraphNode left, GraphNode right) throws VisitorRunnerException {
+        return value + visit(left) + visit(right);
+    }
+
+    private long visit(GraphNode it) throws VisitorRunnerException {
+        return it == null ? 0 : (Long) SUM_RUNNER.visit(this, it);
+    }
+
+    /** Visited nodes are counted by the visit that met them first */
+    @Override
+    public Object backEdge(Visitable visitable) {
+        backEdges++;
+        return 0L;
+    }
+
+    public long visitGraph(GraphNode it) throws VisitorRunnerException {
+        return SUM_RUNNER.<Long>visitGraph(this, it);
+    }
+}
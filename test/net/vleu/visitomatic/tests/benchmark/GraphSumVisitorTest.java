@@ -0,0 +1,70 @@
+/*
+ * Copyright 2009 Brice Arnould
+ *
+ * This file is part of VisitOMatic.
+ *
+ * VisitOMatic is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * VisitOMatic is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with VisitOMatic.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.vleu.visitomatic.tests.benchmark;
+
+import net.vleu.visitomatic.VisitorRunner;
+import net.vleu.visitomatic.VisitorRunner.VisitorRunnerException;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests VisitorRunner#visitGraph using GraphSumVisitor.
+ */
+public final class GraphSumVisitorTest {
+
+    /** Check that a ring is visited once */
+    @Test
+    public void testRing() throws VisitorRunnerException {
+        final GraphNode first = new GraphNode(1);
+        GraphNode last = first;
+        for (int n = 2; n <= 200; n++) {
+            last.left = new GraphNode(n);
+            last = last.left;
+        }
+        last.left = first;
+        final GraphSumVisitor visitor = new GraphSumVisitor();
+        assertEquals(200 * 201 / 2, visitor.visitGraph(first));
+        assertEquals(1, visitor.backEdges);
+    }
+
+    /** Check that self loops and shared nodes are handled */
+    @Test
+    public void testSharing() throws VisitorRunnerException {
+        final GraphNode root = new GraphNode(1);
+        final GraphNode shared = new GraphNode(10);
+        root.left = shared;
+        root.right = shared;
+        shared.right = shared;
+        final GraphSumVisitor visitor = new GraphSumVisitor();
+        /* The second edge to shared gets the result of the first visit */
+        assertEquals(21, visitor.visitGraph(root));
+        assertEquals(1, visitor.backEdges);
+    }
+
+    /** Check that a DAG is visited in linear time by another visitor */
+    @Test
+    public void testDAG() throws VisitorRunnerException {
+        final VisitorRunner runner =
+                VisitorRunner.getInstance(VisitomaticVisitor.class, "sum");
+        /* Without visitGraph, it would take 2^31 visits */
+        final Integer result = runner.visitGraph(new VisitomaticVisitor(),
+                                                 PlusOrJustInteger.buildTree(30));
+        assertEquals(1 << 30, (int) result);
+    }
+}
@@ -0,0 +1,53 @@
+/*
+ * Copyright 2009 Brice Arnould
+ *
+ * This file is part of VisitOMatic.
+ *
+ * VisitOMatic is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * VisitOMatic is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with VisitOMatic.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.vleu.visitomatic.tests.benchmark;
+
+import net.vleu.visitomatic.Visitable;
+import net.vleu.visitomatic.VisitingHandler;
+import net.vleu.visitomatic.Visitor;
+import net.vleu.visitomatic.VisitorRunner;
+import net.vleu.visitomatic.VisitorRunner.VisitorRunnerException;
+
+/**
+ * Sums a {@link PlusOrJustInteger} tree with a runner built from handlers,
+ * without any {@code VisitingMethod}.
+ */
+final class HandlerSumVisitor {
+
+    final static VisitorRunner SUM = VisitorRunner.builder().
+            on(Plus.class, new VisitingHandler<Integer>() {
+
+        @Override
+        public Integer visit(VisitorRunner runner, Visitor visitor, Object[] values) throws VisitorRunnerException {
+            return runner.<Integer>visit(visitor, (Visitable) values[1]) +
+                   runner.<Integer>visit(visitor, (Visitable) values[2]);
+        }
+    }).
+            on(JustInteger.class, new VisitingHandler<Integer>() {
+
+        @Override
+        public Integer visit(VisitorRunner runner, Visitor visitor, Object[] values) {
+            return (Integer) values[1];
+        }
+    }).
+            build();
+
+    private HandlerSumVisitor() {
+    }
+}
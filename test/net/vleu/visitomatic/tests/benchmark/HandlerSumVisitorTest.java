@@ -0,0 +1,87 @@
+/*
+ * Copyright 2009 Brice Arnould
+ *
+ * This file is part of VisitOMatic.
+ *
+ * VisitOMatic is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * VisitOMatic is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with VisitOMatic.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.vleu.visitomatic.tests.benchmark;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import net.vleu.visitomatic.MappedVisitables;
+import net.vleu.visitomatic.VisitableWriter;
+import net.vleu.visitomatic.VisitingHandler;
+import net.vleu.visitomatic.Visitor;
+import net.vleu.visitomatic.VisitorRunner;
+import net.vleu.visitomatic.VisitorRunner.VisitorRunnerException;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests runners built by VisitorRunnerBuilder using HandlerSumVisitor.
+ */
+public final class HandlerSumVisitorTest {
+
+    /** Check that handlers give the same results as visiting methods */
+    @Test
+    public void testSum() throws VisitorRunnerException {
+        assertEquals(1, (int) HandlerSumVisitor.SUM.<Integer>visit(null, new JustInteger(1)));
+        assertEquals(1 << 16, (int) HandlerSumVisitor.SUM.<Integer>visit(
+                null, PlusOrJustInteger.buildTree(16)));
+    }
+
+    /** Check that graph visits go through the handlers */
+    @Test
+    public void testVisitGraph() throws VisitorRunnerException {
+        final JustInteger shared = new JustInteger(3);
+        assertEquals(6, (int) HandlerSumVisitor.SUM.<Integer>visitGraph(
+                null, new Plus(shared, shared)));
+    }
+
+    /** Check that views of a mapped graph go through the handlers of the classes they view */
+    @Test
+    public void testMappedGraph() throws VisitorRunnerException, IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new VisitableWriter().write(PlusOrJustInteger.buildTree(10), out);
+        final MappedVisitables graph = MappedVisitables.wrap(ByteBuffer.wrap(out.toByteArray()));
+        assertEquals(1 << 10, (int) HandlerSumVisitor.SUM.<Integer>visit(null, graph.getRoot()));
+    }
+
+    /** Check that classes without handlers are reported */
+    @Test(expected=VisitorRunnerException.class)
+    public void testMissingHandler() throws VisitorRunnerException {
+        VisitorRunner.builder().on(JustInteger.class, new VisitingHandler<Integer>() {
+
+            @Override
+            public Integer visit(VisitorRunner runner, Visitor visitor, Object[] values) {
+                return (Integer) values[1];
+            }
+        }).build().visit(null, PlusOrJustInteger.buildTree(2));
+    }
+
+    /** Check that a class can't have two handlers */
+    @Test(expected=IllegalArgumentException.class)
+    public void testDuplicateHandler() {
+        final VisitingHandler<Integer> handler = new VisitingHandler<Integer>() {
+
+            @Override
+            public Integer visit(VisitorRunner runner, Visitor visitor, Object[] values) {
+                return null;
+            }
+        };
+        VisitorRunner.builder().on(JustInteger.class, handler).on(JustInteger.class, handler);
+    }
+}
@@ -0,0 +1,70 @@
+/*
+ * Copyright 2009 Brice Arnould
+ *
+ * This file is part of VisitOMatic.
+ *
+ * VisitOMatic is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * VisitOMatic is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with VisitOMatic.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.vleu.visitomatic.tests.benchmark;
+
+import net.vleu.visitomatic.VisitorRunner.VisitorRunnerException;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests incremental visits using IncrementalSumVisitor.
+ */
+public final class IncrementalSumVisitorTest {
+
+    /** Check that only the modified node and its ancestors are visited again */
+    @Test
+    public void testInvalidate() throws VisitorRunnerException {
+        final JustInteger modified = new JustInteger();
+        final Plus unmodified = new Plus(new JustInteger(), new JustInteger());
+        final Plus root = new Plus(unmodified, modified);
+        final IncrementalSumVisitor visitor = new IncrementalSumVisitor();
+        assertEquals(3, (int) visitor.visit(root));
+        assertEquals(5, visitor.calls);
+        assertEquals(3, (int) visitor.visit(root));
+        assertEquals(5, visitor.calls);
+        modified.setValue(40);
+        visitor.invalidate(modified);
+        assertEquals(42, (int) visitor.visit(root));
+        assertEquals(7, visitor.calls);
+    }
+
+    /** Check that shared subtrees are visited once */
+    @Test
+    public void testSharing() throws VisitorRunnerException {
+        final IncrementalSumVisitor visitor = new IncrementalSumVisitor();
+        assertEquals(1 << 24, (int) visitor.visit(PlusOrJustInteger.buildTree(24)));
+        assertEquals(25, visitor.calls);
+    }
+
+    /** Check that a visit overlapping with an invalidation isn't remembered */
+    @Test
+    public void testInvalidateDuringVisit() throws VisitorRunnerException {
+        final JustInteger modified = new JustInteger();
+        final Plus root = new Plus(new Plus(new JustInteger(), new JustInteger()), modified);
+        final IncrementalSumVisitor visitor = new IncrementalSumVisitor();
+        visitor.invalidating = root;
+        visitor.invalidated = modified;
+        assertEquals(3, (int) visitor.visit(root));
+        assertEquals(5, visitor.calls);
+        visitor.invalidating = null;
+        modified.setValue(40);
+        assertEquals(42, (int) visitor.visit(root));
+        assertEquals(7, visitor.calls);
+    }
+}
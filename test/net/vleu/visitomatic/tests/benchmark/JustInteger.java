@@ -29,6 +29,21 @@ final class JustInteger extends PlusOrJustInteger implements Visitable {
     @ToVisit(position = 0)
     private Integer value = 1;
 
+    JustInteger() {
+    }
+
+    JustInteger(Integer value) {
+        this.value = value;
+    }
+
+    Integer getValue() {
+        return value;
+    }
+
+    void setValue(Integer value) {
+        this.value = value;
+    }
+
     @Override
     public Integer accept(HandWrittenVisitor hw) {
         return hw.visit(value);
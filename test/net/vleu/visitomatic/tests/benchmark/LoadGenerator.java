@@ -0,0 +1,233 @@
+/*
+ * Copyright 2009 Brice Arnould
+ *
+ * This file is part of VisitOMatic.
+ *
+ * VisitOMatic is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * VisitOMatic is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with VisitOMatic.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.vleu.visitomatic.tests.benchmark;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import net.vleu.visitomatic.Visitable;
+import net.vleu.visitomatic.VisitorRunner.VisitorRunnerException;
+
+/**
+ * <p>Measures how visits scale with the number of threads sharing the same
+ * runners and the same trees. Used only for benchmarks.</p>
+ *
+ * <p>For each corpus, runner and number of threads, it visits the tree from
+ * all the threads during a fixed time, and prints a CSV line with the
+ * throughput, the 50th, 99th and 99.9th percentiles of the latency and the
+ * allocation rate. Options :</p>
+ * <pre>
+ * --corpus  deep_list,balanced,skewed,dag,wide  The trees to visit
+ * --size    16384                              The number of nodes to visit per tree
+ * --runner  visit,fold                         Recursive visits, or folds
+ * --threads 1,2,4,8,16,32,64                   The numbers of threads
+ * --warmup  2                                  Seconds to run before measuring
+ * --seconds 5                                  Seconds to measure
+ * --out     results.csv                        Where to write, defaults to the standard output
+ * </pre>
+ */
+public final class LoadGenerator {
+
+    /** The stack size of the visiting threads, deep lists are visited recursively */
+    private static final long STACK_SIZE = 256L << 20;
+
+    private List<Corpus> corpora = Arrays.asList(Corpus.values());
+    private int size = 1 << 14;
+    private List<String> runners = Arrays.asList("visit", "fold");
+    private int[] threads = {1, 2, 4, 8, 16, 32, 64};
+    private int warmupSeconds = 2;
+    private int seconds = 5;
+    private PrintStream out = System.out;
+
+    public static void main(String[] args) throws Exception {
+        final LoadGenerator generator = new LoadGenerator();
+        generator.parse(args);
+        generator.run();
+    }
+
+    /** Reads the command line */
+    private void parse(String[] args) throws IOException {
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            final String value = args[i + 1];
+            if ("--corpus".equals(args[i])) {
+                corpora = new ArrayList<Corpus>();
+                for (String name : value.split(","))
+                    corpora.add(Corpus.valueOf(name.toUpperCase()));
+            }
+            else if ("--size".equals(args[i]))
+                size = Integer.parseInt(value);
+            else if ("--runner".equals(args[i]))
+                runners = Arrays.asList(value.split(","));
+            else if ("--threads".equals(args[i])) {
+                final String[] numbers = value.split(",");
+                threads = new int[numbers.length];
+                for (int n = 0; n < numbers.length; n++)
+                    threads[n] = Integer.parseInt(numbers[n]);
+            }
+            else if ("--warmup".equals(args[i]))
+                warmupSeconds = Integer.parseInt(value);
+            else if ("--seconds".equals(args[i]))
+                seconds = Integer.parseInt(value);
+            else if ("--out".equals(args[i]))
+                out = new PrintStream(new FileOutputStream(value), true);
+            else
+                throw new IllegalArgumentException("Unknown option " + args[i]);
+        }
+    }
+
+    /** Runs all the measures and prints them */
+    private void run() throws InterruptedException {
+        out.println("corpus,runner,threads,visits,visits_per_second," +
+                    "p50_us,p99_us,p999_us,allocated_mb_per_second");
+        for (Corpus corpus : corpora) {
+            final Visitable tree = corpus.build(size, new Random(42));
+            for (String runner : runners)
+                for (int numberOfThreads : threads)
+                    measure(corpus, tree, runner, numberOfThreads);
+        }
+        out.flush();
+    }
+
+    /** Visits a tree from many threads and prints a CSV line */
+    private void measure(Corpus corpus, Visitable tree, String runner,
+                         int numberOfThreads) throws InterruptedException {
+        final CountDownLatch start = new CountDownLatch(1);
+        final long warmupEnd = System.nanoTime() + warmupSeconds * 1000000000L;
+        final long end = warmupEnd + seconds * 1000000000L;
+        final Worker[] workers = new Worker[numberOfThreads];
+        final Thread[] workerThreads = new Thread[numberOfThreads];
+        for (int n = 0; n < numberOfThreads; n++) {
+            workers[n] = new Worker(tree, "fold".equals(runner), start,
+                                    warmupEnd, end);
+            workerThreads[n] = new Thread(null, workers[n],
+                                          "LoadGenerator-" + n, STACK_SIZE);
+            workerThreads[n].start();
+        }
+        start.countDown();
+        long visits = 0;
+        long allocated = 0;
+        final List<long[]> latencies = new ArrayList<long[]>();
+        for (int n = 0; n < numberOfThreads; n++) {
+            workerThreads[n].join();
+            if (workers[n].failure != null)
+                throw new IllegalStateException(workers[n].failure);
+            visits += workers[n].visits;
+            allocated += workers[n].allocated;
+            latencies.add(Arrays.copyOf(workers[n].latencies,
+                                        workers[n].visits));
+        }
+        final long[] sorted = new long[(int) visits];
+        int offset = 0;
+        for (long[] latency : latencies) {
+            System.arraycopy(latency, 0, sorted, offset, latency.length);
+            offset += latency.length;
+        }
+        Arrays.sort(sorted);
+        out.println(corpus.name().toLowerCase() + ',' + runner + ',' +
+                    numberOfThreads + ',' + visits + ',' +
+                    visits / seconds + ',' +
+                    percentile(sorted, 0.5) + ',' +
+                    percentile(sorted, 0.99) + ',' +
+                    percentile(sorted, 0.999) + ',' +
+                    (allocated < 0 ? "" :
+                     String.valueOf((allocated >> 20) / seconds)));
+    }
+
+    /** @return The latency below which are {@code rank} of the measures, in microseconds */
+    private static long percentile(long[] sorted, double rank) {
+        if (sorted.length == 0)
+            return 0;
+        return sorted[(int) Math.min(sorted.length - 1,
+                                     Math.floor(sorted.length * rank))] / 1000;
+    }
+
+    /** @return The bytes allocated so far by the current thread, or -1 if the JVM doesn't tell */
+    private static long allocatedBytes() {
+        final ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean)
+            return ((com.sun.management.ThreadMXBean) bean).
+                    getThreadAllocatedBytes(Thread.currentThread().getId());
+        return -1;
+    }
+
+    /** Visits the tree until the end of the measure */
+    private static final class Worker implements Runnable {
+
+        private final Visitable tree;
+        private final boolean fold;
+        private final CountDownLatch start;
+        private final long warmupEnd;
+        private final long end;
+        private final CountingVisitor visitor = new CountingVisitor();
+        /** The latency of each measured visit, in nanoseconds */
+        long[] latencies = new long[1024];
+        int visits;
+        long allocated;
+        Throwable failure;
+
+        Worker(Visitable tree, boolean fold, CountDownLatch start,
+               long warmupEnd, long end) {
+            this.tree = tree;
+            this.fold = fold;
+            this.start = start;
+            this.warmupEnd = warmupEnd;
+            this.end = end;
+        }
+
+        private void visit() throws VisitorRunnerException {
+            if (fold)
+                visitor.foldCount(tree);
+            else
+                visitor.count(tree);
+        }
+
+        @Override
+        public void run() {
+            try {
+                start.await();
+                while (System.nanoTime() < warmupEnd)
+                    visit();
+                final long allocatedBefore = allocatedBytes();
+                long now = System.nanoTime();
+                while (now < end) {
+                    visit();
+                    final long after = System.nanoTime();
+                    if (visits == latencies.length)
+                        latencies = Arrays.copyOf(latencies, visits * 2);
+                    latencies[visits++] = after - now;
+                    now = after;
+                }
+                allocated = allocatedBefore < 0 ? -1 :
+                            allocatedBytes() - allocatedBefore;
+            }
+            catch (Throwable ex) {
+                /* Errors too, such as a StackOverflowError on a deep list,
+                 * or the run would look complete */
+                failure = ex;
+            }
+        }
+    }
+}
@@ -0,0 +1,51 @@
+/*
+ * Copyright 2009 Brice Arnould
+ *
+ * This file is part of VisitOMatic.
+ *
+ * VisitOMatic is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * VisitOMatic is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with VisitOMatic.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.vleu.visitomatic.tests.benchmark;
+
+import net.vleu.visitomatic.MappedVisitable;
+import net.vleu.visitomatic.ViewOf;
+import net.vleu.visitomatic.VisitingMethod;
+import net.vleu.visitomatic.Visitor;
+import net.vleu.visitomatic.VisitorRunner;
+import net.vleu.visitomatic.VisitorRunner.VisitorRunnerException;
+
+/**
+ * Sums a {@link PlusOrJustInteger} tree read in place from a file.
+ */
+final class MappedSumVisitor implements Visitor {
+
+    private final static VisitorRunner SUM_RUNNER =
+            VisitorRunner.getInstance(MappedSumVisitor.class, "sum");
+
+    @VisitingMethod(visitName="sum")
+    @ViewOf(Plus.class)
+    private Integer sum(MappedVisitable it, MappedVisitable a, MappedVisitable b) throws VisitorRunnerException {
+        return visit(a) + visit(b);
+    }
+
+    @VisitingMethod(visitName="sum")
+    @ViewOf(JustInteger.class)
+    private Integer sum(MappedVisitable it, Integer value) {
+        return value;
+    }
+
+    public Integer visit(MappedVisitable it) throws VisitorRunnerException {
+        return SUM_RUNNER.visit(this, it);
+    }
+}
@@ -0,0 +1,80 @@
+/*
+ * Copyright 2009 Brice Arnould
+ *
+ * This file is part of VisitOMatic.
+ *
+ * VisitOMatic is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * VisitOMatic is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with VisitOMatic.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.vleu.visitomatic.tests.benchmark;
+
+import java.io.File;
+import java.io.IOException;
+import net.vleu.visitomatic.MappedVisitable;
+import net.vleu.visitomatic.MappedVisitables;
+import net.vleu.visitomatic.VisitableWriter;
+import net.vleu.visitomatic.VisitorRunner.VisitorRunnerException;
+import net.vleu.visitomatic.tests.lists.ConsList;
+import net.vleu.visitomatic.tests.lists.EmptyList;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests visits of trees read in place by {@link MappedVisitables}.
+ */
+public final class MappedVisitablesTest {
+
+    private final static int HEIGHT = 16;
+    private File file;
+
+    @Before
+    public void setUp() throws IOException {
+        file = File.createTempFile("visitomatic", ".bin");
+    }
+
+    @After
+    public void tearDown() {
+        file.delete();
+    }
+
+    /** Check that a mapped tree sums to the same value as the original one,
+     * and that shared subtrees are written only once.
+     */
+    @Test
+    public void testSum() throws IOException, VisitorRunnerException {
+        new VisitableWriter().write(PlusOrJustInteger.buildTree(HEIGHT), file);
+        assertTrue("Shared subtrees were written many times",
+                   file.length() < 100 * HEIGHT);
+        final MappedVisitables mapped = MappedVisitables.map(file);
+        final int result = new MappedSumVisitor().visit(mapped.getRoot());
+        assertEquals(1 << HEIGHT, result);
+    }
+
+    /** Check the members of a mapped list */
+    @Test
+    public void testValues() throws IOException {
+        new VisitableWriter().write(new ConsList<String>("a",
+                new ConsList<String>("é", new EmptyList<String>())), file);
+        final MappedVisitable root = MappedVisitables.map(file).getRoot();
+        assertEquals(ConsList.class, root.getVisitableClass());
+        assertEquals(3, root.getNumberOfValues());
+        assertEquals("a", root.getValue(0));
+        final MappedVisitable tail = (MappedVisitable) root.getValue(1);
+        assertEquals("é", tail.getValue(0));
+        final MappedVisitable empty = (MappedVisitable) tail.readValues()[2];
+        assertEquals(EmptyList.class, empty.getVisitableClass());
+        assertEquals(1, empty.getNumberOfValues());
+    }
+}
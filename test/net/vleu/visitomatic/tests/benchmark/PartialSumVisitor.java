@@ -0,0 +1,83 @@
+/*
+ * Copyright 2009 Brice Arnould
+ *
+ * This file is part of VisitOMatic.
+ *
+ * VisitOMatic is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * VisitOMatic is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with VisitOMatic.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.vleu.visitomatic.tests.benchmark;
+
+import java.util.concurrent.TimeoutException;
+import net.vleu.visitomatic.FallbackVisitor;
+import net.vleu.visitomatic.Visitable;
+import net.vleu.visitomatic.VisitDeadline;
+import net.vleu.visitomatic.VisitingMethod;
+import net.vleu.visitomatic.VisitorRunner;
+import net.vleu.visitomatic.VisitorRunner.VisitorRunnerException;
+
+/**
+ * Sums a {@link PlusOrJustInteger} tree, and returns the sum of the
+ * integers visited so far when its visit is aborted. Negative integers
+ * make it throw a {@link TimeoutException} of its own.
+ */
+final class PartialSumVisitor implements FallbackVisitor {
+
+    private final static VisitorRunner SUM_RUNNER =
+            VisitorRunner.getInstance(PartialSumVisitor.class, "sum");
+    /** The sum of the integers visited so far */
+    private long partialSum;
+    /** If set, the members of each {@link Plus} are visited under it */
+    private VisitDeadline memberDeadline;
+    /** The number of calls to {@link #fallback} so far */
+    int fallbacks;
+
+    @VisitingMethod(visitName="sum")
+    private Long sum(Plus it, PlusOrJustInteger a, PlusOrJustInteger b) throws VisitorRunnerException {
+        if (memberDeadline != null)
+            return (Long) SUM_RUNNER.visit(this, a, memberDeadline) +
+                   (Long) SUM_RUNNER.visit(this, b, memberDeadline);
+        return (Long) SUM_RUNNER.visit(this, a) + (Long) SUM_RUNNER.visit(this, b);
+    }
+
+    @VisitingMethod(visitName="sum")
+    private Long sum(JustInteger it, Integer value) throws TimeoutException {
+        if (value < 0)
+            throw new TimeoutException("A negative integer");
+        partialSum += value;
+        return (long) value;
+    }
+
+    public Long visit(PlusOrJustInteger it, VisitDeadline deadline) throws VisitorRunnerException {
+        partialSum = 0;
+        return SUM_RUNNER.visit(this, it, deadline);
+    }
+
+    /** Does the same as {@link #visit}, visiting members under {@code memberDeadline} */
+    public Long visit(PlusOrJustInteger it, VisitDeadline deadline,
+                      VisitDeadline memberDeadline) throws VisitorRunnerException {
+        this.memberDeadline = memberDeadline;
+        try {
+            return visit(it, deadline);
+        }
+        finally {
+            this.memberDeadline = null;
+        }
+    }
+
+    @Override
+    public Object fallback(Visitable visitable, Throwable cause) {
+        fallbacks++;
+        return -partialSum;
+    }
+}
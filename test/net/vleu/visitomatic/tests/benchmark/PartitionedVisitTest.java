@@ -0,0 +1,77 @@
+/*
+ * Copyright 2009 Brice Arnould
+ *
+ * This file is part of VisitOMatic.
+ *
+ * VisitOMatic is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * VisitOMatic is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with VisitOMatic.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.vleu.visitomatic.tests.benchmark;
+
+import java.io.IOException;
+import net.vleu.visitomatic.PartitionedVisit;
+import net.vleu.visitomatic.VisitorRunner.VisitorRunnerException;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests PartitionedVisit using FoldingSumVisitor, with local worker
+ * processes.
+ */
+public final class PartitionedVisitTest {
+
+    /** Check that a partitioned fold gives the same result as a local one */
+    @Test
+    public void testVisit() throws VisitorRunnerException, IOException {
+        final PartitionedVisit<Integer> sum = new PartitionedVisit<Integer>(
+                new FoldingSumVisitor(), "sum", 2, PartitionedVisit.atDepth(3));
+        try {
+            assertEquals(1 << 12, (int) sum.visit(PlusOrJustInteger.buildTree(12)));
+            /* The root is always folded locally */
+            assertEquals(1, (int) sum.visit(new JustInteger(1)));
+            /* A tree shallower than the cut */
+            assertEquals(1 << 2, (int) sum.visit(PlusOrJustInteger.buildTree(2)));
+        }
+        finally {
+            sum.close();
+        }
+    }
+
+    /** Check that a subtree reachable from several cuts is folded */
+    @Test
+    public void testShared() throws VisitorRunnerException, IOException {
+        final PlusOrJustInteger shared = PlusOrJustInteger.buildTree(6);
+        final PartitionedVisit<Integer> sum = new PartitionedVisit<Integer>(
+                new FoldingSumVisitor(), "sum", 3, PartitionedVisit.atDepth(1));
+        try {
+            assertEquals(2 << 6, (int) sum.visit(new Plus(shared, shared)));
+        }
+        finally {
+            sum.close();
+        }
+    }
+
+    /** Check that the failures of the workers are reported */
+    @Test(expected=VisitorRunnerException.class)
+    public void testWorkerFailure() throws VisitorRunnerException, IOException {
+        /* The workers can't build a CachingSumVisitor */
+        final PartitionedVisit<Integer> sum = new PartitionedVisit<Integer>(
+                new CachingSumVisitor(1), "sum", 1, PartitionedVisit.atDepth(1));
+        try {
+            sum.visit(PlusOrJustInteger.buildTree(2));
+        }
+        finally {
+            sum.close();
+        }
+    }
+}
@@ -0,0 +1,67 @@
+/*
+ * Copyright 2009 Brice Arnould
+ *
+ * This file is part of VisitOMatic.
+ *
+ * VisitOMatic is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * VisitOMatic is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with VisitOMatic.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.vleu.visitomatic.tests.benchmark;
+
+import net.vleu.visitomatic.Matching;
+import net.vleu.visitomatic.VisitingMethod;
+import net.vleu.visitomatic.Visitor;
+import net.vleu.visitomatic.VisitorRunner;
+import net.vleu.visitomatic.VisitorRunner.VisitorRunnerException;
+
+/**
+ * Sums a {@link PlusOrJustInteger} tree, handling apart the additions of
+ * integers. Counts how many times each case was met.
+ */
+final class PatternSumVisitor implements Visitor {
+
+    private final static VisitorRunner SUM_RUNNER =
+            VisitorRunner.getInstance(PatternSumVisitor.class, "sum");
+    int integerPlusInteger;
+    int integerPlusAny;
+    int anyPlusAny;
+
+    @VisitingMethod(visitName="sum")
+    private Integer sumIntegers(Plus it, @Matching(JustInteger.class) PlusOrJustInteger a,
+                                @Matching(JustInteger.class) PlusOrJustInteger b) throws VisitorRunnerException {
+        integerPlusInteger++;
+        return visit(a) + visit(b);
+    }
+
+    @VisitingMethod(visitName="sum")
+    private Integer sumIntegerAndAny(Plus it, @Matching(JustInteger.class) PlusOrJustInteger a,
+                                     PlusOrJustInteger b) throws VisitorRunnerException {
+        integerPlusAny++;
+        return visit(a) + visit(b);
+    }
+
+    @VisitingMethod(visitName="sum")
+    private Integer sum(Plus it, PlusOrJustInteger a, PlusOrJustInteger b) throws VisitorRunnerException {
+        anyPlusAny++;
+        return visit(a) + visit(b);
+    }
+
+    @VisitingMethod(visitName="sum")
+    private Integer sum(JustInteger it, Integer value) {
+        return value;
+    }
+
+    public Integer visit(PlusOrJustInteger it) throws VisitorRunnerException {
+        return SUM_RUNNER.visit(this, it);
+    }
+}
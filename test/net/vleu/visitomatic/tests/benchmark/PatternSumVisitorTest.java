@@ -0,0 +1,77 @@
+/*
+ * Copyright 2009 Brice Arnould
+ *
+ * This file is part of VisitOMatic.
+ *
+ * VisitOMatic is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * VisitOMatic is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with VisitOMatic.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.vleu.visitomatic.tests.benchmark;
+
+import net.vleu.visitomatic.Matching;
+import net.vleu.visitomatic.VisitingMethod;
+import net.vleu.visitomatic.Visitor;
+import net.vleu.visitomatic.VisitorRunner;
+import net.vleu.visitomatic.VisitorRunner.VisitorRunnerException;
+import net.vleu.visitomatic.VisitorRunner.VisitorRunnerInitialisationException;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests the matching of patterns over members using PatternSumVisitor.
+ */
+public final class PatternSumVisitorTest {
+
+    /** Check that the most specific method matching the members is called */
+    @Test
+    public void testMostSpecific() throws VisitorRunnerException {
+        final PatternSumVisitor visitor = new PatternSumVisitor();
+        final Plus integerPlusInteger = new Plus(new JustInteger(), new JustInteger());
+        final Plus integerPlusAny = new Plus(new JustInteger(), integerPlusInteger);
+        final Plus anyPlusAny = new Plus(integerPlusAny, new JustInteger());
+        assertEquals(4, (int) visitor.visit(anyPlusAny));
+        assertEquals(1, visitor.integerPlusInteger);
+        assertEquals(1, visitor.integerPlusAny);
+        assertEquals(1, visitor.anyPlusAny);
+    }
+
+    /** Check that methods matching the same members without one being more specific are refused */
+    @Test(expected = VisitorRunnerInitialisationException.class)
+    public void testAmbiguous() {
+        class AmbiguousVisitor implements Visitor {
+
+            @VisitingMethod(visitName="sum")
+            private Integer sumLeftInteger(Plus it, @Matching(JustInteger.class) PlusOrJustInteger a,
+                                           PlusOrJustInteger b) {
+                return null;
+            }
+
+            @VisitingMethod(visitName="sum")
+            private Integer sumRightInteger(Plus it, PlusOrJustInteger a,
+                                            @Matching(JustInteger.class) PlusOrJustInteger b) {
+                return null;
+            }
+        }
+        VisitorRunner.getInstance(AmbiguousVisitor.class, "sum");
+    }
+
+    /** Check that a big tree selects the same methods every time */
+    @Test
+    public void testTree() throws VisitorRunnerException {
+        final PatternSumVisitor visitor = new PatternSumVisitor();
+        assertEquals(1 << 16, (int) visitor.visit(PlusOrJustInteger.buildTree(16)));
+        assertEquals(1 << 15, visitor.integerPlusInteger);
+        assertEquals(0, visitor.integerPlusAny);
+        assertEquals((1 << 15) - 1, visitor.anyPlusAny);
+    }
+}
@@ -0,0 +1,115 @@
+/*
+ * Copyright 2009 Brice Arnould
+ *
+ * This file is part of VisitOMatic.
+ *
+ * VisitOMatic is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * VisitOMatic is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with VisitOMatic.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.vleu.visitomatic.tests.benchmark;
+
+import java.io.File;
+import java.io.IOException;
+import net.vleu.visitomatic.PersistentVisitorRunner;
+import net.vleu.visitomatic.VisitorRunner;
+import net.vleu.visitomatic.VisitorRunner.VisitorRunnerException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests PersistentVisitorRunner using PersistentSumVisitor.
+ */
+public final class PersistentResultCacheTest {
+
+    private final static int HEIGHT = 10;
+    private File file;
+
+    @Before
+    public void setUp() throws IOException {
+        file = File.createTempFile("visitomatic", ".results");
+        file.delete();
+    }
+
+    @After
+    public void tearDown() {
+        file.delete();
+    }
+
+    /** @return A tree whose nodes are all distinct, its leaves holding 1 */
+    private static PlusOrJustInteger buildUnsharedTree(int height) {
+        if (height == 0)
+            return new JustInteger(1);
+        return new Plus(buildUnsharedTree(height - 1), buildUnsharedTree(height - 1));
+    }
+
+    private PersistentVisitorRunner open(int maximumSize) throws IOException {
+        return VisitorRunner.getPersistentInstance(PersistentSumVisitor.class,
+                                                   "sum", file, maximumSize);
+    }
+
+    /** Check that results are reused by another runner on an equal tree */
+    @Test
+    public void testReopen() throws IOException, VisitorRunnerException {
+        PersistentVisitorRunner runner = open(1 << 20);
+        PersistentSumVisitor visitor = new PersistentSumVisitor(runner);
+        assertEquals(1 << HEIGHT, (int) visitor.visit(buildUnsharedTree(HEIGHT)));
+        /* The two subtrees of each node are equal, so only the first is visited */
+        assertEquals(HEIGHT + 1, visitor.calls);
+        runner.close();
+        runner = open(1 << 20);
+        visitor = new PersistentSumVisitor(runner);
+        assertEquals(1 << HEIGHT, (int) visitor.visit(buildUnsharedTree(HEIGHT)));
+        assertEquals(0, visitor.calls);
+        assertEquals(1, runner.getHitCount());
+        runner.close();
+    }
+
+    /** Check that only the path to an edited leaf is visited again */
+    @Test
+    public void testEdit() throws IOException, VisitorRunnerException {
+        final PersistentVisitorRunner runner = open(1 << 20);
+        PersistentSumVisitor visitor = new PersistentSumVisitor(runner);
+        final PlusOrJustInteger tree = buildUnsharedTree(HEIGHT);
+        assertEquals(1 << HEIGHT, (int) visitor.visit(tree));
+        PlusOrJustInteger leaf = tree;
+        while (leaf instanceof Plus)
+            leaf = ((Plus) leaf).a;
+        ((JustInteger) leaf).setValue(2);
+        visitor = new PersistentSumVisitor(runner);
+        assertEquals((1 << HEIGHT) + 1, (int) visitor.visit(tree));
+        assertEquals(HEIGHT + 1, visitor.calls);
+        runner.close();
+    }
+
+    /** Check that a small file evicts results and still gives right ones */
+    @Test
+    public void testEviction() throws IOException, VisitorRunnerException {
+        final PersistentVisitorRunner runner = open(4096);
+        for (int n = 0; n < 64; n++) {
+            final PersistentSumVisitor visitor = new PersistentSumVisitor(runner);
+            final Plus tree = new Plus(new JustInteger(n), buildUnsharedTree(2));
+            assertEquals(n + 4, (int) visitor.visit(tree));
+        }
+        assertTrue("Nothing was evicted", runner.getEvictionCount() > 0);
+        runner.close();
+        final PersistentVisitorRunner reopened = open(4096);
+        assertTrue("Nothing was kept", reopened.size() > 0);
+        final PersistentSumVisitor visitor = new PersistentSumVisitor(reopened);
+        assertEquals(63 + 4, (int) visitor.visit(new Plus(new JustInteger(63),
+                                                          buildUnsharedTree(2))));
+        assertEquals(0, visitor.calls);
+        reopened.close();
+    }
+}
@@ -0,0 +1,55 @@
+/*
+ * Copyright 2009 Brice Arnould
+ *
+ * This file is part of VisitOMatic.
+ *
+ * VisitOMatic is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * VisitOMatic is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with VisitOMatic.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.vleu.visitomatic.tests.benchmark;
+
+import net.vleu.visitomatic.PersistentVisitorRunner;
+import net.vleu.visitomatic.VisitingMethod;
+import net.vleu.visitomatic.Visitor;
+import net.vleu.visitomatic.VisitorRunner.VisitorRunnerException;
+
+/**
+ * Sums a {@link PlusOrJustInteger} tree, reusing the results stored by a
+ * {@link PersistentVisitorRunner}. Counts the calls to its visiting methods.
+ */
+final class PersistentSumVisitor implements Visitor {
+
+    private final PersistentVisitorRunner sumRunner;
+    /** The number of calls to the visiting methods so far */
+    int calls;
+
+    PersistentSumVisitor(PersistentVisitorRunner sumRunner) {
+        this.sumRunner = sumRunner;
+    }
+
+    @VisitingMethod(visitName="sum")
+    private Integer sum(Plus it, PlusOrJustInteger a, PlusOrJustInteger b) throws VisitorRunnerException {
+        calls++;
+        return visit(a) + visit(b);
+    }
+
+    @VisitingMethod(visitName="sum")
+    private Integer sum(JustInteger it, Integer value) {
+        calls++;
+        return value;
+    }
+
+    public Integer visit(PlusOrJustInteger it) throws VisitorRunnerException {
+        return sumRunner.visit(this, it);
+    }
+}
@@ -0,0 +1,45 @@
+/*
+ * Copyright 2009 Brice Arnould
+ *
+ * This file is part of VisitOMatic.
+ *
+ * VisitOMatic is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * VisitOMatic is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with VisitOMatic.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.vleu.visitomatic.tests.benchmark;
+
+import net.vleu.visitomatic.VisitingMethod;
+import net.vleu.visitomatic.Visitor;
+import net.vleu.visitomatic.VisitorRunner;
+
+/**
+ * Collects the {@link Plus} nodes of a tree through the "plus" visit, or
+ * the values of its {@link JustInteger}s through the "integer" visit.
+ */
+final class PlusCollectingVisitor implements Visitor {
+
+    final static VisitorRunner PLUS_RUNNER =
+            VisitorRunner.getInstance(PlusCollectingVisitor.class, "plus");
+    final static VisitorRunner INTEGER_RUNNER =
+            VisitorRunner.getInstance(PlusCollectingVisitor.class, "integer");
+
+    @VisitingMethod(visitName="plus")
+    private Plus collect(Plus it, PlusOrJustInteger a, PlusOrJustInteger b) {
+        return it;
+    }
+
+    @VisitingMethod(visitName="integer")
+    private Integer collect(JustInteger it, Integer value) {
+        return value;
+    }
+}
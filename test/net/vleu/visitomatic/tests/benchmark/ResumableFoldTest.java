@@ -0,0 +1,182 @@
+/*
+ * Copyright 2009 Brice Arnould
+ *
+ * This file is part of VisitOMatic.
+ *
+ * VisitOMatic is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * VisitOMatic is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with VisitOMatic.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.vleu.visitomatic.tests.benchmark;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.concurrent.TimeUnit;
+import net.vleu.visitomatic.MappedVisitables;
+import net.vleu.visitomatic.ResumableFold;
+import net.vleu.visitomatic.VisitableWriter;
+import net.vleu.visitomatic.VisitorRunner.VisitorRunnerException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests ResumableFold using BudgetedFoldingSumVisitor.
+ */
+public final class ResumableFoldTest {
+
+    private final static int HEIGHT = 14;
+    /** The number of nodes of a tree of height {@link #HEIGHT} without sharing */
+    private final static int NODES = (1 << (HEIGHT + 1)) - 1;
+    private File file;
+    private File checkpoint;
+
+    @Before
+    public void setUp() throws IOException {
+        file = File.createTempFile("visitomatic", ".bin");
+        checkpoint = File.createTempFile("visitomatic", ".checkpoint");
+        checkpoint.delete();
+    }
+
+    @After
+    public void tearDown() {
+        file.delete();
+        checkpoint.delete();
+    }
+
+    /** @return A tree whose nodes are all distinct */
+    private static PlusOrJustInteger buildUnsharedTree(int height) {
+        if (height == 0)
+            return new JustInteger(1);
+        return new Plus(buildUnsharedTree(height - 1), buildUnsharedTree(height - 1));
+    }
+
+    /** @return A fold of the tree by this visitor, checkpointing often */
+    private ResumableFold<Integer> newFold(BudgetedFoldingSumVisitor visitor,
+                                           MappedVisitables graph) {
+        return new ResumableFold<Integer>(BudgetedFoldingSumVisitor.SUM_RUNNER,
+                                          visitor, graph, checkpoint, 0,
+                                          TimeUnit.SECONDS);
+    }
+
+    /** Check that an uninterrupted fold gives the right result */
+    @Test
+    public void testRun() throws IOException, VisitorRunnerException {
+        new VisitableWriter().write(PlusOrJustInteger.buildTree(HEIGHT), file);
+        final BudgetedFoldingSumVisitor visitor =
+                new BudgetedFoldingSumVisitor(Integer.MAX_VALUE);
+        assertEquals(1 << HEIGHT, (int) newFold(visitor, MappedVisitables.map(file)).run());
+        assertFalse("The checkpoint was kept", checkpoint.exists());
+    }
+
+    /** Check that an interrupted fold resumes from its last checkpoint */
+    @Test
+    public void testResume() throws IOException, VisitorRunnerException {
+        new VisitableWriter().write(buildUnsharedTree(HEIGHT), file);
+        final MappedVisitables graph = MappedVisitables.map(file);
+        final BudgetedFoldingSumVisitor crashing =
+                new BudgetedFoldingSumVisitor(NODES / 2);
+        final ResumableFold<Integer> interrupted = newFold(crashing, graph);
+        try {
+            interrupted.run();
+            fail("The fold wasn't interrupted");
+        }
+        catch (VisitorRunnerException ex) {
+            assertTrue(interrupted.getCheckpointCount() > 0);
+        }
+        /* Simulate a crash during the last checkpoint */
+        final RandomAccessFile truncated = new RandomAccessFile(checkpoint, "rw");
+        truncated.setLength(truncated.length() - 3);
+        truncated.close();
+        final BudgetedFoldingSumVisitor resuming =
+                new BudgetedFoldingSumVisitor(Integer.MAX_VALUE);
+        assertEquals(1 << HEIGHT, (int) newFold(resuming, graph).run());
+        assertTrue("The fold started over", resuming.getFolds() < NODES);
+        assertFalse("The checkpoint was kept", checkpoint.exists());
+    }
+
+    /** Check that the checkpoints of a graph are refused once it was modified */
+    @Test
+    public void testModifiedGraph() throws IOException, VisitorRunnerException {
+        new VisitableWriter().write(buildUnsharedTree(HEIGHT), file);
+        try {
+            newFold(new BudgetedFoldingSumVisitor(NODES / 2), MappedVisitables.map(file)).run();
+            fail("The fold wasn't interrupted");
+        }
+        catch (VisitorRunnerException ex) {
+            /* Expected */
+        }
+        /* Change the last leaf, keeping the size of the graph */
+        final long length = file.length();
+        final RandomAccessFile modified = new RandomAccessFile(file, "rw");
+        modified.seek(length - 4);
+        modified.writeInt(2);
+        modified.close();
+        assertEquals(length, file.length());
+        try {
+            newFold(new BudgetedFoldingSumVisitor(Integer.MAX_VALUE),
+                    MappedVisitables.map(file)).run();
+            fail("The checkpoint of the previous graph was resumed");
+        }
+        catch (IOException ex) {
+            /* Expected */
+        }
+    }
+
+    /** @return The number of checkpoints in the checkpoint file */
+    private int countCheckpoints() throws IOException {
+        final DataInputStream in = new DataInputStream(new FileInputStream(checkpoint));
+        int result = 0;
+        try {
+            while (true) {
+                final int length = in.readInt();
+                in.readLong();
+                in.readFully(new byte[length]);
+                result++;
+            }
+        }
+        catch (EOFException ex) {
+            return result;
+        }
+        finally {
+            in.close();
+        }
+    }
+
+    /** Check that a long fold keeps its checkpoint file compact */
+    @Test
+    public void testCompaction() throws IOException, VisitorRunnerException {
+        final int height = 17;
+        final int nodes = (1 << (height + 1)) - 1;
+        new VisitableWriter().write(buildUnsharedTree(height), file);
+        final MappedVisitables graph = MappedVisitables.map(file);
+        final ResumableFold<Integer> interrupted =
+                newFold(new BudgetedFoldingSumVisitor(nodes - 1000), graph);
+        try {
+            interrupted.run();
+            fail("The fold wasn't interrupted");
+        }
+        catch (VisitorRunnerException ex) {
+            assertTrue(interrupted.getCheckpointCount() > 2 * ResumableFold.CHECKPOINTS_PER_COMPACTION);
+        }
+        assertTrue(countCheckpoints() <= ResumableFold.CHECKPOINTS_PER_COMPACTION);
+        final BudgetedFoldingSumVisitor resuming =
+                new BudgetedFoldingSumVisitor(Integer.MAX_VALUE);
+        assertEquals(1 << height, (int) newFold(resuming, graph).run());
+        assertTrue("The fold started over", resuming.getFolds() < nodes / 2);
+    }
+}
@@ -0,0 +1,73 @@
+/*
+ * Copyright 2009 Brice Arnould
+ *
+ * This file is part of VisitOMatic.
+ *
+ * VisitOMatic is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * VisitOMatic is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with VisitOMatic.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.vleu.visitomatic.tests.benchmark;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import net.vleu.visitomatic.SelectiveVisit;
+import net.vleu.visitomatic.VisitorRunner.VisitorRunnerException;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests SelectiveVisit using PlusCollectingVisitor.
+ */
+public final class SelectiveVisitTest {
+
+    /** Check that the leaves, which can't hold a Plus, are skipped */
+    @Test
+    public void testPruneByClass() throws VisitorRunnerException {
+        final SelectiveVisit<Plus> plus = new SelectiveVisit<Plus>(
+                PlusCollectingVisitor.PLUS_RUNNER, Collections.singleton(Plus.class));
+        final List<Plus> found =
+                plus.visitAll(new PlusCollectingVisitor(), PlusOrJustInteger.buildTree(4));
+        assertEquals((1 << 4) - 1, found.size());
+        assertEquals(1 << 4, plus.getPrunedCount());
+        assertFalse(plus.mayContainVisited(JustInteger.class));
+        assertTrue(plus.visitAll(new PlusCollectingVisitor(), new JustInteger(1)).isEmpty());
+    }
+
+    /** Check that members whose declared type can't hold a Plus are skipped */
+    @Test
+    public void testPruneByDeclaredType() throws VisitorRunnerException {
+        final SelectiveVisit<Plus> plus = new SelectiveVisit<Plus>(
+                PlusCollectingVisitor.PLUS_RUNNER,
+                Arrays.asList(LabelledNode.class, Plus.class));
+        assertTrue(plus.mayContainVisited(LabelledNode.class));
+        final Plus body = new Plus(new JustInteger(1), new JustInteger(2));
+        final List<Plus> found = plus.visitAll(new PlusCollectingVisitor(),
+                                               new LabelledNode(new JustInteger(0), body));
+        assertEquals(Collections.singletonList(body), found);
+        /* The label, then the two members of the body */
+        assertEquals(3, plus.getPrunedCount());
+    }
+
+    /** Check that members of an abstract type lead to classes not given */
+    @Test
+    public void testAbstractMembers() throws VisitorRunnerException {
+        final SelectiveVisit<Integer> integers = new SelectiveVisit<Integer>(
+                PlusCollectingVisitor.INTEGER_RUNNER, Collections.singleton(Plus.class));
+        assertTrue(integers.mayContainVisited(Plus.class));
+        final List<Integer> found =
+                integers.visitAll(new PlusCollectingVisitor(), PlusOrJustInteger.buildTree(4));
+        assertEquals(1 << 4, found.size());
+        assertEquals(0, integers.getPrunedCount());
+    }
+}
@@ -0,0 +1,86 @@
+/*
+ * Copyright 2009 Brice Arnould
+ *
+ * This file is part of VisitOMatic.
+ *
+ * VisitOMatic is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * VisitOMatic is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with VisitOMatic.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.vleu.visitomatic.tests.benchmark;
+
+import net.vleu.visitomatic.TieredVisitorRunner.Tier;
+import net.vleu.visitomatic.ToVisit;
+import net.vleu.visitomatic.Visitable;
+import net.vleu.visitomatic.VisitorRunner.VisitorRunnerException;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests TieredVisitorRunner using TieredSumVisitor.
+ */
+public final class TieredSumVisitorTest {
+
+    /** Check that hot classes get compiled, and give the same results */
+    @Test
+    public void testCompilation() throws VisitorRunnerException, InterruptedException {
+        final TieredSumVisitor visitor = new TieredSumVisitor(100);
+        assertEquals(Tier.GENERIC, visitor.sumRunner.getTier(Plus.class));
+        assertEquals(1 << 4, (int) visitor.visit(PlusOrJustInteger.buildTree(4)));
+        assertEquals(Tier.GENERIC, visitor.sumRunner.getTier(Plus.class));
+        assertEquals(16, visitor.sumRunner.getGenericVisitCount(JustInteger.class));
+        assertEquals(1 << 10, (int) visitor.visit(PlusOrJustInteger.buildTree(10)));
+        for (int n = 0; n < 500 &&
+                        (visitor.sumRunner.getTier(Plus.class) != Tier.COMPILED ||
+                         visitor.sumRunner.getTier(JustInteger.class) != Tier.COMPILED); n++)
+            Thread.sleep(10);
+        assertEquals(Tier.COMPILED, visitor.sumRunner.getTier(Plus.class));
+        assertEquals(Tier.COMPILED, visitor.sumRunner.getTier(JustInteger.class));
+        final int genericVisits = visitor.sumRunner.getGenericVisitCount(Plus.class);
+        assertEquals(1 << 12, (int) visitor.visit(PlusOrJustInteger.buildTree(12)));
+        assertEquals(genericVisits, visitor.sumRunner.getGenericVisitCount(Plus.class));
+    }
+
+    /** Check that a class failing to compile is reported and no longer counted */
+    @Test
+    public void testCompilationFailure() throws InterruptedException {
+        /* Its members have a gap in their positions, so it can't be read. Being
+         * local, it escapes the checks of CompileTimeChecker. */
+        final class Unreadable implements Visitable {
+
+            @ToVisit(position = 1)
+            Integer value = 1;
+        }
+        final TieredSumVisitor visitor = new TieredSumVisitor(10);
+        for (int n = 0; n < 10; n++)
+            try {
+                visitor.sumRunner.visit(visitor, new Unreadable());
+                fail("An unreadable class was visited");
+            }
+            catch (Exception ex) {
+                /* The generic path reports the error */
+            }
+        for (int n = 0; n < 500 &&
+                        visitor.sumRunner.getTier(Unreadable.class) != Tier.GENERIC_ONLY; n++)
+            Thread.sleep(10);
+        assertEquals(Tier.GENERIC_ONLY, visitor.sumRunner.getTier(Unreadable.class));
+        assertNotNull(visitor.sumRunner.getCompilationFailure(Unreadable.class));
+        assertNull(visitor.sumRunner.getCompilationFailure(Plus.class));
+        try {
+            visitor.sumRunner.visit(visitor, new Unreadable());
+        }
+        catch (Exception ex) {
+            /* The generic path reports the error */
+        }
+        assertEquals(10, visitor.sumRunner.getGenericVisitCount(Unreadable.class));
+    }
+}
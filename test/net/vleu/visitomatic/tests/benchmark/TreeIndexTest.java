@@ -0,0 +1,102 @@
+/*
+ * Copyright 2009 Brice Arnould
+ *
+ * This file is part of VisitOMatic.
+ *
+ * VisitOMatic is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * VisitOMatic is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with VisitOMatic.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.vleu.visitomatic.tests.benchmark;
+
+import java.util.List;
+import net.vleu.visitomatic.TreeIndex;
+import net.vleu.visitomatic.VisitorRunner.VisitorRunnerException;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests TreeIndex over PlusOrJustInteger trees.
+ */
+public final class TreeIndexTest {
+
+    private final static int HEIGHT = 10;
+
+    /** Check the nodes, parents and depths of a small tree */
+    @Test
+    public void testBuild() {
+        final JustInteger label = new JustInteger(0);
+        final JustInteger one = new JustInteger(1);
+        final Plus body = new Plus(one, one);
+        final LabelledNode root = new LabelledNode(label, body);
+        final TreeIndex index = TreeIndex.build(root);
+        assertEquals(5, index.size());
+        assertSame(root, index.getNode(0));
+        assertSame(body, index.getNode(2));
+        assertEquals(-1, index.getParent(0));
+        assertEquals(0, index.getParent(1));
+        assertEquals(2, index.getParent(4));
+        assertEquals(2, index.getDepth(4));
+        assertArrayEquals(new int[] {1, 3, 4}, index.getIds(JustInteger.class));
+        assertEquals(0, index.getNodes(WideNode.class).size());
+    }
+
+    /** Check that an index built in parallel is the same */
+    @Test
+    public void testParallelBuild() {
+        final PlusOrJustInteger tree = PlusOrJustInteger.buildTree(HEIGHT);
+        final TreeIndex sequential = TreeIndex.build(tree);
+        final TreeIndex parallel = TreeIndex.build(tree, 4);
+        assertEquals((1 << (HEIGHT + 1)) - 1, parallel.size());
+        assertEquals(sequential.size(), parallel.size());
+        for (int id = 0; id < sequential.size(); id++) {
+            assertSame(sequential.getNode(id), parallel.getNode(id));
+            assertEquals(sequential.getParent(id), parallel.getParent(id));
+            assertEquals(sequential.getDepth(id), parallel.getDepth(id));
+        }
+        assertArrayEquals(sequential.getIds(Plus.class), parallel.getIds(Plus.class));
+    }
+
+    /** Check that a tree made of a single node is indexed in parallel */
+    @Test(timeout = 10000)
+    public void testParallelBuildLeaf() {
+        final JustInteger root = new JustInteger(1);
+        final TreeIndex index = TreeIndex.build(root, 2);
+        assertEquals(1, index.size());
+        assertSame(root, index.getNode(0));
+        assertEquals(-1, index.getParent(0));
+    }
+
+    /** Check that a tree too shallow to be cut is indexed in parallel */
+    @Test(timeout = 10000)
+    public void testParallelBuildShallow() {
+        /* 4 threads want 16 subtrees, but this tree has at most 4 per level */
+        final PlusOrJustInteger tree = PlusOrJustInteger.buildTree(2);
+        final TreeIndex sequential = TreeIndex.build(tree);
+        final TreeIndex parallel = TreeIndex.build(tree, 4);
+        assertEquals(7, parallel.size());
+        for (int id = 0; id < sequential.size(); id++) {
+            assertSame(sequential.getNode(id), parallel.getNode(id));
+            assertEquals(sequential.getParent(id), parallel.getParent(id));
+        }
+    }
+
+    /** Check that the nodes of a class can be visited in batch */
+    @Test
+    public void testVisitAll() throws VisitorRunnerException {
+        final TreeIndex index = TreeIndex.build(PlusOrJustInteger.buildTree(HEIGHT), 2);
+        final List<Plus> found = index.visitAll(PlusCollectingVisitor.PLUS_RUNNER,
+                                                new PlusCollectingVisitor(), Plus.class);
+        assertEquals((1 << HEIGHT) - 1, found.size());
+        assertEquals(index.getNodes(Plus.class), found);
+    }
+}
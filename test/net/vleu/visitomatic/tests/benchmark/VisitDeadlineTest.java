@@ -0,0 +1,119 @@
+/*
+ * Copyright 2009 Brice Arnould
+ *
+ * This file is part of VisitOMatic.
+ *
+ * VisitOMatic is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * VisitOMatic is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with VisitOMatic.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.vleu.visitomatic.tests.benchmark;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.TimeUnit;
+import net.vleu.visitomatic.VisitDeadline;
+import net.vleu.visitomatic.VisitorRunner;
+import net.vleu.visitomatic.VisitorRunner.VisitorRunnerException;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests VisitDeadline using PartialSumVisitor and VisitomaticVisitor.
+ */
+public final class VisitDeadlineTest {
+
+    /** Check that a visit within its deadline is complete */
+    @Test
+    public void testInTime() throws VisitorRunnerException {
+        final Long result = new PartialSumVisitor().visit(
+                PlusOrJustInteger.buildTree(10),
+                VisitDeadline.after(1, TimeUnit.MINUTES));
+        assertEquals(1 << 10, (long) result);
+    }
+
+    /**
+     * Check that an expired visit returns promptly the fallback result,
+     * here minus the sum so far
+     */
+    @Test
+    public void testFallback() throws VisitorRunnerException {
+        final long start = System.nanoTime();
+        /* Its shared subtrees make it 2^40 leaves long to visit */
+        final Long result = new PartialSumVisitor().visit(
+                PlusOrJustInteger.buildTree(40),
+                VisitDeadline.after(50, TimeUnit.MILLISECONDS, 16));
+        assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(10));
+        assertTrue(result < 0);
+        assertTrue(-result < 1L << 40);
+    }
+
+    /**
+     * Check that a cancelled visit is aborted, including the visits started
+     * by other runners
+     */
+    @Test
+    public void testCancel() throws VisitorRunnerException {
+        final VisitorRunner runner =
+                VisitorRunner.getInstance(VisitomaticVisitor.class, "sum");
+        final VisitDeadline deadline = VisitDeadline.cancellable();
+        new Thread() {
+
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(50);
+                }
+                catch (InterruptedException ex) {
+                }
+                deadline.cancel();
+            }
+        }.start();
+        try {
+            runner.visit(new VisitomaticVisitor(),
+                         PlusOrJustInteger.buildTree(40), deadline);
+            fail("The visit was not cancelled");
+        }
+        catch (VisitorRunnerException ex) {
+            assertTrue(ex.getCause() instanceof CancellationException);
+        }
+        /* Visits without deadline are not affected */
+        assertEquals(1 << 10, (int) new VisitomaticVisitor().visit(
+                PlusOrJustInteger.buildTree(10)));
+    }
+
+    /** Check that a TimeoutException of the visitor doesn't abort the visit */
+    @Test
+    public void testVisitorTimeout() {
+        final PartialSumVisitor visitor = new PartialSumVisitor();
+        try {
+            visitor.visit(new Plus(new JustInteger(1), new JustInteger(-1)),
+                          VisitDeadline.after(1, TimeUnit.MINUTES));
+            fail("The exception of the visitor was lost");
+        }
+        catch (VisitorRunnerException ex) {
+            assertEquals(0, visitor.fallbacks);
+        }
+    }
+
+    /** Check that only the visit of an expired deadline falls back */
+    @Test
+    public void testNestedDeadlines() throws VisitorRunnerException {
+        final long start = System.nanoTime();
+        final PartialSumVisitor visitor = new PartialSumVisitor();
+        final Long result = visitor.visit(PlusOrJustInteger.buildTree(40),
+                                          VisitDeadline.after(50, TimeUnit.MILLISECONDS, 16),
+                                          VisitDeadline.after(1, TimeUnit.MINUTES));
+        assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(10));
+        assertTrue(result < 0);
+        assertEquals(1, visitor.fallbacks);
+    }
+}
@@ -0,0 +1,157 @@
+/*
+ * Copyright 2009 Brice Arnould
+ *
+ * This file is part of VisitOMatic.
+ *
+ * VisitOMatic is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * VisitOMatic is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with VisitOMatic.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.vleu.visitomatic.tests.benchmark;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ArrayBlockingQueue;
+import net.vleu.visitomatic.Visitable;
+import net.vleu.visitomatic.VisitPipeline;
+import net.vleu.visitomatic.VisitorRunner;
+import net.vleu.visitomatic.VisitorRunner.VisitorRunnerException;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests VisitPipeline using CountingVisitor.
+ */
+public final class VisitPipelineTest {
+
+    private final static VisitorRunner COUNT_RUNNER =
+            VisitorRunner.getInstance(CountingVisitor.class, "count");
+
+    /** Builds trees of various sizes */
+    private static List<Visitable> buildTrees(int number) {
+        final Random random = new Random(42);
+        final List<Visitable> result = new ArrayList<Visitable>(number);
+        for (int n = 0; n < number; n++)
+            result.add(Corpus.BALANCED.build(1 + random.nextInt(2000), random));
+        return result;
+    }
+
+    /** Collects the results of a pipeline */
+    private final static class Collector implements VisitPipeline.ResultHandler<Integer> {
+
+        final List<Long> indexes = new ArrayList<Long>();
+        final List<Integer> results = new ArrayList<Integer>();
+
+        @Override
+        public void visited(long index, Visitable visitable, Integer result) {
+            indexes.add(index);
+            results.add(result);
+        }
+    }
+
+    /** Check that results come in the input order */
+    @Test
+    public void testInputOrder() throws VisitorRunnerException, InterruptedException {
+        final List<Visitable> trees = buildTrees(500);
+        final CountingVisitor visitor = new CountingVisitor();
+        final VisitPipeline<Integer> pipeline = new VisitPipeline<Integer>(
+                COUNT_RUNNER, visitor, 4, 16, 3, VisitPipeline.Order.INPUT);
+        final Collector collector = new Collector();
+        pipeline.run(trees.iterator(), collector);
+        assertEquals(trees.size(), collector.results.size());
+        for (int n = 0; n < trees.size(); n++) {
+            assertEquals(n, (long) collector.indexes.get(n));
+            assertEquals(visitor.count(trees.get(n)), (int) collector.results.get(n));
+        }
+    }
+
+    /** Check that every result comes once in the completion order */
+    @Test
+    public void testCompletionOrder() throws VisitorRunnerException, InterruptedException {
+        final List<Visitable> trees = buildTrees(500);
+        final ArrayBlockingQueue<Visitable> queue = new ArrayBlockingQueue<Visitable>(8);
+        final Visitable last = new JustInteger();
+        final Thread producer = new Thread() {
+
+            @Override
+            public void run() {
+                try {
+                    for (Visitable tree : trees)
+                        queue.put(tree);
+                    queue.put(last);
+                }
+                catch (InterruptedException ex) {
+                    throw new RuntimeException(ex);
+                }
+            }
+        };
+        producer.start();
+        final CountingVisitor visitor = new CountingVisitor();
+        final Collector collector = new Collector();
+        new VisitPipeline<Integer>(COUNT_RUNNER, visitor, 3, 4, 2,
+                                   VisitPipeline.Order.COMPLETION).run(queue, last, collector);
+        producer.join();
+        assertEquals(trees.size(), collector.results.size());
+        for (int n = 0; n < trees.size(); n++) {
+            final int index = (int) (long) collector.indexes.get(n);
+            assertEquals(visitor.count(trees.get(index)), (int) collector.results.get(n));
+        }
+        Collections.sort(collector.indexes);
+        for (int n = 0; n < trees.size(); n++)
+            assertEquals(n, (long) collector.indexes.get(n));
+    }
+
+    /** Check that a failing visit stops the pipeline */
+    @Test(expected = VisitorRunnerException.class)
+    public void testFailure() throws VisitorRunnerException, InterruptedException {
+        final List<Visitable> trees = buildTrees(100);
+        /* CountingVisitor has no method for this */
+        trees.add(50, new Visitable() {
+        });
+        new VisitPipeline<Integer>(COUNT_RUNNER, new CountingVisitor(), 4, 8, 4,
+                                   VisitPipeline.Order.INPUT).run(trees.iterator(), new Collector());
+    }
+    /** Check that interrupting a run stops its workers */
+    @Test(timeout = 10000)
+    public void testInterrupt() throws VisitorRunnerException, InterruptedException {
+        final List<Visitable> trees = buildTrees(20);
+        final ArrayBlockingQueue<Visitable> queue = new ArrayBlockingQueue<Visitable>(trees.size());
+        queue.addAll(trees);
+        final Thread caller = Thread.currentThread();
+        final Thread interrupter = new Thread() {
+
+            @Override
+            public void run() {
+                /* Once the input is consumed, the run waits for more */
+                while (!queue.isEmpty())
+                    Thread.yield();
+                caller.interrupt();
+            }
+        };
+        interrupter.start();
+        try {
+            new VisitPipeline<Integer>(COUNT_RUNNER, new CountingVisitor(), 4, 8, 2,
+                                       VisitPipeline.Order.INPUT).run(queue, new JustInteger(),
+                                                                      new Collector());
+            fail("The run was not interrupted");
+        }
+        catch (InterruptedException ex) {
+            /* Expected */
+        }
+        interrupter.join();
+        for (Thread thread : Thread.getAllStackTraces().keySet())
+            assertFalse(thread.getName().startsWith("VisitPipeline worker") &&
+                        thread.isAlive());
+    }
+}
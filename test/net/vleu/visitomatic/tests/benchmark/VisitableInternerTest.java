@@ -0,0 +1,76 @@
+/*
+ * Copyright 2009 Brice Arnould
+ *
+ * This file is part of VisitOMatic.
+ *
+ * VisitOMatic is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * VisitOMatic is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with VisitOMatic.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.vleu.visitomatic.tests.benchmark;
+
+import net.vleu.visitomatic.VisitableInterner;
+import net.vleu.visitomatic.VisitorRunner.VisitorRunnerException;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests VisitableInterner over PlusOrJustInteger trees.
+ */
+public final class VisitableInternerTest {
+
+    /** Builds a tree of the given height whose nodes are all distinct */
+    private static PlusOrJustInteger buildUnsharedTree(int height) {
+        if (height == 0)
+            return new JustInteger(1);
+        else
+            return new Plus(buildUnsharedTree(height - 1),
+                            buildUnsharedTree(height - 1));
+    }
+
+    /** Check that equal trees are interned as the same instance */
+    @Test
+    public void testEqualTrees() {
+        final VisitableInterner interner = new VisitableInterner();
+        final PlusOrJustInteger a = interner.intern(buildUnsharedTree(10));
+        final PlusOrJustInteger b = interner.intern(buildUnsharedTree(10));
+        assertSame(a, b);
+        /* One node per level remains */
+        assertEquals(11, interner.size());
+        assertSame(((Plus) a).a, ((Plus) a).b);
+        assertNotSame(a, interner.intern(buildUnsharedTree(9)));
+        assertSame(((Plus) a).a, interner.intern(buildUnsharedTree(9)));
+    }
+
+    /** Check that distinct values are not merged */
+    @Test
+    public void testDistinctValues() {
+        final VisitableInterner interner = new VisitableInterner();
+        final Plus tree = new Plus(new JustInteger(1), new JustInteger(2));
+        final Plus interned = interner.intern(tree);
+        assertSame(tree, interned);
+        assertNotSame(interned.a, interned.b);
+        assertSame(interned.b, interner.intern(new JustInteger(2)));
+        assertSame(interner.intern(new JustInteger()),
+                   interner.intern(new JustInteger()));
+    }
+
+    /** Check that interning lets identity-keyed caches hit */
+    @Test
+    public void testCaching() throws VisitorRunnerException {
+        final CachingSumVisitor visitor = new CachingSumVisitor(1000);
+        final PlusOrJustInteger tree =
+                new VisitableInterner().intern(buildUnsharedTree(16));
+        assertEquals(1 << 16, (int) visitor.visit(tree));
+        assertEquals(17, visitor.calls);
+    }
+}
@@ -0,0 +1,77 @@
+/*
+ * Copyright 2009 Brice Arnould
+ *
+ * This file is part of VisitOMatic.
+ *
+ * VisitOMatic is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * VisitOMatic is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with VisitOMatic.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.vleu.visitomatic.tests.benchmark;
+
+import java.lang.reflect.InvocationTargetException;
+import net.vleu.visitomatic.ToVisit;
+import net.vleu.visitomatic.Visitable;
+import net.vleu.visitomatic.VisitableReader;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests the typed reads of VisitableReader.
+ */
+public final class VisitableReaderTest {
+
+    /** Has members of various types */
+    private static final class Sample implements Visitable {
+
+        @ToVisit(position=0)
+        private final int count = 42;
+        @ToVisit(position=1)
+        private final long total = 1L << 40;
+        @ToVisit(position=2)
+        private final char letter = 'x';
+        @ToVisit(position=3)
+        private final Integer boxed = 7;
+        @ToVisit(position=5)
+        private final boolean flag = true;
+
+        @ToVisit(position=4)
+        private float ratio() {
+            return 0.5f;
+        }
+    }
+
+    private final static VisitableReader READER = new VisitableReader(Sample.class);
+
+    /** Check that the typed reads match the boxed ones */
+    @Test
+    public void testTypedReads() throws IllegalAccessException, InvocationTargetException {
+        final Sample sample = new Sample();
+        assertEquals(42, READER.readInt(sample, 0));
+        assertEquals(42L, READER.readLong(sample, 0));
+        assertEquals(1L << 40, READER.readLong(sample, 1));
+        assertEquals((int) 'x', READER.readInt(sample, 2));
+        assertEquals(7, READER.readInt(sample, 3));
+        assertEquals(7.0, READER.readDouble(sample, 3), 0);
+        assertEquals(0.5, READER.readDouble(sample, 4), 0);
+        assertTrue(READER.readBoolean(sample, 5));
+        final Object[] values = READER.readValues(sample);
+        for (int n = 0; n < values.length - 1; n++)
+            assertEquals(values[n + 1], READER.readValue(sample, n));
+    }
+
+    /** Check that narrowing reads are refused */
+    @Test(expected = IllegalArgumentException.class)
+    public void testNarrowing() throws IllegalAccessException, InvocationTargetException {
+        READER.readInt(new Sample(), 1);
+    }
+}
@@ -0,0 +1,88 @@
+/*
+ * Copyright 2009 Brice Arnould
+ *
+ * This file is part of VisitOMatic.
+ *
+ * VisitOMatic is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * VisitOMatic is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with VisitOMatic.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.vleu.visitomatic.tests.benchmark;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import net.vleu.visitomatic.VisitableWriter;
+import net.vleu.visitomatic.VisitorRunner.VisitorRunnerException;
+import net.vleu.visitomatic.tests.lists.ConsList;
+import net.vleu.visitomatic.tests.lists.EmptyList;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests visits of trees read from a stream by a VisitableStreamDecoder.
+ */
+public final class VisitableStreamDecoderTest {
+
+    private final static int HEIGHT = 20;
+
+    private static byte[] encode(PlusOrJustInteger tree) throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new VisitableWriter().write(tree, out);
+        return out.toByteArray();
+    }
+
+    /** Check that a streamed tree sums to the same value as the original one */
+    @Test
+    public void testSum() throws IOException, VisitorRunnerException {
+        final byte[] encoded = encode(PlusOrJustInteger.buildTree(HEIGHT));
+        final int result = new FoldingSumVisitor().visit(
+                new ByteArrayInputStream(encoded));
+        assertEquals(1 << HEIGHT, result);
+    }
+
+    /** Check that a single leaf can be streamed */
+    @Test
+    public void testLeaf() throws IOException, VisitorRunnerException {
+        final byte[] encoded = encode(PlusOrJustInteger.buildTree(0));
+        assertEquals(1, (int) new FoldingSumVisitor().visit(
+                new ByteArrayInputStream(encoded)));
+    }
+
+    /** Check that nodes without folding method are reported */
+    @Test(expected = VisitorRunnerException.class)
+    public void testMissingMethod() throws IOException, VisitorRunnerException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new VisitableWriter().write(new ConsList<String>("a",
+                new EmptyList<String>()), out);
+        new FoldingSumVisitor().visit(new ByteArrayInputStream(out.toByteArray()));
+    }
+
+    /** Check that nodes missing some of their members are reported */
+    @Test
+    public void testMissingMembers() throws IOException {
+        final byte[] encoded = encode(PlusOrJustInteger.buildTree(0));
+        /* The leaf ends with its payload length (5) and its int (tag and 4
+         * bytes) : empty the payload */
+        assertEquals(5, encoded[encoded.length - 6]);
+        final byte[] truncated = Arrays.copyOf(encoded, encoded.length - 5);
+        truncated[truncated.length - 1] = 0;
+        try {
+            new FoldingSumVisitor().visit(new ByteArrayInputStream(truncated));
+            fail("The missing member wasn't reported");
+        }
+        catch (VisitorRunnerException ex) {
+            assertTrue(ex.getMessage(), ex.getMessage().endsWith(" has 0 of its 1 members"));
+        }
+    }
+}
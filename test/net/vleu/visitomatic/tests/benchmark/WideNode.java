@@ -0,0 +1,62 @@
+/*
+ * Copyright 2009 Brice Arnould
+ *
+ * This file is part of VisitOMatic.
+ *
+ * VisitOMatic is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * VisitOMatic is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with VisitOMatic.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.vleu.visitomatic.tests.benchmark;
+
+import net.vleu.visitomatic.ToVisit;
+import net.vleu.visitomatic.Visitable;
+
+/**
+ * Dummy class that one can visit. It contains eight {@link PlusOrJustInteger}. Used only for benchmarks.
+ */
+final class WideNode extends PlusOrJustInteger implements Visitable {
+
+    @ToVisit(position = 0)
+    final PlusOrJustInteger c0;
+    @ToVisit(position = 1)
+    final PlusOrJustInteger c1;
+    @ToVisit(position = 2)
+    final PlusOrJustInteger c2;
+    @ToVisit(position = 3)
+    final PlusOrJustInteger c3;
+    @ToVisit(position = 4)
+    final PlusOrJustInteger c4;
+    @ToVisit(position = 5)
+    final PlusOrJustInteger c5;
+    @ToVisit(position = 6)
+    final PlusOrJustInteger c6;
+    @ToVisit(position = 7)
+    final PlusOrJustInteger c7;
+
+    WideNode(PlusOrJustInteger[] children) {
+        c0 = children[0];
+        c1 = children[1];
+        c2 = children[2];
+        c3 = children[3];
+        c4 = children[4];
+        c5 = children[5];
+        c6 = children[6];
+        c7 = children[7];
+    }
+
+    @Override
+    public Integer accept(HandWrittenVisitor hw) {
+        return hw.visit(c0) + hw.visit(c1) + hw.visit(c2) + hw.visit(c3) +
+               hw.visit(c4) + hw.visit(c5) + hw.visit(c6) + hw.visit(c7);
+    }
+}
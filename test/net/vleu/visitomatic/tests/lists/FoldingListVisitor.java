@@ -0,0 +1,70 @@
+/*
+ * Copyright 2009 Brice Arnould
+ *
+ * This file is part of VisitOMatic.
+ *
+ * VisitOMatic is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * VisitOMatic is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with VisitOMatic.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.vleu.visitomatic.tests.lists;
+
+import java.util.ArrayList;
+import net.vleu.visitomatic.FoldOf;
+import net.vleu.visitomatic.FusedVisitorRunner;
+import net.vleu.visitomatic.VisitingMethod;
+import net.vleu.visitomatic.Visitor;
+import net.vleu.visitomatic.VisitorRunner;
+import net.vleu.visitomatic.VisitorRunner.VisitorRunnerException;
+
+/**
+ * Measures a {@code VisitableList} and converts it to an array in a single
+ * pass.
+ * @param <T> The parametric type of the visited Lists
+ */
+public class FoldingListVisitor<T> implements Visitor {
+    private final static FusedVisitorRunner LENGTH_AND_TO_ARRAY_VISITOR =
+            VisitorRunner.fuse(
+            VisitorRunner.getInstance(FoldingListVisitor.class, "length"),
+            VisitorRunner.getInstance(FoldingListVisitor.class, "toArray"));
+
+    @VisitingMethod(visitName="length")
+    @FoldOf(EmptyList.class)
+    private int length() {
+        return 0;
+    }
+
+    @VisitingMethod(visitName="length")
+    @FoldOf(ConsList.class)
+    private int length(T head, int tailLength) {
+        return 1 + tailLength;
+    }
+
+    @VisitingMethod(visitName="toArray")
+    @FoldOf(EmptyList.class)
+    private ArrayList<T> toArray() {
+        return new ArrayList<T>();
+    }
+
+    @VisitingMethod(visitName="toArray")
+    @FoldOf(ConsList.class)
+    private ArrayList<T> toArray(T head, ArrayList<T> tail) {
+        tail.add(head);
+        return tail;
+    }
+
+    /** @return The length of the list, followed by its content as an array */
+    public Object[] lengthAndToArray(VisitableList<T> l) throws VisitorRunnerException {
+        return LENGTH_AND_TO_ARRAY_VISITOR.visit(l, this, this);
+    }
+}
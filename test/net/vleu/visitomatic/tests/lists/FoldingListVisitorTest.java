@@ -0,0 +1,56 @@
+/*
+ * Copyright 2009 Brice Arnould
+ *
+ * This file is part of VisitOMatic.
+ *
+ * VisitOMatic is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * VisitOMatic is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with VisitOMatic.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.vleu.visitomatic.tests.lists;
+
+import java.util.Arrays;
+import net.vleu.visitomatic.VisitorRunner.VisitorRunnerException;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests for fused visits using FoldingListVisitor.
+ */
+public final class FoldingListVisitorTest {
+
+    /**
+     * Tests the lengthAndToArray method, of class FoldingListVisitor.
+     */
+    @Test
+    public void testLengthAndToArray() throws VisitorRunnerException {
+        final FoldingListVisitor<String> visitor = new FoldingListVisitor<String>();
+        final VisitableList<String> list = new ConsList<String>("c",
+                new ConsList<String>("b", new ConsList<String>("a",
+                new EmptyList<String>())));
+        final Object[] results = visitor.lengthAndToArray(list);
+        assertEquals(3, results[0]);
+        assertEquals(Arrays.asList("a", "b", "c"), results[1]);
+    }
+
+    /**
+     * Tests that a list too long for the Java stack can be visited.
+     */
+    @Test
+    public void testLongList() throws VisitorRunnerException {
+        final FoldingListVisitor<Integer> visitor = new FoldingListVisitor<Integer>();
+        VisitableList<Integer> list = new EmptyList<Integer>();
+        for (int i = 0; i < 1000000; i++)
+            list = new ConsList<Integer>(i, list);
+        assertEquals(1000000, visitor.lengthAndToArray(list)[0]);
+    }
+}